@@ -0,0 +1,223 @@
+package de.iisys.libstate.benchmarks;
+
+import de.iisys.libstate.CompiledStateGraph;
+import de.iisys.libstate.interfaces.MemoryKey;
+import de.iisys.libstate.StateGraph;
+import de.iisys.libstate.StateGraphRunner;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the hot path of {@link StateGraphRunner}. Every benchmark runs
+ * a whole graph from its initial state to its end, so the score includes the
+ * copy of the initial memory every run starts with.<br>
+ * Run with {@code java -jar target/benchmarks.jar -prof gc} to see the
+ * allocation rates next to the throughput.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateGraphRunnerBenchmark {
+
+    /**
+     * A chain of states, each one leaving unconditionally to the next.
+     */
+    @State(Scope.Benchmark)
+    public static class LinearChain {
+
+        @Param({"16", "256"})
+        public int length;
+
+        StateGraphRunner runner;
+
+        @Setup
+        public void setUp() {
+            StateGraph stateGraph = new StateGraph();
+            for (int i = 0; i < length; i++) {
+                stateGraph.registerState(i);
+            }
+            stateGraph.registerTransition(0);
+            for (int i = 1; i < length; i++) {
+                stateGraph.registerTransition(i - 1, i);
+            }
+            runner = new StateGraphRunner(stateGraph);
+        }
+    }
+
+    /**
+     * A hub state with many conditional transitions, of which only one holds
+     * per round. The hub is entered a fixed number of times per run.
+     */
+    @State(Scope.Benchmark)
+    public static class FanOut {
+
+        @Param({"8", "64"})
+        public int width;
+
+        StateGraphRunner runner;
+
+        @Setup
+        public void setUp() {
+            StateGraph stateGraph = new StateGraph();
+            MemoryKey.OfInt round = stateGraph.declareInt("round");
+            stateGraph.registerState("hub", (state) -> state.putInt(round, state.getInt(round) + 1));
+            stateGraph.registerState("done");
+            for (int i = 0; i < width; i++) {
+                stateGraph.registerState(i);
+            }
+
+            stateGraph.registerTransition("hub");
+            stateGraph.registerTransition("hub", "done", (transition) -> transition.getSource().getInt(round) >= 100);
+            for (int i = 0; i < width; i++) {
+                int branch = i;
+                stateGraph.registerTransition("hub", i, (transition) -> {
+                    int value = transition.getSource().getInt(round);
+                    return value < 100 && value % width == branch;
+                });
+                stateGraph.registerTransition(i, "hub");
+            }
+            runner = new StateGraphRunner(stateGraph);
+        }
+    }
+
+    /**
+     * A single state looping on itself until a counter reaches its limit, run
+     * from the tables or with generated dispatch.
+     */
+    @State(Scope.Benchmark)
+    public static class SelfLoop {
+
+        @Param({"1000"})
+        public int iterations;
+
+        @Param({"false", "true"})
+        public boolean generated;
+
+        StateGraphRunner runner;
+
+        @Setup
+        public void setUp() {
+            StateGraph stateGraph = new StateGraph();
+            MemoryKey.OfInt count = stateGraph.declareInt("count");
+            int limit = iterations;
+            stateGraph.registerState("loop", (state) -> state.putInt(count, state.getInt(count) + 1));
+            stateGraph.registerState("done");
+
+            stateGraph.registerTransition("loop");
+            stateGraph.registerTransition("loop", "done", (transition) -> transition.getSource().getInt(count) >= limit);
+            stateGraph.registerTransition("loop", "loop");
+
+            CompiledStateGraph compiled = new CompiledStateGraph(stateGraph);
+            if (generated) {
+                compiled.generateDispatch();
+            }
+            runner = new StateGraphRunner(compiled);
+        }
+    }
+
+    /**
+     * A few states reading and writing many entries of a large memory, both
+     * declared slots and plain map entries.
+     */
+    @State(Scope.Benchmark)
+    public static class MemoryHeavy {
+
+        @Param({"64"})
+        public int entries;
+
+        StateGraphRunner runner;
+
+        @Setup
+        public void setUp() {
+            StateGraph stateGraph = new StateGraph();
+            MemoryKey.OfLong[] slots = new MemoryKey.OfLong[entries];
+            for (int i = 0; i < entries; i++) {
+                slots[i] = stateGraph.declareLong("slot" + i);
+            }
+            stateGraph.registerState("slots", (state) -> {
+                for (MemoryKey.OfLong slot : slots) {
+                    state.putLong(slot, state.getLong(slot) + 1);
+                }
+            });
+            stateGraph.registerState("map", (state) -> {
+                for (int i = 0; i < entries; i++) {
+                    Integer key = i;
+                    state.put(key, (int) state.get(key) + 1);
+                }
+            });
+            stateGraph.registerTransition("slots");
+            stateGraph.registerTransition("slots", "map");
+
+            Map<Object, Object> memory = stateGraph.getStates().get("slots").getMemory();
+            for (int i = 0; i < entries; i++) {
+                memory.put(i, 0);
+            }
+            runner = new StateGraphRunner(stateGraph);
+        }
+    }
+
+    /**
+     * A single state with a large initial memory, so a run costs mostly the
+     * rewind to the initial memory.
+     */
+    @State(Scope.Benchmark)
+    public static class Rewind {
+
+        @Param({"0", "1024"})
+        public int entries;
+
+        StateGraphRunner runner;
+
+        @Setup
+        public void setUp() {
+            StateGraph stateGraph = new StateGraph();
+            stateGraph.registerState("only", (state) -> state.put("touched", true));
+            stateGraph.registerTransition("only");
+
+            Map<Object, Object> memory = stateGraph.getStates().get("only").getMemory();
+            for (int i = 0; i < entries; i++) {
+                memory.put(i, i);
+            }
+            runner = new StateGraphRunner(stateGraph);
+        }
+    }
+
+    @Benchmark
+    public void linearChain(LinearChain state) {
+        state.runner.run();
+    }
+
+    @Benchmark
+    public void fanOut(FanOut state) {
+        state.runner.run();
+    }
+
+    @Benchmark
+    public void selfLoop(SelfLoop state) {
+        state.runner.run();
+    }
+
+    @Benchmark
+    public void memoryHeavy(MemoryHeavy state) {
+        state.runner.run();
+    }
+
+    @Benchmark
+    public void rewind(Rewind state) {
+        state.runner.run();
+    }
+
+}
@@ -0,0 +1,91 @@
+package de.iisys.libstate;
+
+import de.iisys.libstate.interfaces.MemoryKey;
+import java.util.Objects;
+
+/**
+ * The {@link MemoryKey} handed out by {@link StateGraph} when a memory value
+ * is declared.
+  * @param <T> the type of the value
+ */
+class BasicMemoryKey<T> implements MemoryKey<T> {
+
+    private final Object name;
+    private final Class<T> type;
+    private final int kind;
+    private final int slot;
+
+    /**
+     * Initializes the key.
+     *
+     * @param name the name the value can also be found under
+     * @param type the type of the value
+     * @param kind the kind of slot
+     * @param slot the index of the slot within its kind
+     */
+    BasicMemoryKey(Object name, Class<T> type, int kind, int slot) {
+        this.name = Objects.requireNonNull(name, "Memory key name cannot be null.");
+        this.type = type;
+        this.kind = kind;
+        this.slot = slot;
+    }
+
+    @Override
+    public Object getName() {
+        return name;
+    }
+
+    @Override
+    public Class<T> getType() {
+        return type;
+    }
+
+    @Override
+    public int getKind() {
+        return kind;
+    }
+
+    @Override
+    public int getSlot() {
+        return slot;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" + "name=" + name + ", type=" + type.getSimpleName() + ", slot=" + slot + '}';
+    }
+
+    /**
+     * Key of an unboxed int value.
+     */
+    static final class OfInt extends BasicMemoryKey<Integer> implements MemoryKey.OfInt {
+
+        OfInt(Object name, int slot) {
+            super(name, Integer.class, INT, slot);
+        }
+
+    }
+
+    /**
+     * Key of an unboxed long value.
+     */
+    static final class OfLong extends BasicMemoryKey<Long> implements MemoryKey.OfLong {
+
+        OfLong(Object name, int slot) {
+            super(name, Long.class, LONG, slot);
+        }
+
+    }
+
+    /**
+     * Key of an unboxed double value.
+     */
+    static final class OfDouble extends BasicMemoryKey<Double> implements MemoryKey.OfDouble {
+
+        OfDouble(Object name, int slot) {
+            super(name, Double.class, DOUBLE, slot);
+        }
+
+    }
+
+}
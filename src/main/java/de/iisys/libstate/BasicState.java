@@ -11,7 +11,8 @@ import java.util.Objects;
 /**
  * Class that defines every method on interface {@link State}. A State is a
  * context with internally held memory executing {@link Action}s that is able to
- * transit between each other by given {@link Transition}s.
+ * transit between each other by given {@link Transition}s.<br>
+ * Any of the actions may be an {@link de.iisys.libstate.interfaces.AsyncAction}.
   */
 public class BasicState implements State {
 
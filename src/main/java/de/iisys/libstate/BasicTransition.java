@@ -8,7 +8,8 @@ import java.util.function.Function;
 /**
  * Class that defines every method on {@link State}. A transition maps one state
  * to another depending on the defined conditions. It can execute an
- * {@link Action} as well while transfering.
+ * {@link Action} as well while transfering, which may be an
+ * {@link de.iisys.libstate.interfaces.AsyncAction}.
   * @param <S>
  * @param <D>
  */
@@ -17,6 +18,7 @@ public class BasicTransition<S extends State, D extends State> implements Transi
     private S source;
     private D destination;
 
+    private Class<?> event;
     private Action<Transition<S, D>> action;
     private Function<Transition<S, D>, Boolean> condition;
 
@@ -57,12 +59,41 @@ public class BasicTransition<S extends State, D extends State> implements Transi
      * @param condition to check
      */
     public BasicTransition(S source, D destination, Action<Transition<S, D>> action, Function<Transition<S, D>, Boolean> condition) {
+        this(source, destination, null, action, condition);
+    }
+
+    /**
+     * Initializes the source {@link State} of the transition and the
+     * destination the {@link State} of the transition, the type of event that
+     * triggers the transition, the action to execute while transferring
+     * between the two states and the condition to check if this transition may
+     * be executed.
+     *
+     * @param source the source of the transition
+     * @param destination the destination of the transition
+     * @param event the type of event triggering the transition, null to take
+     * it on completion of the source
+     * @param action the action to execute
+     * @param condition to check
+     */
+    public BasicTransition(S source, D destination, Class<?> event, Action<Transition<S, D>> action, Function<Transition<S, D>, Boolean> condition) {
         this.source = source;
         this.destination = destination;
+        this.event = event;
         this.action = action;
         this.condition = condition;
     }
 
+    /**
+     * Defines the type of event that triggers this transition.
+     *
+     * @return the event type, or null if the transition is taken on completion
+     */
+    @Override
+    public Class<?> event() {
+        return event;
+    }
+
     /**
      * Defines the condition to check if this transition may be executed within
      * the given context of the two states given.
@@ -0,0 +1,810 @@
+package de.iisys.libstate;
+
+import de.iisys.libstate.interfaces.Action;
+import de.iisys.libstate.interfaces.AsyncAction;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Base of the classes generated for a {@link CompiledStateGraph} to run its
+ * states without going through the tables. The generated class holds every
+ * action and condition of the graph in a static final field and one static
+ * method per state running its actions and choosing its transition, called
+ * from a switch over the state IDs. Being constants, the actions and
+ * conditions can be inlined by the JIT.<br>
+ * Only states without asynchronous actions and without event transitions are
+ * generated, the execution falls back to the tables for the others. The class
+ * is defined as hidden class where available, in the package of this class
+ * otherwise. Without any way to define it, there is no generated dispatch.
+  */
+abstract class CompiledDispatch {
+
+    /**
+     * The number of transitions a generated dispatch takes at most within one
+     * step of the execution.
+     */
+    static final int BUDGET = 1024;
+
+    /**
+     * Returned by {@link #run} if the state has not been generated.
+     */
+    static final int NOT_COMPILED = -2;
+
+    private static final int MAX_METHOD_SIZE = 8000;
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+    private static Object[] handoff;
+
+    private boolean[] compiled;
+
+    /**
+     * Checks whether the given state has been generated.
+     *
+     * @param state the state ID
+     * @return true if the state can be run by {@link #run}
+     */
+    final boolean isCompiled(int state) {
+        return compiled[state];
+    }
+
+    /**
+     * Runs the generated states from the given one on until a state that has
+     * not been generated or the end of the graph is reached, or the execution
+     * refuses to go on. After each state the execution is moved along by
+     * {@link StateGraphExecution#advance(int)}, which also keeps its budget.
+     * The execution must not have a listener or recorder, as the generated
+     * code does not notify them.
+     *
+     * @param execution the execution
+     * @param view the state view of the execution
+     * @param transitionView the transition view of the execution
+     * @param state the state to start with
+     * @param enter true to run the entry action of the first state
+     * @return the ID of the last transition taken, {@link CompiledStateGraph#NONE}
+     * if a state without transitions has been left or {@link #NOT_COMPILED}
+     * @throws Exception any exception thrown by an action or condition
+     */
+    abstract int run(StateGraphExecution execution, ExecutionState view, ExecutionTransition transitionView, int state, boolean enter) throws Exception;
+
+    /**
+     * Called by the static initializer of a generated class to get its
+     * actions and conditions.
+     *
+     * @return the values of the static fields
+     */
+    static Object[] take() {
+        Object[] values = handoff;
+        handoff = null;
+        return values;
+    }
+
+    /**
+     * Generates and loads the dispatch class for the given graph.
+     *
+     * @param graph the compiled graph
+     * @return the dispatch, or null if no class could be generated or defined
+     */
+    static synchronized CompiledDispatch generate(CompiledStateGraph graph) {
+        try {
+            Generator generator = new Generator(graph);
+            byte[] bytes = generator.generate();
+            if (bytes == null) {
+                return null;
+            }
+            handoff = generator.constants.toArray();
+            Class<?> type = define(bytes);
+            CompiledDispatch dispatch = (CompiledDispatch) type.getDeclaredConstructor().newInstance();
+            dispatch.compiled = generator.compiled;
+            return dispatch;
+        } catch (IOException | ReflectiveOperationException | LinkageError | RuntimeException ex) {
+            return null;
+        } finally {
+            handoff = null;
+        }
+    }
+
+    /**
+     * Defines the generated class as hidden class, by the lookup of this
+     * class or within its class loader, whichever the JVM supports.
+     *
+     * @param bytes the class file
+     * @return the class
+     * @throws ReflectiveOperationException if the class cannot be defined
+     */
+    private static Class<?> define(byte[] bytes) throws ReflectiveOperationException {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            Class<?> optionType = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            Object options = Array.newInstance(optionType, 0);
+            Method defineHidden = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class, options.getClass());
+            return ((MethodHandles.Lookup) defineHidden.invoke(lookup, bytes, true, options)).lookupClass();
+        } catch (ClassNotFoundException | NoSuchMethodException ex) {
+            // before Java 15
+        }
+        try {
+            return (Class<?>) MethodHandles.Lookup.class.getMethod("defineClass", byte[].class).invoke(lookup, bytes);
+        } catch (NoSuchMethodException ex) {
+            // before Java 9
+        }
+        Method defineClass = ClassLoader.class.getDeclaredMethod("defineClass", String.class, byte[].class, int.class, int.class);
+        defineClass.setAccessible(true);
+        return (Class<?>) defineClass.invoke(CompiledDispatch.class.getClassLoader(), null, bytes, 0, bytes.length);
+    }
+
+    /**
+     * Writes the class file of the dispatch of one graph. The class file
+     * version predates stack map frames, so none need to be computed.
+     */
+    private static final class Generator {
+
+        private static final String SELF = "de/iisys/libstate/CompiledDispatch";
+        private static final String EXECUTION = "de/iisys/libstate/StateGraphExecution";
+        private static final String VIEW = "de/iisys/libstate/ExecutionState";
+        private static final String TRANSITION_VIEW = "de/iisys/libstate/ExecutionTransition";
+        private static final String ACTION = "de/iisys/libstate/interfaces/Action";
+        private static final String FUNCTION = "java/util/function/Function";
+        private static final String STATE_METHOD = "(L" + VIEW + ";L" + TRANSITION_VIEW + ";Z)I";
+
+        private final CompiledStateGraph graph;
+        private final String name;
+        private final ConstantPool pool;
+        private final List<Object> constants;
+        private final List<String> constantTypes;
+        private final Map<Object, Integer> fields;
+        private final boolean[] compiled;
+        private final ByteArrayOutputStream methods;
+        private int methodCount;
+
+        private Generator(CompiledStateGraph graph) {
+            this.graph = graph;
+            this.name = SELF + "$Generated" + COUNTER.incrementAndGet();
+            this.pool = new ConstantPool();
+            this.constants = new ArrayList<>();
+            this.constantTypes = new ArrayList<>();
+            this.fields = new HashMap<>();
+            this.compiled = new boolean[graph.getStateCount()];
+            this.methods = new ByteArrayOutputStream();
+        }
+
+        /**
+         * Writes the class file.
+         *
+         * @return the class file, or null if no state can be generated
+         * @throws IOException never
+         */
+        private byte[] generate() throws IOException {
+            boolean any = false;
+            for (int s = 0; s < compiled.length; s++) {
+                compiled[s] = isCompilable(s);
+                any |= compiled[s];
+            }
+            if (!any) {
+                return null;
+            }
+
+            int[] destinations = new int[graph.getTransitionCount()];
+            boolean[] selfLoops = new boolean[destinations.length];
+            for (int t = 0; t < destinations.length; t++) {
+                destinations[t] = graph.getTransitionDestination(t);
+                selfLoops[t] = graph.isSelfLoop(t);
+            }
+            int destinationField = field(destinations, "[I");
+            int selfLoopField = field(selfLoops, "[Z");
+            int compiledField = field(compiled.clone(), "[Z");
+
+            for (int s = 0; s < compiled.length; s++) {
+                if (compiled[s]) {
+                    writeState(s);
+                }
+            }
+            if (!writeRun(destinationField, selfLoopField, compiledField)) {
+                return null;
+            }
+            writeConstructor();
+            writeInitializer();
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            int thisClass = pool.classRef(name);
+            int superClass = pool.classRef(SELF);
+            int[] fieldNames = new int[constants.size()];
+            int[] fieldTypes = new int[constants.size()];
+            for (int i = 0; i < fieldNames.length; i++) {
+                fieldNames[i] = pool.utf8("c" + i);
+                fieldTypes[i] = pool.utf8(constantTypes.get(i));
+            }
+
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(50);
+            pool.write(out);
+            out.writeShort(0x0001 | 0x0010 | 0x0020);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);
+            out.writeShort(fieldNames.length);
+            for (int i = 0; i < fieldNames.length; i++) {
+                out.writeShort(0x0008 | 0x0010 | 0x0002);
+                out.writeShort(fieldNames[i]);
+                out.writeShort(fieldTypes[i]);
+                out.writeShort(0);
+            }
+            out.writeShort(methodCount);
+            methods.writeTo(out);
+            out.writeShort(0);
+            return bytes.toByteArray();
+        }
+
+        /**
+         * Checks whether the given state can be generated: it has no event
+         * transitions, no error transition, no value transitions looked up
+         * in a table and no wait strategy but busy spinning, and neither it
+         * nor its transitions have asynchronous actions.
+         *
+         * @param state the state ID
+         * @return true if the state can be generated
+         */
+        private boolean isCompilable(int state) {
+            if (graph.isWaiting(state) || graph.getErrorHandler(state) != CompiledStateGraph.NONE || graph.getValueTable(state) != null
+                    || graph.getWaitStrategy(state) != WaitStrategy.BUSY_SPIN || graph.getEntryAction(state) instanceof AsyncAction
+                    || graph.getDoAction(state) instanceof AsyncAction || graph.getExitAction(state) instanceof AsyncAction) {
+                return false;
+            }
+            for (int t = graph.getTransitionStart(state); t < graph.getTransitionEnd(state); t++) {
+                if (graph.getTransitionAction(t) instanceof AsyncAction) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns the index of the static field holding the given value,
+         * adding it if necessary.
+         *
+         * @param value the value
+         * @param type the field descriptor
+         * @return the index of the field
+         */
+        private int field(Object value, String type) {
+            Integer index = fields.get(value);
+            if (index == null) {
+                index = constants.size();
+                constants.add(value);
+                constantTypes.add(type);
+                fields.put(value, index);
+            }
+            return index;
+        }
+
+        /**
+         * Emits reading the static field holding the given value.
+         *
+         * @param code the code to emit to
+         * @param value the value
+         * @param type the field descriptor
+         */
+        private void getField(Code code, Object value, String type) {
+            code.op(0xB2);
+            code.u2(pool.fieldRef(name, "c" + field(value, type), type));
+        }
+
+        /**
+         * Emits running the given action on the view in the given local.
+         *
+         * @param code the code to emit to
+         * @param action the action
+         * @param local the local holding the view
+         */
+        private void runAction(Code code, Action<?> action, int local) {
+            getField(code, action, "L" + ACTION + ";");
+            code.op(0x19);
+            code.u1(local);
+            invokeAction(code);
+        }
+
+        /**
+         * Emits the call of {@link Action#run(Object)}.
+         *
+         * @param code the code to emit to
+         */
+        private void invokeAction(Code code) {
+            code.op(0xB9);
+            code.u2(pool.interfaceMethodRef(ACTION, "run", "(Ljava/lang/Object;)V"));
+            code.u1(2);
+            code.u1(0);
+        }
+
+        /**
+         * Emits binding the transition view to the given transition, leaving
+         * the view on the stack.
+         *
+         * @param code the code to emit to
+         * @param transition the transition ID
+         */
+        private void bindTransition(Code code, int transition) {
+            code.op(0x2B);
+            code.pushInt(transition);
+            code.op(0xB6);
+            code.u2(pool.methodRef(TRANSITION_VIEW, "bind", "(I)L" + TRANSITION_VIEW + ";"));
+        }
+
+        /**
+         * Writes the method of the given state: its entry and do action, the
+         * choice of its transition like the execution does and leaving by it.
+         * Returns the ID of the transition taken.
+         *
+         * @param state the state ID
+         * @throws IOException never
+         */
+        private void writeState(int state) throws IOException {
+            Code code = new Code(pool);
+            code.op(0x2A);
+            code.pushInt(state);
+            code.op(0xB6);
+            code.u2(pool.methodRef(VIEW, "bind", "(I)L" + VIEW + ";"));
+            code.op(0x57);
+
+            Action<?> entryAction = graph.getEntryAction(state);
+            if (entryAction != null) {
+                int skip = code.newLabel();
+                code.op(0x1C);
+                code.branch(0x99, skip);
+                runAction(code, entryAction, 0);
+                code.mark(skip);
+            }
+            Action<?> doAction = graph.getDoAction(state);
+            if (doAction != null) {
+                runAction(code, doAction, 0);
+            }
+
+            int start = graph.getTransitionStart(state);
+            int end = graph.getEventTransitionStart(state);
+            int[] leave = new int[Math.max(end - start, 1)];
+            for (int i = 0; i < leave.length; i++) {
+                leave[i] = code.newLabel();
+            }
+            for (int t = start; t < end; t++) {
+                if (graph.getCondition(t) == null) {
+                    code.branch(0xA7, leave[t - start]);
+                } else {
+                    getField(code, graph.getCondition(t), "L" + FUNCTION + ";");
+                    bindTransition(code, t);
+                    code.op(0xB9);
+                    code.u2(pool.interfaceMethodRef(FUNCTION, "apply", "(Ljava/lang/Object;)Ljava/lang/Object;"));
+                    code.u1(2);
+                    code.u1(0);
+                    code.op(0xC0);
+                    code.u2(pool.classRef("java/lang/Boolean"));
+                    code.op(0xB6);
+                    code.u2(pool.methodRef("java/lang/Boolean", "booleanValue", "()Z"));
+                    code.branch(0x9A, leave[t - start]);
+                }
+            }
+            // the last one is taken when no condition holds
+            code.branch(0xA7, leave[leave.length - 1]);
+
+            Action<?> exitAction = graph.getExitAction(state);
+            if (end == start) {
+                code.mark(leave[0]);
+                if (exitAction != null) {
+                    runAction(code, exitAction, 0);
+                }
+                code.op(0x02);
+                code.op(0xAC);
+            }
+            for (int t = start; t < end; t++) {
+                code.mark(leave[t - start]);
+                if (exitAction != null && !graph.isSelfLoop(t)) {
+                    runAction(code, exitAction, 0);
+                }
+                Action<?> transitionAction = graph.getTransitionAction(t);
+                if (transitionAction != null) {
+                    getField(code, transitionAction, "L" + ACTION + ";");
+                    bindTransition(code, t);
+                    invokeAction(code);
+                }
+                code.pushInt(t);
+                code.op(0xAC);
+            }
+            writeMethod(0x0008 | 0x0002, "s" + state, STATE_METHOD, code, 6, 3);
+        }
+
+        /**
+         * Writes the loop switching over the states and moving along the
+         * transitions they return.
+         *
+         * @param destinationField the field of the transition destinations
+         * @param selfLoopField the field of the self loop flags
+         * @param compiledField the field of the generated state flags
+         * @return false if the method is too big to be compiled by the JIT
+         * @throws IOException never
+         */
+        private boolean writeRun(int destinationField, int selfLoopField, int compiledField) throws IOException {
+            // locals: this, execution, view, transition view, state, enter, transition
+            Code code = new Code(pool);
+            int loop = code.newLabel();
+            int next = code.newLabel();
+            int exit = code.newLabel();
+            int[] cases = new int[compiled.length];
+
+            code.pushInt(NOT_COMPILED);
+            code.op(0x36);
+            code.u1(6);
+            code.mark(loop);
+            code.op(0x15);
+            code.u1(4);
+            for (int s = 0; s < cases.length; s++) {
+                cases[s] = compiled[s] ? code.newLabel() : exit;
+            }
+            code.tableswitch(cases, exit);
+            for (int s = 0; s < cases.length; s++) {
+                if (compiled[s]) {
+                    code.mark(cases[s]);
+                    code.op(0x2C);
+                    code.op(0x2D);
+                    code.op(0x15);
+                    code.u1(5);
+                    code.op(0xB8);
+                    code.u2(pool.methodRef(name, "s" + s, STATE_METHOD));
+                    code.op(0x36);
+                    code.u1(6);
+                    code.branch(0xA7, next);
+                }
+            }
+
+            code.mark(next);
+            // stop when the execution refuses to go on or at a state not generated
+            code.op(0x2B);
+            code.op(0x15);
+            code.u1(6);
+            code.op(0xB6);
+            code.u2(pool.methodRef(EXECUTION, "advance", "(I)Z"));
+            code.branch(0x99, exit);
+            code.op(0xB2);
+            code.u2(pool.fieldRef(name, "c" + destinationField, "[I"));
+            code.op(0x15);
+            code.u1(6);
+            code.op(0x2E);
+            code.op(0x36);
+            code.u1(4);
+            code.op(0xB2);
+            code.u2(pool.fieldRef(name, "c" + compiledField, "[Z"));
+            code.op(0x15);
+            code.u1(4);
+            code.op(0x33);
+            code.branch(0x99, exit);
+            // the entry action is skipped when turning rounds
+            code.op(0xB2);
+            code.u2(pool.fieldRef(name, "c" + selfLoopField, "[Z"));
+            code.op(0x15);
+            code.u1(6);
+            code.op(0x33);
+            code.op(0x04);
+            code.op(0x82);
+            code.op(0x36);
+            code.u1(5);
+            code.branch(0xA7, loop);
+
+            code.mark(exit);
+            code.op(0x15);
+            code.u1(6);
+            code.op(0xAC);
+
+            if (code.size() > MAX_METHOD_SIZE) {
+                return false;
+            }
+            writeMethod(0x0001 | 0x0010, "run", "(L" + EXECUTION + ";L" + VIEW + ";L" + TRANSITION_VIEW + ";IZ)I", code, 4, 7);
+            return true;
+        }
+
+        /**
+         * Writes the constructor calling the one of this class.
+         *
+         * @throws IOException never
+         */
+        private void writeConstructor() throws IOException {
+            Code code = new Code(pool);
+            code.op(0x2A);
+            code.op(0xB7);
+            code.u2(pool.methodRef(SELF, "<init>", "()V"));
+            code.op(0xB1);
+            writeMethod(0x0001, "<init>", "()V", code, 1, 1);
+        }
+
+        /**
+         * Writes the static initializer taking the values of the fields from
+         * {@link CompiledDispatch#take()}.
+         *
+         * @throws IOException never
+         */
+        private void writeInitializer() throws IOException {
+            Code code = new Code(pool);
+            code.op(0xB8);
+            code.u2(pool.methodRef(SELF, "take", "()[Ljava/lang/Object;"));
+            code.op(0x4B);
+            for (int i = 0; i < constants.size(); i++) {
+                String type = constantTypes.get(i);
+                code.op(0x2A);
+                code.pushInt(i);
+                code.op(0x32);
+                code.op(0xC0);
+                code.u2(pool.classRef(type.startsWith("L") ? type.substring(1, type.length() - 1) : type));
+                code.op(0xB3);
+                code.u2(pool.fieldRef(name, "c" + i, type));
+            }
+            code.op(0xB1);
+            writeMethod(0x0008, "<clinit>", "()V", code, 3, 1);
+        }
+
+        /**
+         * Writes a method with the given code.
+         *
+         * @param access the access flags
+         * @param methodName the name
+         * @param descriptor the descriptor
+         * @param code the code
+         * @param maxStack the maximum depth of the operand stack
+         * @param maxLocals the number of locals
+         * @throws IOException never
+         */
+        private void writeMethod(int access, String methodName, String descriptor, Code code, int maxStack, int maxLocals) throws IOException {
+            byte[] bytecode = code.toByteArray();
+            DataOutputStream out = new DataOutputStream(methods);
+            out.writeShort(access);
+            out.writeShort(pool.utf8(methodName));
+            out.writeShort(pool.utf8(descriptor));
+            out.writeShort(1);
+            out.writeShort(pool.utf8("Code"));
+            out.writeInt(12 + bytecode.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(bytecode.length);
+            out.write(bytecode);
+            out.writeShort(0);
+            out.writeShort(0);
+            methodCount++;
+        }
+    }
+
+    /**
+     * The constant pool of a class file.
+     */
+    private static final class ConstantPool {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> entries = new HashMap<>();
+        private int count = 1;
+
+        private int utf8(String value) {
+            Integer index = entries.get("U" + value);
+            if (index != null) {
+                return index;
+            }
+            try {
+                out.writeByte(1);
+                out.writeUTF(value);
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+            entries.put("U" + value, count);
+            return count++;
+        }
+
+        private int classRef(String internalName) {
+            return add("C" + internalName, 7, utf8(internalName), -1);
+        }
+
+        private int nameAndType(String name, String descriptor) {
+            return add("N" + name + ' ' + descriptor, 12, utf8(name), utf8(descriptor));
+        }
+
+        private int fieldRef(String owner, String name, String descriptor) {
+            return add("F" + owner + '.' + name, 9, classRef(owner), nameAndType(name, descriptor));
+        }
+
+        private int methodRef(String owner, String name, String descriptor) {
+            return add("M" + owner + '.' + name + descriptor, 10, classRef(owner), nameAndType(name, descriptor));
+        }
+
+        private int interfaceMethodRef(String owner, String name, String descriptor) {
+            return add("I" + owner + '.' + name + descriptor, 11, classRef(owner), nameAndType(name, descriptor));
+        }
+
+        private int integer(int value) {
+            Integer index = entries.get("D" + value);
+            if (index != null) {
+                return index;
+            }
+            try {
+                out.writeByte(3);
+                out.writeInt(value);
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+            entries.put("D" + value, count);
+            return count++;
+        }
+
+        /**
+         * Adds an entry referring to one or two other entries.
+         *
+         * @param key the key of the entry
+         * @param tag the tag
+         * @param first the first index
+         * @param second the second index, negative if there is none
+         * @return the index of the entry
+         */
+        private int add(String key, int tag, int first, int second) {
+            Integer index = entries.get(key);
+            if (index != null) {
+                return index;
+            }
+            try {
+                out.writeByte(tag);
+                out.writeShort(first);
+                if (second >= 0) {
+                    out.writeShort(second);
+                }
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+            entries.put(key, count);
+            return count++;
+        }
+
+        private void write(DataOutputStream target) throws IOException {
+            if (count > 0xFFFF) {
+                throw new IllegalStateException("Too many constants.");
+            }
+            target.writeShort(count);
+            bytes.writeTo(target);
+        }
+    }
+
+    /**
+     * The bytecode of a method, with branches to labels resolved when it is
+     * done.
+     */
+    private static final class Code {
+
+        private final ConstantPool pool;
+        private byte[] bytes = new byte[256];
+        private int size;
+        private int[] labels = new int[16];
+        private int labelCount;
+        private final List<int[]> fixups = new ArrayList<>();
+
+        private Code(ConstantPool pool) {
+            this.pool = pool;
+        }
+
+        private void u1(int value) {
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, size * 2);
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        private void u2(int value) {
+            u1(value >>> 8);
+            u1(value);
+        }
+
+        private void u4(int value) {
+            u2(value >>> 16);
+            u2(value);
+        }
+
+        private void op(int opcode) {
+            u1(opcode);
+        }
+
+        /**
+         * Emits pushing the given int with the shortest instruction.
+         *
+         * @param value the value
+         */
+        private void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                op(0x03 + value);
+            } else if (value == (byte) value) {
+                op(0x10);
+                u1(value);
+            } else if (value == (short) value) {
+                op(0x11);
+                u2(value);
+            } else {
+                op(0x13);
+                u2(pool.integer(value));
+            }
+        }
+
+        private int newLabel() {
+            if (labelCount == labels.length) {
+                labels = Arrays.copyOf(labels, labelCount * 2);
+            }
+            labels[labelCount] = -1;
+            return labelCount++;
+        }
+
+        private void mark(int label) {
+            labels[label] = size;
+        }
+
+        /**
+         * Emits a branch instruction with a 16 bit offset to the given label.
+         *
+         * @param opcode the opcode
+         * @param label the label
+         */
+        private void branch(int opcode, int label) {
+            int instruction = size;
+            op(opcode);
+            fixups.add(new int[]{instruction, size, label, 2});
+            u2(0);
+        }
+
+        /**
+         * Emits a switch over the int on the stack from zero on.
+         *
+         * @param cases the labels of the cases
+         * @param otherwise the label of all other values
+         */
+        private void tableswitch(int[] cases, int otherwise) {
+            int instruction = size;
+            op(0xAA);
+            while (size % 4 != 0) {
+                u1(0);
+            }
+            fixups.add(new int[]{instruction, size, otherwise, 4});
+            u4(0);
+            u4(0);
+            u4(cases.length - 1);
+            for (int label : cases) {
+                fixups.add(new int[]{instruction, size, label, 4});
+                u4(0);
+            }
+        }
+
+        private int size() {
+            return size;
+        }
+
+        /**
+         * Returns the bytecode with all branch offsets filled in.
+         *
+         * @return the bytecode
+         */
+        private byte[] toByteArray() {
+            for (int[] fixup : fixups) {
+                int offset = labels[fixup[2]] - fixup[0];
+                int at = fixup[1];
+                if (fixup[3] == 2) {
+                    if (offset != (short) offset) {
+                        throw new IllegalStateException("Branch offset out of range.");
+                    }
+                    bytes[at] = (byte) (offset >>> 8);
+                    bytes[at + 1] = (byte) offset;
+                } else {
+                    bytes[at] = (byte) (offset >>> 24);
+                    bytes[at + 1] = (byte) (offset >>> 16);
+                    bytes[at + 2] = (byte) (offset >>> 8);
+                    bytes[at + 3] = (byte) offset;
+                }
+            }
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+
+}
@@ -0,0 +1,958 @@
+package de.iisys.libstate;
+
+import de.iisys.libstate.interfaces.Action;
+import de.iisys.libstate.interfaces.MemoryKey;
+import de.iisys.libstate.interfaces.State;
+import de.iisys.libstate.interfaces.Transition;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Immutable, baked form of a {@link StateGraph}. A compiled graph does not hold
+ * any data of a single run, so any number of {@link StateGraphExecution}s may
+ * run on it at the same time, each with its own memory.<br>
+ * States are numbered densely in the order of their registration. The
+ * transitions of all states are kept in flat arrays, the transitions of state
+ * {@code s} being found between {@link #getTransitionStart(int)} and
+ * {@link #getTransitionEnd(int)}, so running a state is array indexing and int
+ * compares only. Transitions taken on completion of the state come first,
+ * transitions triggered by events follow from
+ * {@link #getEventTransitionStart(int)} on.<br>
+ * An optimized graph drops the transitions that can never be taken and lets
+ * transitions skip pass-through states, which have no actions and leave by a
+ * single unconditional transition without action right away.<br>
+ * The {@link ValueTransition}s of a state switching on the same memory key are
+ * baked into a lookup table, so a branch of many ways costs one lookup.<br>
+ * For the tightest graphs, {@link #generateDispatch()} generates a class
+ * running the states directly, which the JIT can optimize like hand-written
+ * code.
+  */
+public class CompiledStateGraph {
+
+    /**
+     * State or transition ID standing for none.
+     */
+    public static final int NONE = -1;
+
+    private final Object[] identifications;
+    private final State[] states;
+    private final Map<Object, Integer> stateIds;
+
+    private final Action<State>[] entryActions;
+    private final Action<State>[] doActions;
+    private final Action<State>[] exitActions;
+
+    private final int[] transitionOffsets;
+    private final int[] eventOffsets;
+    private final Transition<State, State>[] transitions;
+    private final int[] transitionSources;
+    private final int[] transitionDestinations;
+    private final boolean[] selfLoops;
+    private final Class<?>[] events;
+    private final ToLongFunction<State>[] delays;
+    private final Function<Transition<State, State>, Boolean>[] conditions;
+    private final Action<Transition<State, State>>[] transitionActions;
+    private final List<Transition<State, State>>[] transitionLists;
+    private final ValueTable[] valueTables;
+    private final boolean[] tabled;
+
+    private final int[] errorHandlers;
+    private final WaitStrategy[] waitStrategies;
+
+    private final boolean[] reachable;
+    private final boolean[] folded;
+
+    private final int initialState;
+    private final MemoryLayout memoryLayout;
+    private final StateMemory initialMemory;
+    private final long fingerprint;
+    private final Object unstable;
+
+    private volatile CompiledDispatch dispatch;
+    private boolean dispatchGenerated;
+    private volatile GraphMigration migration;
+
+    /**
+     * Bakes the given state graph. The transitions of every state are copied,
+     * sorted so that conditional transitions are checked first and stored in
+     * flat arrays. Later changes of the state graph do not change the compiled
+     * graph.
+     *
+     * @param stateGraph the state graph
+     */
+    public CompiledStateGraph(StateGraph stateGraph) {
+        this(stateGraph, false);
+    }
+
+    /**
+     * Bakes the given state graph, optionally optimized. The states stay the
+     * same, so executions restored into a folded state still leave it, but no
+     * transition leads there any more.
+     *
+     * @param stateGraph the state graph
+     * @param optimize true to prune dead transitions and fold pass-through
+     * states
+     */
+    public CompiledStateGraph(StateGraph stateGraph, boolean optimize) {
+        Map<Object, State> graphStates = stateGraph.getStates();
+        Map<Object, List<Transition<State, State>>> graphTransitions = stateGraph.getTransitions();
+
+        int stateCount = graphStates.size();
+        identifications = new Object[stateCount];
+        states = new State[stateCount];
+        stateIds = new HashMap<>();
+        entryActions = newArray(Action.class, stateCount);
+        doActions = newArray(Action.class, stateCount);
+        exitActions = newArray(Action.class, stateCount);
+
+        // states equal by identification, so transitions still pointing to an overridden state find the new one
+        Map<State, Integer> definitionIds = new HashMap<>();
+        int id = 0;
+        for (Map.Entry<Object, State> entry : graphStates.entrySet()) {
+            State state = entry.getValue();
+            identifications[id] = entry.getKey();
+            states[id] = state;
+            stateIds.put(entry.getKey(), id);
+            definitionIds.put(state, id);
+            entryActions[id] = state.entryAction();
+            doActions[id] = state.doAction();
+            exitActions[id] = state.exitAction();
+            id++;
+        }
+
+        List<Transition<State, State>> flat = new ArrayList<>();
+        transitionOffsets = new int[stateCount + 1];
+        eventOffsets = new int[stateCount];
+        transitionLists = newArray(List.class, stateCount);
+        for (int s = 0; s < stateCount; s++) {
+            transitionOffsets[s] = flat.size();
+
+            List<Transition<State, State>> transitionList = graphTransitions.get(identifications[s]);
+            if (transitionList != null && !transitionList.isEmpty()) {
+                List<Transition<State, State>> completionList = new ArrayList<>();
+                List<Transition<State, State>> eventList = new ArrayList<>();
+                for (Transition<State, State> transition : transitionList) {
+                    (transition.event() == null ? completionList : eventList).add(transition);
+                }
+                sortTransitions(completionList);
+                sortTransitions(eventList);
+                if (optimize) {
+                    pruneTransitions(completionList, eventList);
+                }
+
+                flat.addAll(completionList);
+                eventOffsets[s] = flat.size();
+                flat.addAll(eventList);
+
+                completionList.addAll(eventList);
+                transitionLists[s] = Collections.unmodifiableList(completionList);
+            } else {
+                eventOffsets[s] = flat.size();
+            }
+        }
+        transitionOffsets[stateCount] = flat.size();
+
+        int transitionCount = flat.size();
+        transitions = flat.toArray(newArray(Transition.class, transitionCount));
+        transitionSources = new int[transitionCount];
+        transitionDestinations = new int[transitionCount];
+        selfLoops = new boolean[transitionCount];
+        events = new Class<?>[transitionCount];
+        delays = newArray(ToLongFunction.class, transitionCount);
+        conditions = newArray(Function.class, transitionCount);
+        transitionActions = newArray(Action.class, transitionCount);
+        for (int s = 0; s < stateCount; s++) {
+            for (int t = transitionOffsets[s]; t < transitionOffsets[s + 1]; t++) {
+                Transition<State, State> transition = transitions[t];
+                transitionSources[t] = s;
+                transitionDestinations[t] = resolve(definitionIds, transition.getDestination());
+                selfLoops[t] = transitionDestinations[t] == s;
+                events[t] = transition.event();
+                if (transition instanceof TimedTransition) {
+                    delays[t] = ((TimedTransition<State, State>) transition).delay();
+                }
+                conditions[t] = transition.condition();
+                transitionActions[t] = transition.action();
+            }
+        }
+
+        valueTables = new ValueTable[stateCount];
+        tabled = new boolean[transitionCount];
+        for (int s = 0; s < stateCount; s++) {
+            valueTables[s] = buildValueTable(s);
+        }
+
+        List<Transition<State, State>> initialTransitions = graphTransitions.get(StateGraph.Identification.INITIAL);
+        if (initialTransitions == null || initialTransitions.size() != 1) {
+            throw new UnsupportedOperationException("There are no or multiple INITIAL transitions defined, I don't know where to start. Please define one single INITIAL transition.");
+        }
+
+        errorHandlers = new int[stateCount];
+        Integer global = stateGraph.getGlobalErrorHandler() == null ? null : stateIds.get(stateGraph.getGlobalErrorHandler());
+        for (int s = 0; s < stateCount; s++) {
+            Object handler = stateGraph.getErrorTransitions().get(identifications[s]);
+            Integer handlerId = handler == null ? null : stateIds.get(handler);
+            if (handlerId == null && global != null && global != s) {
+                handlerId = global;
+            }
+            errorHandlers[s] = handlerId == null ? NONE : handlerId;
+        }
+
+        waitStrategies = new WaitStrategy[stateCount];
+        for (int s = 0; s < stateCount; s++) {
+            WaitStrategy strategy = stateGraph.getWaitStrategies().get(identifications[s]);
+            waitStrategies[s] = strategy == null ? WaitStrategy.BUSY_SPIN : strategy;
+        }
+
+        int initial = resolve(definitionIds, initialTransitions.get(0).getDestination());
+        memoryLayout = stateGraph.getMemoryLayout();
+        initialMemory = new StateMemory(memoryLayout, states[initial].getMemory()).share();
+
+        reachable = findReachable(initial);
+        folded = new boolean[stateCount];
+        if (optimize) {
+            initial = foldPassThroughStates(initial);
+        }
+        initialState = initial;
+        unstable = findUnstable();
+        fingerprint = unstable == null ? fingerprint() : 0;
+    }
+
+    /**
+     * Creates an array of a generic element type.
+     *
+     * @param <T> the element type
+     * @param type the class of the element type
+     * @param length the length of the array
+     * @return the array
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T[] newArray(Class<?> type, int length) {
+        return (T[]) Array.newInstance(type, length);
+    }
+
+    /**
+     * Finds the first state identification or memory key name that is not a
+     * string, an enum constant, a boxed primitive or null, as only these hash
+     * the same in every JVM.
+     *
+     * @return the identification or name, or null if all of them are stable
+     */
+    private Object findUnstable() {
+        for (Object identification : identifications) {
+            if (!isStable(identification)) {
+                return identification;
+            }
+        }
+        for (MemoryKey<?> key : memoryLayout.getKeys()) {
+            if (!isStable(key.getName())) {
+                return key.getName();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether the given value hashes the same in every JVM.
+     *
+     * @param value the identification or name
+     * @return true for a string, an enum constant, a boxed primitive or null
+     */
+    private static boolean isStable(Object value) {
+        if (value instanceof Number) {
+            return value.getClass().getName().startsWith("java.lang.");
+        }
+        return value == null || value instanceof String || value instanceof Enum || value instanceof Boolean || value instanceof Character;
+    }
+
+    /**
+     * Hashes the given stable value by its type and content.
+     *
+     * @param value the identification or name
+     * @return the hash
+     */
+    private static int stableHash(Object value) {
+        if (value == null || value instanceof String) {
+            return String.valueOf(value).hashCode();
+        }
+        String content = value instanceof Enum ? ((Enum<?>) value).name() : value.toString();
+        return (value.getClass().getName() + ':' + content).hashCode();
+    }
+
+    /**
+     * Hashes the identifications of the states, the transitions between them
+     * and the declared memory keys, the parts a snapshot depends on.
+     *
+     * @return the hash
+     */
+    private long fingerprint() {
+        long hash = 1125899906842597L;
+        for (Object identification : identifications) {
+            hash = 31 * hash + stableHash(identification);
+        }
+        for (int t = 0; t < transitions.length; t++) {
+            hash = 31 * hash + transitionSources[t];
+            hash = 31 * hash + transitionDestinations[t];
+            hash = 31 * hash + (events[t] == null ? 0 : events[t].getName().hashCode());
+        }
+        for (int handler : errorHandlers) {
+            hash = 31 * hash + handler;
+        }
+        for (MemoryKey<?> key : memoryLayout.getKeys()) {
+            hash = 31 * hash + stableHash(key.getName());
+            hash = 31 * hash + key.getKind();
+        }
+        return hash;
+    }
+
+    /**
+     * Sorts the given transitions so that conditional transitions are checked
+     * first.
+     *
+     * @param transitionList the transitions to sort
+     */
+    private static void sortTransitions(List<Transition<State, State>> transitionList) {
+        transitionList.sort((left, right) -> left.condition() != null ? -1 : right.condition() != null ? 1 : 0);
+    }
+
+    /**
+     * Drops the transitions of a state that can never be taken: the completion
+     * transitions after the first unconditional one, all event transitions if
+     * there is such a one, as the state never waits then, and the event
+     * transitions after an unconditional one triggered by the same or a more
+     * general event. Timed transitions are never triggered by sent events, so
+     * they neither drop nor are dropped by event transitions.
+     *
+     * @param completionList the sorted completion transitions of the state
+     * @param eventList the sorted event transitions of the state
+     */
+    private static void pruneTransitions(List<Transition<State, State>> completionList, List<Transition<State, State>> eventList) {
+        for (int i = 0; i < completionList.size(); i++) {
+            if (completionList.get(i).condition() == null) {
+                completionList.subList(i + 1, completionList.size()).clear();
+                eventList.clear();
+                return;
+            }
+        }
+        for (int i = 0; i < eventList.size(); i++) {
+            Transition<State, State> transition = eventList.get(i);
+            if (transition.condition() == null && !(transition instanceof TimedTransition)) {
+                for (int j = eventList.size() - 1; j > i; j--) {
+                    if (!(eventList.get(j) instanceof TimedTransition) && transition.event().isAssignableFrom(eventList.get(j).event())) {
+                        eventList.remove(j);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Bakes the longest run of value transitions of the given state on the
+     * same key into a lookup table and marks them, so their conditions are
+     * not checked one by one. The table is looked up where the run starts,
+     * so the transitions are chosen in the same order as by their
+     * conditions. Value transitions outside the run stay ordinary conditions.
+     *
+     * @param state the state ID
+     * @return the table, or null if the state has no value transitions
+     */
+    private ValueTable buildValueTable(int state) {
+        int end = eventOffsets[state];
+        int runStart = NONE;
+        int runLength = 0;
+        for (int t = transitionOffsets[state]; t < end;) {
+            if (!(transitions[t] instanceof ValueTransition)) {
+                t++;
+                continue;
+            }
+            Object key = ((ValueTransition<State, State>) transitions[t]).key();
+            int next = t + 1;
+            while (next < end && transitions[next] instanceof ValueTransition
+                    && key.equals(((ValueTransition<State, State>) transitions[next]).key())) {
+                next++;
+            }
+            if (next - t > runLength) {
+                runStart = t;
+                runLength = next - t;
+            }
+            t = next;
+        }
+        if (runStart == NONE) {
+            return null;
+        }
+
+        Map<Object, Integer> values = new HashMap<>();
+        for (int t = runStart; t < runStart + runLength; t++) {
+            ValueTransition<State, State> transition = (ValueTransition<State, State>) transitions[t];
+            // a second transition on the same value stays a condition, it could never hold first anyway
+            if (!values.containsKey(transition.value())) {
+                values.put(transition.value(), t);
+                tabled[t] = true;
+            }
+        }
+        return new ValueTable(((ValueTransition<State, State>) transitions[runStart]).key(), runStart, values);
+    }
+
+    /**
+     * Marks the states that can be reached from the initial state.
+     *
+     * @param initial the initial state ID
+     * @return whether each state can be reached
+     */
+    private boolean[] findReachable(int initial) {
+        boolean[] found = new boolean[states.length];
+        int[] queue = new int[states.length];
+        int size = 0;
+        found[initial] = true;
+        queue[size++] = initial;
+        for (int i = 0; i < size; i++) {
+            int s = queue[i];
+            for (int t = transitionOffsets[s]; t < transitionOffsets[s + 1]; t++) {
+                int destination = transitionDestinations[t];
+                if (destination != NONE && !found[destination]) {
+                    found[destination] = true;
+                    queue[size++] = destination;
+                }
+            }
+            int handler = errorHandlers[s];
+            if (handler != NONE && !found[handler]) {
+                found[handler] = true;
+                queue[size++] = handler;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Lets all transitions leading to a pass-through state lead to where it
+     * passes through to instead, following chains of such states. Whether a
+     * transition is a self loop stays as it was, so the exit and entry
+     * actions run as before.
+     *
+     * @param initial the initial state ID
+     * @return the initial state ID, past any pass-through states
+     */
+    private int foldPassThroughStates(int initial) {
+        int stateCount = states.length;
+        int[] passTo = new int[stateCount];
+        for (int s = 0; s < stateCount; s++) {
+            int t = transitionOffsets[s];
+            boolean passThrough = entryActions[s] == null && doActions[s] == null && exitActions[s] == null
+                    && transitionOffsets[s + 1] == t + 1 && eventOffsets[s] == t + 1
+                    && conditions[t] == null && transitionActions[t] == null && transitionDestinations[t] != s;
+            passTo[s] = passThrough ? transitionDestinations[t] : s;
+        }
+
+        int[] targets = new int[stateCount];
+        for (int s = 0; s < stateCount; s++) {
+            int target = s;
+            // a cycle of pass-through states is left as it is
+            for (int steps = 0; target != NONE && passTo[target] != target; steps++) {
+                if (steps == stateCount) {
+                    target = s;
+                    break;
+                }
+                target = passTo[target];
+            }
+            targets[s] = target;
+            folded[s] = target != s;
+        }
+
+        for (int t = 0; t < transitionDestinations.length; t++) {
+            int destination = transitionDestinations[t];
+            if (destination != NONE) {
+                transitionDestinations[t] = targets[destination];
+            }
+        }
+        return targets[initial] == NONE ? initial : targets[initial];
+    }
+
+    /**
+     * Looks up the ID of the given state definition.
+     *
+     * @param definitionIds the IDs of all registered states
+     * @param state the state to look up, may be null
+     * @return the state ID or {@link #NONE} if the state is null
+     */
+    private static int resolve(Map<State, Integer> definitionIds, State state) {
+        if (state == null) {
+            return NONE;
+        }
+
+        Integer id = definitionIds.get(state);
+        if (id == null) {
+            throw new IllegalStateException("Cannot compile transition to unregistered state '" + state + "'.");
+        }
+        return id;
+    }
+
+    /**
+     * Returns the number of states. State IDs range from zero to this number
+     * exclusive.
+     *
+     * @return the number of states
+     */
+    public int getStateCount() {
+        return states.length;
+    }
+
+    /**
+     * Returns the ID of the state registered under the given identification.
+     *
+     * @param identification the state identification
+     * @return the state ID or {@link #NONE} if there is no such state
+     */
+    public int getStateId(Object identification) {
+        Integer id = stateIds.get(identification);
+        return id == null ? NONE : id;
+    }
+
+    /**
+     * Returns the identification the state was registered under.
+     *
+     * @param state the state ID
+     * @return the state identification
+     */
+    public Object getIdentification(int state) {
+        return identifications[state];
+    }
+
+    /**
+     * Returns the state definition.
+     *
+     * @param state the state ID
+     * @return the state definition
+     */
+    public State getState(int state) {
+        return states[state];
+    }
+
+    /**
+     * Generates a class running the states of this graph with their actions
+     * and conditions as constants, used by all executions of this graph from
+     * now on. A step of an execution without listener and step recorder then
+     * runs the generated states one after the other, up to
+     * {@value CompiledDispatch#BUDGET} transitions, instead of a single one.
+     * States with asynchronous actions or event transitions are still run
+     * from the tables. If an action or condition of a generated state throws,
+     * the execution stays in the state the step started in.
+     *
+     * @return true if the class could be generated and defined, false if the
+     * executions keep using the tables
+     */
+    public synchronized boolean generateDispatch() {
+        if (!dispatchGenerated) {
+            dispatch = CompiledDispatch.generate(this);
+            dispatchGenerated = true;
+        }
+        return dispatch != null;
+    }
+
+    /**
+     * Returns the generated dispatch of this graph.
+     *
+     * @return the dispatch, or null if none has been generated
+     */
+    CompiledDispatch getDispatch() {
+        return dispatch;
+    }
+
+    /**
+     * Returns the started migration of the executions of this graph to a
+     * newer version.
+     *
+     * @return the migration, or null if this is the current version
+     */
+    public GraphMigration getMigration() {
+        return migration;
+    }
+
+    /**
+     * Publishes the given migration to the executions of this graph.
+     *
+     * @param migration the migration
+     * @throws IllegalStateException if a migration has been started already
+     */
+    synchronized void startMigration(GraphMigration migration) {
+        if (this.migration != null) {
+            throw new IllegalStateException("A migration of this graph has been started already.");
+        }
+        this.migration = migration;
+    }
+
+    /**
+     * Returns the handler state of the error transition of the given state,
+     * its own or the global one.
+     *
+     * @param state the state ID
+     * @return the handler state ID, or {@link #NONE} if failures of the state
+     * are not handled
+     */
+    public int getErrorHandler(int state) {
+        return errorHandlers[state];
+    }
+
+    /**
+     * Returns how executions wait between two rounds of the given state when
+     * it polls by a completion transition back to itself.
+     *
+     * @param state the state ID
+     * @return the wait strategy
+     */
+    public WaitStrategy getWaitStrategy(int state) {
+        return waitStrategies[state];
+    }
+
+    /**
+     * Checks whether the given state can be reached from the initial state by
+     * any transition, regardless of conditions. States that cannot are most
+     * likely a mistake in the graph.
+     *
+     * @param state the state ID
+     * @return true if the state can be reached
+     */
+    public boolean isReachable(int state) {
+        return reachable[state];
+    }
+
+    /**
+     * Returns the identifications of the states that cannot be reached from
+     * the initial state.
+     *
+     * @return the identifications of the unreachable states
+     */
+    public List<Object> getUnreachableStates() {
+        List<Object> unreachable = new ArrayList<>();
+        for (int s = 0; s < states.length; s++) {
+            if (!reachable[s]) {
+                unreachable.add(identifications[s]);
+            }
+        }
+        return unreachable;
+    }
+
+    /**
+     * Checks whether the given state is a pass-through state folded by the
+     * optimization, so transitions skip it.
+     *
+     * @param state the state ID
+     * @return true if the state has been folded
+     */
+    public boolean isFolded(int state) {
+        return folded[state];
+    }
+
+    /**
+     * Returns the ID of the state every execution starts in.
+     *
+     * @return the initial state ID
+     */
+    public int getInitialStateId() {
+        return initialState;
+    }
+
+    /**
+     * Returns the state every execution starts in.
+     *
+     * @return the initial state
+     */
+    public State getInitialState() {
+        return states[initialState];
+    }
+
+    /**
+     * Returns the layout of the memory keys declared on the state graph.
+     *
+     * @return the memory layout
+     */
+    public MemoryLayout getMemoryLayout() {
+        return memoryLayout;
+    }
+
+    /**
+     * Returns the memory every execution starts with. It is taken from the
+     * initial state when the graph is compiled.
+     *
+     * @return the unmodifiable initial memory
+     */
+    public Map<Object, Object> getInitialMemory() {
+        return Collections.unmodifiableMap(initialMemory);
+    }
+
+    /**
+     * Returns the action to execute when the state is entered from a different
+     * state.
+     *
+     * @param state the state ID
+     * @return the action, may be null
+     */
+    public Action<State> getEntryAction(int state) {
+        return entryActions[state];
+    }
+
+    /**
+     * Returns the action to always execute within the state.
+     *
+     * @param state the state ID
+     * @return the action, may be null
+     */
+    public Action<State> getDoAction(int state) {
+        return doActions[state];
+    }
+
+    /**
+     * Returns the action to execute when the state is left towards a different
+     * state.
+     *
+     * @param state the state ID
+     * @return the action, may be null
+     */
+    public Action<State> getExitAction(int state) {
+        return exitActions[state];
+    }
+
+    /**
+     * Returns the number of transitions of all states. Transition IDs range
+     * from zero to this number exclusive.
+     *
+     * @return the number of transitions
+     */
+    public int getTransitionCount() {
+        return transitions.length;
+    }
+
+    /**
+     * Returns the ID of the first transition leaving the given state.
+     *
+     * @param state the state ID
+     * @return the first transition ID
+     */
+    public int getTransitionStart(int state) {
+        return transitionOffsets[state];
+    }
+
+    /**
+     * Returns the ID after the last transition leaving the given state.
+     *
+     * @param state the state ID
+     * @return the transition ID after the last one of the state
+     */
+    public int getTransitionEnd(int state) {
+        return transitionOffsets[state + 1];
+    }
+
+    /**
+     * Returns the ID of the first transition of the given state that is
+     * triggered by an event. The transitions before are taken on completion
+     * of the state.
+     *
+     * @param state the state ID
+     * @return the first event transition ID, equal to the end if there is none
+     */
+    public int getEventTransitionStart(int state) {
+        return eventOffsets[state];
+    }
+
+    /**
+     * Checks whether the given state waits for events when none of its
+     * completion transitions can be taken.
+     *
+     * @param state the state ID
+     * @return true if the state has transitions triggered by events
+     */
+    public boolean isWaiting(int state) {
+        return eventOffsets[state] != transitionOffsets[state + 1];
+    }
+
+    /**
+     * Returns the transition definition.
+     *
+     * @param transition the transition ID
+     * @return the transition definition
+     */
+    public Transition<State, State> getTransition(int transition) {
+        return transitions[transition];
+    }
+
+    /**
+     * Returns the ID of the state the transition leaves.
+     *
+     * @param transition the transition ID
+     * @return the source state ID
+     */
+    public int getTransitionSource(int transition) {
+        return transitionSources[transition];
+    }
+
+    /**
+     * Returns the ID of the state the transition leads to.
+     *
+     * @param transition the transition ID
+     * @return the destination state ID or {@link #NONE}
+     */
+    public int getTransitionDestination(int transition) {
+        return transitionDestinations[transition];
+    }
+
+    /**
+     * Checks whether the transition leads back to its source, so neither the
+     * exit nor the entry action of the state is executed.
+     *
+     * @param transition the transition ID
+     * @return true if source and destination are the same state
+     */
+    public boolean isSelfLoop(int transition) {
+        return selfLoops[transition];
+    }
+
+    /**
+     * Returns the type of event that triggers the transition.
+     *
+     * @param transition the transition ID
+     * @return the event type, or null if the transition is taken on completion
+     */
+    public Class<?> getEvent(int transition) {
+        return events[transition];
+    }
+
+    /**
+     * Returns the delay of a timed transition, computed from its source state
+     * when an execution starts waiting there.
+     *
+     * @param transition the transition ID
+     * @return the delay in nanoseconds, or null if the transition is not timed
+     * @see TimedTransition
+     */
+    public ToLongFunction<State> getDelay(int transition) {
+        return delays[transition];
+    }
+
+    /**
+     * Returns the lookup table of the value transitions of the given state.
+     *
+     * @param state the state ID
+     * @return the table, or null if the state has no value transitions
+     */
+    ValueTable getValueTable(int state) {
+        return valueTables[state];
+    }
+
+    /**
+     * Checks whether the transition is selected by the lookup table of its
+     * source state instead of by its condition.
+     *
+     * @param transition the transition ID
+     * @return true if the transition is in a lookup table
+     * @see ValueTransition
+     */
+    public boolean isTabled(int transition) {
+        return tabled[transition];
+    }
+
+    /**
+     * Returns the condition of the transition.
+     *
+     * @param transition the transition ID
+     * @return the condition, may be null
+     */
+    public Function<Transition<State, State>, Boolean> getCondition(int transition) {
+        return conditions[transition];
+    }
+
+    /**
+     * Returns the action to execute while transferring.
+     *
+     * @param transition the transition ID
+     * @return the action, may be null
+     */
+    public Action<Transition<State, State>> getTransitionAction(int transition) {
+        return transitionActions[transition];
+    }
+
+    /**
+     * Returns the sorted transitions leaving the given state.
+     *
+     * @param state the state ID
+     * @return the transitions, or null if the state has none
+     */
+    public List<Transition<State, State>> getTransitions(int state) {
+        return transitionLists[state];
+    }
+
+    /**
+     * Returns a hash of the states, transitions and declared memory keys of
+     * this graph. Graphs built the same way have the same fingerprint, also in
+     * another JVM, so their state and transition IDs match. Therefore the state
+     * identifications and memory key names must be strings, enum constants or
+     * boxed primitives.
+     *
+     * @return the fingerprint
+     * @throws UnsupportedOperationException if an identification or name is
+     * of any other type
+     */
+    public long getFingerprint() {
+        if (unstable != null) {
+            throw new UnsupportedOperationException("The graph has no stable fingerprint, " + unstable.getClass().getName()
+                    + " is no string, enum or boxed primitive: " + unstable);
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Checks whether this graph has a stable fingerprint.
+     *
+     * @return true if {@link #getFingerprint()} can be called
+     */
+    boolean isFingerprinted() {
+        return unstable == null;
+    }
+
+    /**
+     * Creates a new execution starting in the initial state with a copy of the
+     * initial memory.
+     *
+     * @return the new execution
+     */
+    public StateGraphExecution newExecution() {
+        return new StateGraphExecution(this, initialMemory.copy());
+    }
+
+    /**
+     * Creates a new execution starting in the initial state with the given
+     * memory. A {@link StateMemory} of this graph is used by identity and
+     * changed by the execution, any other map is copied into a new one.
+     *
+     * @param memory the memory to start with
+     * @return the new execution
+     */
+    public StateGraphExecution newExecution(Map<Object, Object> memory) {
+        return new StateGraphExecution(this, toStateMemory(memory));
+    }
+
+    /**
+     * Returns the given memory as {@link StateMemory} of this graph.
+     *
+     * @param memory the memory
+     * @return the memory itself if it already has the layout of this graph,
+     * otherwise a new memory holding its entries
+     */
+    StateMemory toStateMemory(Map<Object, Object> memory) {
+        if (memory instanceof StateMemory && ((StateMemory) memory).getLayout() == memoryLayout) {
+            return (StateMemory) memory;
+        }
+        return new StateMemory(memoryLayout, memory);
+    }
+
+    @Override
+    public String toString() {
+        return "CompiledStateGraph{" + "states=" + Arrays.toString(identifications) + ", transitions=" + transitions.length + '}';
+    }
+
+}
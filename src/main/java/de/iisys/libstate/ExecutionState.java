@@ -0,0 +1,236 @@
+package de.iisys.libstate;
+
+import de.iisys.libstate.interfaces.Action;
+import de.iisys.libstate.interfaces.MemoryKey;
+import de.iisys.libstate.interfaces.State;
+import de.iisys.libstate.interfaces.Transition;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link State} handed to the {@link Action}s and conditions of a running
+ * {@link StateGraphExecution}. It takes the actions and transitions of the
+ * state definition of the compiled graph but keeps the memory in the
+ * execution, so the definition is never changed by a run.<br>
+ * The view is reused by its execution for every state, so it must not be kept
+ * after the action or condition returns.
+  */
+public final class ExecutionState implements State {
+
+    private final StateGraphExecution execution;
+    private int id;
+    private State definition;
+
+    /**
+     * Initializes the view for the given execution.
+     *
+     * @param execution the execution holding the memory
+     */
+    ExecutionState(StateGraphExecution execution) {
+        this.execution = execution;
+    }
+
+    /**
+     * Binds the view to the given state of the compiled graph.
+     *
+     * @param id the state ID
+     * @return this view
+     */
+    ExecutionState bind(int id) {
+        this.id = id;
+        this.definition = execution.getGraph().getState(id);
+        return this;
+    }
+
+    /**
+     * Returns the execution this view belongs to.
+     *
+     * @return the execution
+     */
+    public StateGraphExecution getExecution() {
+        return execution;
+    }
+
+    /**
+     * Returns the ID of the state within the compiled graph.
+     *
+     * @return the state ID
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Returns the state definition of the compiled graph.
+     *
+     * @return the state definition
+     */
+    public State getDefinition() {
+        return definition;
+    }
+
+    /**
+     * Gets the identification the state was registered under.
+     *
+     * @return the state identification
+     */
+    public Object getIdentification() {
+        return execution.getGraph().getIdentification(id);
+    }
+
+    /**
+     * Returns the event the transition being taken was triggered by.
+     *
+     * @param <E> the type of the event
+     * @return the event, or null if no event transition is being taken
+     */
+    public <E> E getEvent() {
+        return execution.getEvent();
+    }
+
+    /**
+     * Returns the last failure routed to an error transition.
+     *
+     * @return the failure, or null if there was none
+     * @see StateGraphExecution#getFailure()
+     */
+    public Object getFailure() {
+        return execution.getFailure();
+    }
+
+    @Override
+    public void fail(Object reason) {
+        execution.fail(reason);
+    }
+
+    @Override
+    public int hashCode() {
+        return id;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final ExecutionState other = (ExecutionState) obj;
+        return execution == other.execution && id == other.id;
+    }
+
+    @Override
+    public void setMemory(Map<Object, Object> memory) {
+        execution.setMemory(memory);
+    }
+
+    @Override
+    public StateMemory getMemory() {
+        return execution.getMemory();
+    }
+
+    @Override
+    public Map<Object, Object> cloneMemory() {
+        return getMemory().copy();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T get(Object key) {
+        return (T) getMemory().get(key);
+    }
+
+    @Override
+    public <T> T put(Object key, T value) {
+        getMemory().put(key, value);
+        return value;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T remove(Object key) {
+        return (T) getMemory().remove(key);
+    }
+
+    @Override
+    public <T> T get(MemoryKey<T> key) {
+        return getMemory().get(key);
+    }
+
+    @Override
+    public <T> T put(MemoryKey<T> key, T value) {
+        getMemory().put(key, value);
+        return value;
+    }
+
+    @Override
+    public int getInt(MemoryKey.OfInt key) {
+        return getMemory().getInt(key);
+    }
+
+    @Override
+    public int putInt(MemoryKey.OfInt key, int value) {
+        getMemory().putInt(key, value);
+        return value;
+    }
+
+    @Override
+    public long getLong(MemoryKey.OfLong key) {
+        return getMemory().getLong(key);
+    }
+
+    @Override
+    public long putLong(MemoryKey.OfLong key, long value) {
+        getMemory().putLong(key, value);
+        return value;
+    }
+
+    @Override
+    public double getDouble(MemoryKey.OfDouble key) {
+        return getMemory().getDouble(key);
+    }
+
+    @Override
+    public double putDouble(MemoryKey.OfDouble key, double value) {
+        getMemory().putDouble(key, value);
+        return value;
+    }
+
+    @Override
+    public Action<State> entryAction() {
+        return definition.entryAction();
+    }
+
+    @Override
+    public Action<State> doAction() {
+        return definition.doAction();
+    }
+
+    @Override
+    public Action<State> exitAction() {
+        return definition.exitAction();
+    }
+
+    /**
+     * The transitions belong to the compiled graph and cannot be changed.
+     *
+     * @param transitions ignored
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public void setTransitions(List<Transition<State, State>> transitions) {
+        throw new UnsupportedOperationException("Cannot change the transitions of a compiled state graph.");
+    }
+
+    @Override
+    public List<Transition<State, State>> getTransitions() {
+        return execution.getGraph().getTransitions(id);
+    }
+
+    @Override
+    public String toString() {
+        return "ExecutionState{" + "id=" + id + ", definition=" + definition + '}';
+    }
+
+}
@@ -0,0 +1,112 @@
+package de.iisys.libstate;
+
+import de.iisys.libstate.interfaces.Action;
+import de.iisys.libstate.interfaces.State;
+import de.iisys.libstate.interfaces.Transition;
+import java.util.function.Function;
+
+/**
+ * {@link Transition} handed to the conditions and {@link Action}s of a running
+ * {@link StateGraphExecution}. Source and destination are
+ * {@link ExecutionState}s, so they read and write the memory of the
+ * execution.<br>
+ * The view is reused by its execution for every transition, so it must not be
+ * kept after the action or condition returns.
+  */
+public final class ExecutionTransition implements Transition<State, State> {
+
+    private final CompiledStateGraph graph;
+    private final ExecutionState source;
+    private final ExecutionState destination;
+    private int id;
+    private Transition<State, State> definition;
+
+    /**
+     * Initializes the view with the state views of its execution.
+     *
+     * @param graph the compiled graph of the execution
+     * @param source the view of the current state
+     * @param destination the view to bind to the destination
+     */
+    ExecutionTransition(CompiledStateGraph graph, ExecutionState source, ExecutionState destination) {
+        this.graph = graph;
+        this.source = source;
+        this.destination = destination;
+    }
+
+    /**
+     * Binds the view to the given transition of the compiled graph. The source
+     * view is expected to be bound to the current state already.
+     *
+     * @param id the transition ID
+     * @return this view
+     */
+    ExecutionTransition bind(int id) {
+        this.id = id;
+        this.definition = graph.getTransition(id);
+        int destinationId = graph.getTransitionDestination(id);
+        if (destinationId != CompiledStateGraph.NONE) {
+            destination.bind(destinationId);
+        }
+        return this;
+    }
+
+    /**
+     * Returns the ID of the transition within the compiled graph.
+     *
+     * @return the transition ID
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Returns the transition definition of the compiled graph.
+     *
+     * @return the transition definition
+     */
+    public Transition<State, State> getDefinition() {
+        return definition;
+    }
+
+    /**
+     * Returns the event this transition is triggered by.
+     *
+     * @param <E> the type of the event
+     * @return the event, or null if the transition is taken on completion
+     */
+    public <E> E getEvent() {
+        return source.getEvent();
+    }
+
+    @Override
+    public Action<Transition<State, State>> action() {
+        return graph.getTransitionAction(id);
+    }
+
+    @Override
+    public Function<Transition<State, State>, Boolean> condition() {
+        return graph.getCondition(id);
+    }
+
+    @Override
+    public Class<?> event() {
+        return graph.getEvent(id);
+    }
+
+    @Override
+    public State getSource() {
+        return source;
+    }
+
+    @Override
+    public State getDestination() {
+        return graph.getTransitionDestination(id) == CompiledStateGraph.NONE ? null : destination;
+    }
+
+    @Override
+    public String toString() {
+        return "ExecutionTransition{" + "id=" + id + ", definition=" + definition + '}';
+    }
+
+}
@@ -0,0 +1,133 @@
+package de.iisys.libstate;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Listener emitting JDK Flight Recorder events for executed states, actions
+ * and taken transitions. The events are disabled unless a recording enables
+ * them, a disabled event costs a check and nothing else. Executions are told
+ * apart by their identity hash code.<br>
+ * Needs a Java runtime with the {@code jdk.jfr} module.
+  */
+public class FlightRecorderListener implements StateGraphListener {
+
+    @Override
+    public void stateExited(StateGraphExecution execution, int state, long nanos) {
+        StateEvent event = new StateEvent();
+        if (event.isEnabled()) {
+            event.execution = System.identityHashCode(execution);
+            event.stateId = state;
+            event.state = String.valueOf(execution.getGraph().getIdentification(state));
+            event.time = nanos;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void actionExecuted(StateGraphExecution execution, ActionType type, int id, long nanos) {
+        ActionEvent event = new ActionEvent();
+        if (event.isEnabled()) {
+            CompiledStateGraph graph = execution.getGraph();
+            event.execution = System.identityHashCode(execution);
+            event.type = type.name();
+            event.stateId = type == ActionType.TRANSITION ? graph.getTransitionSource(id) : id;
+            event.state = String.valueOf(graph.getIdentification(event.stateId));
+            event.time = nanos;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void transitionTaken(StateGraphExecution execution, int transition) {
+        TransitionEvent event = new TransitionEvent();
+        if (event.isEnabled()) {
+            CompiledStateGraph graph = execution.getGraph();
+            event.execution = System.identityHashCode(execution);
+            event.transitionId = transition;
+            event.source = String.valueOf(graph.getIdentification(graph.getTransitionSource(transition)));
+            event.destination = String.valueOf(graph.getIdentification(graph.getTransitionDestination(transition)));
+            event.commit();
+        }
+    }
+
+    /**
+     * Event of a state left by an execution.
+     */
+    @Name("de.iisys.libstate.State")
+    @Label("State")
+    @Description("A state executed by a state graph execution")
+    @Category("libState")
+    @StackTrace(false)
+    static class StateEvent extends Event {
+
+        @Label("Execution")
+        int execution;
+
+        @Label("State ID")
+        int stateId;
+
+        @Label("State")
+        String state;
+
+        @Label("Time in State")
+        @Timespan
+        long time;
+    }
+
+    /**
+     * Event of an action run by an execution.
+     */
+    @Name("de.iisys.libstate.Action")
+    @Label("Action")
+    @Description("An action run by a state graph execution")
+    @Category("libState")
+    @StackTrace(false)
+    static class ActionEvent extends Event {
+
+        @Label("Execution")
+        int execution;
+
+        @Label("Type")
+        String type;
+
+        @Label("State ID")
+        int stateId;
+
+        @Label("State")
+        String state;
+
+        @Label("Action Time")
+        @Timespan
+        long time;
+    }
+
+    /**
+     * Event of a transition taken by an execution.
+     */
+    @Name("de.iisys.libstate.Transition")
+    @Label("Transition")
+    @Description("A transition taken by a state graph execution")
+    @Category("libState")
+    @StackTrace(false)
+    static class TransitionEvent extends Event {
+
+        @Label("Execution")
+        int execution;
+
+        @Label("Transition ID")
+        int transitionId;
+
+        @Label("Source")
+        String source;
+
+        @Label("Destination")
+        String destination;
+    }
+
+}
@@ -0,0 +1,171 @@
+package de.iisys.libstate;
+
+import java.util.Arrays;
+
+/**
+ * Migration of running executions from one version of a compiled graph to
+ * the next. Every state of the old version is mapped to a state of the new
+ * one, by default to the state with the same identification, and every
+ * transition to the transition between the mapped states triggered by the
+ * same event. Self-loops only map to self-loops, to any self-loop of the
+ * mapped state if none is triggered by the same event, so an execution
+ * turning rounds does not run the entry action again after migrating.<br>
+ * Once {@link #start() started}, each execution of the old version moves to
+ * the new one by itself at its next boundary, when it is about to enter a
+ * state or waits for an event. The memory is copied into the layout of the
+ * new version, declared keys by name. An execution in a state without
+ * counterpart stays on the old version until it reaches a mapped state, one
+ * turning rounds in a state whose counterpart has no self-loop until it
+ * leaves the state.
+ * Executions of a graph without a started migration only pay a single
+ * volatile read per step.
+  */
+public final class GraphMigration {
+
+    private final CompiledStateGraph source;
+    private final CompiledStateGraph target;
+    private final int[] states;
+    private int[] transitions;
+
+    /**
+     * Initializes the migration mapping states with equal identifications.
+     *
+     * @param source the version the executions run on
+     * @param target the version they migrate to
+     */
+    public GraphMigration(CompiledStateGraph source, CompiledStateGraph target) {
+        if (source == target) {
+            throw new IllegalArgumentException("A graph cannot be migrated to itself.");
+        }
+        this.source = source;
+        this.target = target;
+        this.states = new int[source.getStateCount()];
+        for (int s = 0; s < states.length; s++) {
+            states[s] = target.getStateId(source.getIdentification(s));
+        }
+    }
+
+    /**
+     * Maps the given state of the old version to the given state of the new
+     * one.
+     *
+     * @param sourceIdentification the identification of the old state
+     * @param targetIdentification the identification of the new state, null
+     * to let executions wait in the old state until they leave it
+     * @return this migration
+     */
+    public synchronized GraphMigration map(Object sourceIdentification, Object targetIdentification) {
+        if (transitions != null) {
+            throw new IllegalStateException("The migration has been started already.");
+        }
+        int from = source.getStateId(sourceIdentification);
+        if (from == CompiledStateGraph.NONE) {
+            throw new IllegalArgumentException("There is no state '" + sourceIdentification + "' in the old version.");
+        }
+        int to = targetIdentification == null ? CompiledStateGraph.NONE : target.getStateId(targetIdentification);
+        if (targetIdentification != null && to == CompiledStateGraph.NONE) {
+            throw new IllegalArgumentException("There is no state '" + targetIdentification + "' in the new version.");
+        }
+        states[from] = to;
+        return this;
+    }
+
+    /**
+     * Starts the migration, so the executions of the old version move to the
+     * new one. The mapping cannot be changed any more.
+     *
+     * @throws IllegalStateException if a migration of the old version has
+     * been started already
+     */
+    public synchronized void start() {
+        if (transitions != null) {
+            throw new IllegalStateException("The migration has been started already.");
+        }
+        transitions = mapTransitions();
+        try {
+            source.startMigration(this);
+        } catch (IllegalStateException ex) {
+            transitions = null;
+            throw ex;
+        }
+    }
+
+    /**
+     * Maps every transition of the old version to the first transition of
+     * the new version between the mapped states triggered by the same event
+     * that is a self-loop if and only if the old one is. A self-loop without
+     * such a counterpart maps to the first self-loop of the mapped state.
+     *
+     * @return the mapped transition IDs, {@link CompiledStateGraph#NONE} for
+     * transitions without counterpart
+     */
+    private int[] mapTransitions() {
+        int[] mapped = new int[source.getTransitionCount()];
+        Arrays.fill(mapped, CompiledStateGraph.NONE);
+        for (int t = 0; t < mapped.length; t++) {
+            int from = states[source.getTransitionSource(t)];
+            int destination = source.getTransitionDestination(t);
+            int to = destination == CompiledStateGraph.NONE ? CompiledStateGraph.NONE : states[destination];
+            if (from == CompiledStateGraph.NONE || (destination != CompiledStateGraph.NONE && to == CompiledStateGraph.NONE)) {
+                continue;
+            }
+            boolean selfLoop = source.isSelfLoop(t);
+            for (int n = target.getTransitionStart(from); n < target.getTransitionEnd(from); n++) {
+                if (target.getTransitionDestination(n) == to && target.getEvent(n) == source.getEvent(t) && target.isSelfLoop(n) == selfLoop) {
+                    mapped[t] = n;
+                    break;
+                }
+            }
+            if (selfLoop && mapped[t] == CompiledStateGraph.NONE) {
+                for (int n = target.getTransitionStart(from); n < target.getTransitionEnd(from); n++) {
+                    if (target.isSelfLoop(n)) {
+                        mapped[t] = n;
+                        break;
+                    }
+                }
+            }
+        }
+        return mapped;
+    }
+
+    /**
+     * Returns the version the executions migrate from.
+     *
+     * @return the old version
+     */
+    public CompiledStateGraph getSource() {
+        return source;
+    }
+
+    /**
+     * Returns the version the executions migrate to.
+     *
+     * @return the new version
+     */
+    public CompiledStateGraph getTarget() {
+        return target;
+    }
+
+    /**
+     * Returns the state of the new version the given state is mapped to.
+     *
+     * @param state the state ID in the old version
+     * @return the state ID in the new version, or {@link CompiledStateGraph#NONE}
+     */
+    public int getTargetState(int state) {
+        return states[state];
+    }
+
+    /**
+     * Returns the transition of the new version the given transition is
+     * mapped to. Available once the migration has been started.
+     *
+     * @param transition the transition ID in the old version
+     * @return the transition ID in the new version, or
+     * {@link CompiledStateGraph#NONE}
+     */
+    public int getTargetTransition(int transition) {
+        return transitions[transition];
+    }
+
+}
@@ -0,0 +1,121 @@
+package de.iisys.libstate;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds. Durations are counted in
+ * buckets of powers of two, so percentiles are accurate up to a factor of
+ * two, which is enough to see where the time goes. Recording never allocates
+ * and may be done by many threads at the same time.
+  */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets;
+    private final LongAdder count;
+    private final LongAdder total;
+    private final LongAccumulator max;
+
+    /**
+     * Initializes an empty histogram.
+     */
+    public LatencyHistogram() {
+        buckets = new AtomicLongArray(BUCKETS);
+        count = new LongAdder();
+        total = new LongAdder();
+        max = new LongAccumulator(Math::max, 0L);
+    }
+
+    /**
+     * Records the given duration. Negative durations are recorded as zero.
+     *
+     * @param nanos the duration in nanoseconds
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0L);
+        // bucket i holds durations up to 2^(i+1) - 1
+        buckets.incrementAndGet(BUCKETS - 1 - Long.numberOfLeadingZeros(value | 1));
+        count.increment();
+        total.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Returns the number of recorded durations.
+     *
+     * @return the count
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Returns the sum of all recorded durations.
+     *
+     * @return the total in nanoseconds
+     */
+    public long getTotal() {
+        return total.sum();
+    }
+
+    /**
+     * Returns the mean of all recorded durations.
+     *
+     * @return the mean in nanoseconds, 0 if nothing has been recorded
+     */
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) total.sum() / n;
+    }
+
+    /**
+     * Returns the longest recorded duration.
+     *
+     * @return the maximum in nanoseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the upper bound of the bucket the given percentile falls into.
+     *
+     * @param percentile the percentile between 0 and 100
+     * @return the duration in nanoseconds, 0 if nothing has been recorded
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile needs to be between 0 and 100.");
+        }
+
+        long[] counts = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            n += counts[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(i >= BUCKETS - 2 ? Long.MAX_VALUE : (2L << i) - 1, getMax());
+            }
+        }
+        return getMax();
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram{" + "count=" + getCount() + ", mean=" + (long) getMean() + ", p50=" + getPercentile(50)
+                + ", p99=" + getPercentile(99) + ", max=" + getMax() + '}';
+    }
+
+}
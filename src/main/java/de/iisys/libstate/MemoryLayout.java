@@ -0,0 +1,133 @@
+package de.iisys.libstate;
+
+import de.iisys.libstate.interfaces.MemoryKey;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The {@link MemoryKey}s declared on a {@link StateGraph} and the number of
+ * slots of every kind they need. A layout is fixed when the graph is compiled
+ * and shared by the {@link StateMemory} of all executions.
+  */
+public final class MemoryLayout {
+
+    /**
+     * Layout without any declared keys.
+     */
+    public static final MemoryLayout EMPTY = new MemoryLayout(Collections.emptyList(), false);
+
+    private final Map<Object, MemoryKey<?>> keys;
+    private final int objectSlots;
+    private final int intSlots;
+    private final int longSlots;
+    private final int doubleSlots;
+    private final MemorySlab slab;
+
+    /**
+     * Initializes the layout with the given keys.
+     *
+     * @param keys the declared keys
+     * @param offHeap true to keep the primitive slots off the heap
+     */
+    MemoryLayout(Collection<MemoryKey<?>> keys, boolean offHeap) {
+        Map<Object, MemoryKey<?>> byName = new LinkedHashMap<>();
+        int[] slots = new int[4];
+        for (MemoryKey<?> key : keys) {
+            byName.put(key.getName(), key);
+            slots[key.getKind()] = Math.max(slots[key.getKind()], key.getSlot() + 1);
+        }
+
+        this.keys = Collections.unmodifiableMap(byName);
+        objectSlots = slots[MemoryKey.OBJECT];
+        intSlots = slots[MemoryKey.INT];
+        longSlots = slots[MemoryKey.LONG];
+        doubleSlots = slots[MemoryKey.DOUBLE];
+        slab = offHeap && intSlots + longSlots + doubleSlots > 0 ? new MemorySlab(this) : null;
+    }
+
+    /**
+     * Returns the key declared under the given name.
+     *
+     * @param name the name of the key
+     * @return the key, or null if the name is not declared
+     */
+    public MemoryKey<?> getKey(Object name) {
+        return keys.isEmpty() ? null : keys.get(name);
+    }
+
+    /**
+     * Returns all declared keys in the order of their declaration.
+     *
+     * @return the keys
+     */
+    public Collection<MemoryKey<?>> getKeys() {
+        return keys.values();
+    }
+
+    /**
+     * Checks whether no key is declared.
+     *
+     * @return true if there are no keys
+     */
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    /**
+     * Checks whether the int, long and double slots of the memories are kept
+     * off the heap.
+     *
+     * @return true if the primitive slots are off the heap
+     */
+    public boolean isOffHeap() {
+        return slab != null;
+    }
+
+    /**
+     * Returns the off-heap store of the primitive slots.
+     *
+     * @return the store, or null if the slots are kept in arrays
+     */
+    MemorySlab getSlab() {
+        return slab;
+    }
+
+    /**
+     * Returns the number of object slots.
+     *
+     * @return the number of slots
+     */
+    public int getObjectSlots() {
+        return objectSlots;
+    }
+
+    /**
+     * Returns the number of int slots.
+     *
+     * @return the number of slots
+     */
+    public int getIntSlots() {
+        return intSlots;
+    }
+
+    /**
+     * Returns the number of long slots.
+     *
+     * @return the number of slots
+     */
+    public int getLongSlots() {
+        return longSlots;
+    }
+
+    /**
+     * Returns the number of double slots.
+     *
+     * @return the number of slots
+     */
+    public int getDoubleSlots() {
+        return doubleSlots;
+    }
+
+}
@@ -0,0 +1,231 @@
+package de.iisys.libstate;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Off-heap store of the primitive slots of the {@link StateMemory}s of one
+ * {@link MemoryLayout}. Every memory owns a fixed-size record, numbered by
+ * its record ID, in direct buffers of about one MiB allocated as needed: the
+ * long slots first, then the double and the int slots. A record is given
+ * back when its memory is released, or, failing that, once the garbage
+ * collector has found the memory unreachable, so the store grows with the
+ * live memories only.<br>
+ * Allocating and giving back records does not lock: free records are kept
+ * on a lock-free stack, only adding a buffer is synchronized.
+  */
+final class MemorySlab {
+
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    private final int recordSize;
+    private final int recordsPerChunk;
+    private final ReferenceQueue<StateMemory> collected;
+    private final AtomicInteger next;
+    private final AtomicInteger used;
+    /**
+     * Top of the stack of free records: a version in the upper half against
+     * ABA, the record ID plus one in the lower half, zero if empty.
+     */
+    private final AtomicLong free;
+    private volatile Chunk[] chunks;
+
+    /**
+     * Initializes an empty store for the given layout.
+     *
+     * @param layout the layout of the declared keys
+     */
+    MemorySlab(MemoryLayout layout) {
+        int size = 8 * (layout.getLongSlots() + layout.getDoubleSlots()) + 4 * layout.getIntSlots();
+        this.recordSize = (size + 7) & ~7;
+        this.recordsPerChunk = Math.max(1, CHUNK_SIZE / recordSize);
+        this.collected = new ReferenceQueue<>();
+        this.next = new AtomicInteger();
+        this.used = new AtomicInteger();
+        this.free = new AtomicLong();
+        this.chunks = new Chunk[0];
+    }
+
+    /**
+     * Returns the size of a record.
+     *
+     * @return the size in bytes, a multiple of eight
+     */
+    int getRecordSize() {
+        return recordSize;
+    }
+
+    /**
+     * Returns the number of records in use. Records of unreachable memories
+     * count until they are given back by the next allocation.
+     *
+     * @return the number of records
+     */
+    int getRecordCount() {
+        return used.get();
+    }
+
+    /**
+     * Allocates a zeroed record for the given memory, given back by
+     * {@link #release(int)} or when the memory is collected.
+     *
+     * @param owner the memory
+     * @return the record ID
+     */
+    int allocate(StateMemory owner) {
+        reclaim();
+        int record = pop();
+        if (record < 0) {
+            record = next.getAndIncrement();
+            if (record / recordsPerChunk >= chunks.length) {
+                grow(record / recordsPerChunk);
+            }
+        }
+        Chunk chunk = chunks[record / recordsPerChunk];
+        int offset = getOffset(record);
+        for (int i = 0; i < recordSize; i += 8) {
+            chunk.buffer.putLong(offset + i, 0L);
+        }
+        chunk.releases.set(record % recordsPerChunk, new Release(owner, collected, record));
+        used.incrementAndGet();
+        return record;
+    }
+
+    /**
+     * Gives back the record of a memory that will not be used any more. The
+     * record may be allocated again right away.
+     *
+     * @param record the record ID
+     */
+    void release(int record) {
+        Release release = chunks[record / recordsPerChunk].releases.getAndSet(record % recordsPerChunk, null);
+        if (release != null) {
+            release.clear();
+            push(record);
+        }
+    }
+
+    /**
+     * Returns the buffer holding the given record.
+     *
+     * @param record the record ID
+     * @return the buffer
+     */
+    ByteBuffer getChunk(int record) {
+        return chunks[record / recordsPerChunk].buffer;
+    }
+
+    /**
+     * Returns the offset of the given record within its buffer.
+     *
+     * @param record the record ID
+     * @return the offset in bytes
+     */
+    int getOffset(int record) {
+        return (record % recordsPerChunk) * recordSize;
+    }
+
+    /**
+     * Adds buffers until the one with the given index exists.
+     *
+     * @param index the index of the buffer
+     */
+    private synchronized void grow(int index) {
+        Chunk[] current = chunks;
+        if (index < current.length) {
+            return;
+        }
+        Chunk[] grown = Arrays.copyOf(current, index + 1);
+        for (int i = current.length; i < grown.length; i++) {
+            grown[i] = new Chunk(recordsPerChunk * recordSize, recordsPerChunk);
+        }
+        chunks = grown;
+    }
+
+    /**
+     * Takes a record from the stack of free records.
+     *
+     * @return the record ID, or -1 if there is none
+     */
+    private int pop() {
+        while (true) {
+            long top = free.get();
+            int record = (int) top - 1;
+            if (record < 0) {
+                return -1;
+            }
+            int below = chunks[record / recordsPerChunk].links[record % recordsPerChunk];
+            if (free.compareAndSet(top, ((top >>> 32) + 1) << 32 | (below & 0xFFFFFFFFL))) {
+                return record;
+            }
+        }
+    }
+
+    /**
+     * Puts a record on the stack of free records.
+     *
+     * @param record the record ID
+     */
+    private void push(int record) {
+        used.decrementAndGet();
+        int[] links = chunks[record / recordsPerChunk].links;
+        while (true) {
+            long top = free.get();
+            links[record % recordsPerChunk] = (int) top;
+            if (free.compareAndSet(top, ((top >>> 32) + 1) << 32 | (record + 1))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gives back the records of the collected memories that have not been
+     * released.
+     */
+    private void reclaim() {
+        Release release;
+        while ((release = (Release) collected.poll()) != null) {
+            int record = release.record;
+            if (chunks[record / recordsPerChunk].releases.compareAndSet(record % recordsPerChunk, release, null)) {
+                push(record);
+            }
+        }
+    }
+
+    /**
+     * Direct buffer of records, with the free stack links and the pending
+     * releases of its records.
+     */
+    private static final class Chunk {
+
+        private final ByteBuffer buffer;
+        private final int[] links;
+        private final AtomicReferenceArray<Release> releases;
+
+        private Chunk(int size, int records) {
+            this.buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+            this.links = new int[records];
+            this.releases = new AtomicReferenceArray<>(records);
+        }
+    }
+
+    /**
+     * Reference enqueued when the memory owning a record has been collected.
+     */
+    private static final class Release extends PhantomReference<StateMemory> {
+
+        private final int record;
+
+        private Release(StateMemory owner, ReferenceQueue<StateMemory> queue, int record) {
+            super(owner, queue);
+            this.record = record;
+        }
+    }
+
+}
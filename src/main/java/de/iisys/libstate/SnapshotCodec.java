@@ -0,0 +1,535 @@
+package de.iisys.libstate;
+
+import de.iisys.libstate.interfaces.MemoryKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes executions into a compact binary snapshot and reads them back, also
+ * in another JVM, as long as the compiled graph is built the same way from
+ * state identifications and memory key names that are strings, enum constants
+ * or boxed primitives.<br>
+ * A snapshot holds the current state ID, the ID of the transition the state
+ * was entered by, the status, the queued events and the memory. Declared int,
+ * long and double values are written unboxed by slot, every other value with
+ * the {@link ValueCodec} registered for its class. Codecs for null, strings,
+ * boxed primitives and byte arrays are built in, anything else needs to be
+ * registered under a tag of its own, equal on both sides.<br>
+ * Executions can only be captured at a boundary between two states, see
+ * {@link StateGraphExecution#isAtBoundary()}, and not while they are stepped.
+ * Codecs need to be registered before the codec is used by several threads.
+  */
+public class SnapshotCodec {
+
+    /**
+     * Tags below this one are reserved for the built-in codecs.
+     */
+    public static final int FIRST_CUSTOM_TAG = 32;
+
+    private static final int MAGIC = 0x4C535331;
+
+    private static final int TAG_NULL = 0;
+    private static final int TAG_STRING = 1;
+    private static final int TAG_INTEGER = 2;
+    private static final int TAG_LONG = 3;
+    private static final int TAG_DOUBLE = 4;
+    private static final int TAG_BOOLEAN = 5;
+    private static final int TAG_FLOAT = 6;
+    private static final int TAG_SHORT = 7;
+    private static final int TAG_BYTE = 8;
+    private static final int TAG_CHARACTER = 9;
+    private static final int TAG_BYTES = 10;
+
+    private final Map<Class<?>, Registration<?>> byType;
+    private final Map<Integer, Registration<?>> byTag;
+
+    /**
+     * Initializes the codec with the built-in value codecs.
+     */
+    public SnapshotCodec() {
+        byType = new HashMap<>();
+        byTag = new HashMap<>();
+
+        add(TAG_STRING, String.class, new ValueCodec<String>() {
+            @Override
+            public void write(DataOutput out, String value) throws IOException {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                writeVarInt(out, bytes.length);
+                out.write(bytes);
+            }
+
+            @Override
+            public String read(DataInput in) throws IOException {
+                byte[] bytes = new byte[readVarInt(in)];
+                in.readFully(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+        });
+        add(TAG_INTEGER, Integer.class, new ValueCodec<Integer>() {
+            @Override
+            public void write(DataOutput out, Integer value) throws IOException {
+                writeVarLong(out, zigZag(value));
+            }
+
+            @Override
+            public Integer read(DataInput in) throws IOException {
+                return (int) unZigZag(readVarLong(in));
+            }
+        });
+        add(TAG_LONG, Long.class, new ValueCodec<Long>() {
+            @Override
+            public void write(DataOutput out, Long value) throws IOException {
+                writeVarLong(out, zigZag(value));
+            }
+
+            @Override
+            public Long read(DataInput in) throws IOException {
+                return unZigZag(readVarLong(in));
+            }
+        });
+        add(TAG_DOUBLE, Double.class, new ValueCodec<Double>() {
+            @Override
+            public void write(DataOutput out, Double value) throws IOException {
+                out.writeDouble(value);
+            }
+
+            @Override
+            public Double read(DataInput in) throws IOException {
+                return in.readDouble();
+            }
+        });
+        add(TAG_BOOLEAN, Boolean.class, new ValueCodec<Boolean>() {
+            @Override
+            public void write(DataOutput out, Boolean value) throws IOException {
+                out.writeBoolean(value);
+            }
+
+            @Override
+            public Boolean read(DataInput in) throws IOException {
+                return in.readBoolean();
+            }
+        });
+        add(TAG_FLOAT, Float.class, new ValueCodec<Float>() {
+            @Override
+            public void write(DataOutput out, Float value) throws IOException {
+                out.writeFloat(value);
+            }
+
+            @Override
+            public Float read(DataInput in) throws IOException {
+                return in.readFloat();
+            }
+        });
+        add(TAG_SHORT, Short.class, new ValueCodec<Short>() {
+            @Override
+            public void write(DataOutput out, Short value) throws IOException {
+                out.writeShort(value);
+            }
+
+            @Override
+            public Short read(DataInput in) throws IOException {
+                return in.readShort();
+            }
+        });
+        add(TAG_BYTE, Byte.class, new ValueCodec<Byte>() {
+            @Override
+            public void write(DataOutput out, Byte value) throws IOException {
+                out.writeByte(value);
+            }
+
+            @Override
+            public Byte read(DataInput in) throws IOException {
+                return in.readByte();
+            }
+        });
+        add(TAG_CHARACTER, Character.class, new ValueCodec<Character>() {
+            @Override
+            public void write(DataOutput out, Character value) throws IOException {
+                out.writeChar(value);
+            }
+
+            @Override
+            public Character read(DataInput in) throws IOException {
+                return in.readChar();
+            }
+        });
+        add(TAG_BYTES, byte[].class, new ValueCodec<byte[]>() {
+            @Override
+            public void write(DataOutput out, byte[] value) throws IOException {
+                writeVarInt(out, value.length);
+                out.write(value);
+            }
+
+            @Override
+            public byte[] read(DataInput in) throws IOException {
+                byte[] bytes = new byte[readVarInt(in)];
+                in.readFully(bytes);
+                return bytes;
+            }
+        });
+    }
+
+    /**
+     * Registers a codec for the values of exactly the given class.
+     *
+     * @param <T> the type of the values
+     * @param tag the tag written in front of every value, at least
+     * {@link #FIRST_CUSTOM_TAG}
+     * @param type the class of the values
+     * @param codec the codec
+     * @return this codec
+     */
+    public <T> SnapshotCodec register(int tag, Class<T> type, ValueCodec<T> codec) {
+        if (tag < FIRST_CUSTOM_TAG) {
+            throw new IllegalArgumentException("Tags below " + FIRST_CUSTOM_TAG + " are reserved.");
+        }
+        if (byTag.containsKey(tag) || byType.containsKey(type)) {
+            throw new IllegalStateException("There is already a codec for tag " + tag + " or " + type.getName() + ".");
+        }
+        add(tag, type, codec);
+        return this;
+    }
+
+    /**
+     * Adds a codec without checking the tag.
+     *
+     * @param <T> the type of the values
+     * @param tag the tag
+     * @param type the class of the values
+     * @param codec the codec
+     */
+    private <T> void add(int tag, Class<T> type, ValueCodec<T> codec) {
+        Registration<T> registration = new Registration<>(tag, codec);
+        byType.put(type, registration);
+        byTag.put(tag, registration);
+    }
+
+    /**
+     * Writes a snapshot of the given execution into a new array.
+     *
+     * @param execution the execution, at a boundary
+     * @return the snapshot
+     */
+    public byte[] write(StateGraphExecution execution) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try {
+            write(execution, new DataOutputStream(bytes));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes a snapshot of the given execution.
+     *
+     * @param execution the execution, at a boundary
+     * @param out the output to write to
+     * @throws IOException
+     * @throws UnsupportedOperationException if the graph has no stable
+     * fingerprint
+     */
+    public void write(StateGraphExecution execution, DataOutput out) throws IOException {
+        if (!execution.isAtBoundary()) {
+            throw new IllegalStateException("The execution is in the middle of a state and cannot be captured.");
+        }
+
+        out.writeInt(MAGIC);
+        out.writeLong(execution.getGraph().getFingerprint());
+        writeVarInt(out, execution.getStateId() + 1);
+        writeVarInt(out, execution.getComingFromTransitionId() + 1);
+        out.writeByte(execution.getStatus().ordinal());
+
+        // elapsed delays are left out, timed transitions are scheduled again on restore
+        Object[] events = execution.getQueuedEvents().stream().filter((event) -> !(event instanceof StateGraphExecution.Elapsed)).toArray();
+        writeVarInt(out, events.length);
+        for (Object event : events) {
+            writeValue(out, event);
+        }
+
+        writeMemory(out, execution.getMemory());
+    }
+
+    /**
+     * Reads an execution of the given graph from a snapshot.
+     *
+     * @param graph the compiled graph the snapshot was taken on
+     * @param snapshot the snapshot
+     * @return the execution, ready to go on where the snapshot was taken
+     */
+    public StateGraphExecution read(CompiledStateGraph graph, byte[] snapshot) {
+        try {
+            return read(graph, new DataInputStream(new ByteArrayInputStream(snapshot)));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Reads an execution of the given graph from a snapshot.
+     *
+     * @param graph the compiled graph the snapshot was taken on
+     * @param in the input to read from
+     * @return the execution, ready to go on where the snapshot was taken
+     * @throws IOException
+     */
+    public StateGraphExecution read(CompiledStateGraph graph, DataInput in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a state graph snapshot.");
+        }
+        if (in.readLong() != graph.getFingerprint()) {
+            throw new IllegalStateException("The snapshot was taken on a different state graph.");
+        }
+
+        int state = readVarInt(in) - 1;
+        int comingFrom = readVarInt(in) - 1;
+        StateGraphExecution.Status status = StateGraphExecution.Status.values()[in.readUnsignedByte()];
+
+        int eventCount = readVarInt(in);
+        Object[] events = new Object[eventCount];
+        for (int i = 0; i < eventCount; i++) {
+            events[i] = readValue(in);
+        }
+
+        StateGraphExecution execution = graph.newExecution(readMemory(in, graph.getMemoryLayout()));
+        execution.restore(state, comingFrom, status);
+        for (Object event : events) {
+            execution.getQueuedEvents().offer(event);
+        }
+        return execution;
+    }
+
+    /**
+     * Writes the given memory: the declared values by slot, then the entries
+     * of the undeclared keys.
+     *
+     * @param out the output to write to
+     * @param memory the memory
+     * @throws IOException
+     */
+    public void writeMemory(DataOutput out, StateMemory memory) throws IOException {
+        MemoryLayout layout = memory.getLayout();
+        for (MemoryKey<?> key : layout.getKeys()) {
+            switch (key.getKind()) {
+                case MemoryKey.INT:
+                    writeVarLong(out, zigZag(memory.getInt((MemoryKey.OfInt) key)));
+                    break;
+                case MemoryKey.LONG:
+                    writeVarLong(out, zigZag(memory.getLong((MemoryKey.OfLong) key)));
+                    break;
+                case MemoryKey.DOUBLE:
+                    out.writeDouble(memory.getDouble((MemoryKey.OfDouble) key));
+                    break;
+                default:
+                    writeValue(out, memory.get(key));
+            }
+        }
+
+        writeVarInt(out, memory.getUndeclaredSize());
+        for (Map.Entry<Object, Object> entry : memory.entrySet()) {
+            if (layout.getKey(entry.getKey()) == null) {
+                writeValue(out, entry.getKey());
+                writeValue(out, entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Reads a memory written by {@link #writeMemory(DataOutput, StateMemory)}.
+     *
+     * @param in the input to read from
+     * @param layout the layout of the memory
+     * @return the memory
+     * @throws IOException
+     */
+    public StateMemory readMemory(DataInput in, MemoryLayout layout) throws IOException {
+        int slots = layout.getKeys().size();
+        long[] primitives = new long[slots];
+        Object[] objects = new Object[slots];
+        int index = 0;
+        for (MemoryKey<?> key : layout.getKeys()) {
+            switch (key.getKind()) {
+                case MemoryKey.INT:
+                case MemoryKey.LONG:
+                    primitives[index] = unZigZag(readVarLong(in));
+                    break;
+                case MemoryKey.DOUBLE:
+                    primitives[index] = Double.doubleToRawLongBits(in.readDouble());
+                    break;
+                default:
+                    objects[index] = readValue(in);
+            }
+            index++;
+        }
+
+        int entryCount = readVarInt(in);
+        Map<Object, Object> entries = new HashMap<>(entryCount * 4 / 3 + 1);
+        for (int i = 0; i < entryCount; i++) {
+            Object key = readValue(in);
+            entries.put(key, readValue(in));
+        }
+
+        StateMemory memory = new StateMemory(layout, entries);
+        index = 0;
+        for (MemoryKey<?> key : layout.getKeys()) {
+            switch (key.getKind()) {
+                case MemoryKey.INT:
+                    memory.putInt((MemoryKey.OfInt) key, (int) primitives[index]);
+                    break;
+                case MemoryKey.LONG:
+                    memory.putLong((MemoryKey.OfLong) key, primitives[index]);
+                    break;
+                case MemoryKey.DOUBLE:
+                    memory.putDouble((MemoryKey.OfDouble) key, Double.longBitsToDouble(primitives[index]));
+                    break;
+                default:
+                    memory.putDeclared(key, objects[index]);
+            }
+            index++;
+        }
+        return memory;
+    }
+
+    /**
+     * Writes the given value with the tag of its codec in front.
+     *
+     * @param out the output to write to
+     * @param value the value, may be null
+     * @throws IOException
+     */
+    public void writeValue(DataOutput out, Object value) throws IOException {
+        if (value == null) {
+            writeVarInt(out, TAG_NULL);
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        Registration<Object> registration = (Registration<Object>) byType.get(value.getClass());
+        if (registration == null) {
+            throw new IllegalArgumentException("There is no codec for " + value.getClass().getName() + ".");
+        }
+        writeVarInt(out, registration.tag);
+        registration.codec.write(out, value);
+    }
+
+    /**
+     * Reads a value written by {@link #writeValue(DataOutput, Object)}.
+     *
+     * @param in the input to read from
+     * @return the value, may be null
+     * @throws IOException
+     */
+    public Object readValue(DataInput in) throws IOException {
+        int tag = readVarInt(in);
+        if (tag == TAG_NULL) {
+            return null;
+        }
+        Registration<?> registration = byTag.get(tag);
+        if (registration == null) {
+            throw new IOException("There is no codec for tag " + tag + ".");
+        }
+        return registration.codec.read(in);
+    }
+
+    /**
+     * Writes a non-negative int in 7 bit groups, small values in one byte.
+     *
+     * @param out the output to write to
+     * @param value the value
+     * @throws IOException
+     */
+    static void writeVarInt(DataOutput out, int value) throws IOException {
+        writeVarLong(out, value & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Reads an int written by {@link #writeVarInt(DataOutput, int)}.
+     *
+     * @param in the input to read from
+     * @return the value
+     * @throws IOException
+     */
+    static int readVarInt(DataInput in) throws IOException {
+        return (int) readVarLong(in);
+    }
+
+    /**
+     * Writes a long in 7 bit groups, small non-negative values in one byte.
+     *
+     * @param out the output to write to
+     * @param value the value
+     * @throws IOException
+     */
+    static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Reads a long written by {@link #writeVarLong(DataOutput, long)}.
+     *
+     * @param in the input to read from
+     * @return the value
+     * @throws IOException
+     */
+    static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length number.");
+    }
+
+    /**
+     * Maps signed values to unsigned ones, so small negative values stay
+     * small.
+     *
+     * @param value the value
+     * @return the mapped value
+     */
+    static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * Reverses {@link #zigZag(long)}.
+     *
+     * @param value the mapped value
+     * @return the value
+     */
+    static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * A registered codec and its tag.
+     *
+     * @param <T> the type of the values
+     */
+    private static final class Registration<T> {
+
+        private final int tag;
+        private final ValueCodec<T> codec;
+
+        private Registration(int tag, ValueCodec<T> codec) {
+            this.tag = tag;
+            this.codec = codec;
+        }
+    }
+
+}
@@ -1,13 +1,17 @@
 package de.iisys.libstate;
 
 import de.iisys.libstate.interfaces.Action;
+import de.iisys.libstate.interfaces.MemoryKey;
 import de.iisys.libstate.interfaces.State;
 import de.iisys.libstate.interfaces.Transition;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.function.ToLongFunction;
 
 /**
  * Class to create, register and remove transitions and states.
@@ -23,13 +27,23 @@ public class StateGraph {
 
     private Map<Object, State> states;
     private Map<Object, List<Transition<State, State>>> transitions;
+    private Map<Object, MemoryKey<?>> memoryKeys;
+    private boolean offHeapMemory;
+    private MemoryLayout memoryLayout;
+    private Map<Object, Object> errorTransitions;
+    private Object globalErrorHandler;
+    private Map<Object, WaitStrategy> waitStrategies;
 
     /**
-     * Creates a new HashMap for states and transitions.
+     * Creates a new LinkedHashMap for states and transitions, so compiling the
+     * graph numbers the states in the order of their registration.
      */
     public StateGraph() {
-        states = new HashMap<>();
-        transitions = new HashMap<>();
+        states = new LinkedHashMap<>();
+        transitions = new LinkedHashMap<>();
+        memoryKeys = new LinkedHashMap<>();
+        errorTransitions = new LinkedHashMap<>();
+        waitStrategies = new LinkedHashMap<>();
     }
 
     /**
@@ -50,6 +64,129 @@ public class StateGraph {
         return transitions;
     }
 
+    /**
+     * Gets the layout of the declared memory keys. The layout is built on the
+     * first call, which compiling the graph makes, and the same instance is
+     * returned from then on, so no more keys can be declared afterwards.
+     *
+     * @return the memory layout
+     */
+    public MemoryLayout getMemoryLayout() {
+        if (memoryLayout == null) {
+            memoryLayout = new MemoryLayout(memoryKeys.values(), offHeapMemory);
+        }
+        return memoryLayout;
+    }
+
+    /**
+     * Sets whether the declared int, long and double values are kept off the
+     * heap, in direct buffers shared by all executions of the compiled graph.
+     * Worth it for many executions with mostly primitive memory, the actions
+     * read and write the values as before. Object values and undeclared keys
+     * stay on the heap.
+     *
+     * @param offHeapMemory true to keep primitive values off the heap
+     */
+    public void setOffHeapMemory(boolean offHeapMemory) {
+        if (memoryLayout != null && offHeapMemory != this.offHeapMemory) {
+            throw new IllegalStateException("The memory layout has already been built.");
+        }
+        this.offHeapMemory = offHeapMemory;
+    }
+
+    /**
+     * Declares a memory value of the given type. The value is kept in a fixed
+     * slot of the memory of every execution and can be read and written by the
+     * returned key or by its name.
+     *
+     * @param <T> the type of the value
+     * @param name the name of the value
+     * @param type the type of the value
+     * @return the key of the value
+     */
+    public <T> MemoryKey<T> declareMemory(Object name, Class<T> type) {
+        return declare(name, type, MemoryKey.OBJECT);
+    }
+
+    /**
+     * Declares an unboxed int memory value.
+     *
+     * @param name the name of the value
+     * @return the key of the value
+     */
+    public MemoryKey.OfInt declareInt(Object name) {
+        return (MemoryKey.OfInt) declare(name, Integer.class, MemoryKey.INT);
+    }
+
+    /**
+     * Declares an unboxed long memory value.
+     *
+     * @param name the name of the value
+     * @return the key of the value
+     */
+    public MemoryKey.OfLong declareLong(Object name) {
+        return (MemoryKey.OfLong) declare(name, Long.class, MemoryKey.LONG);
+    }
+
+    /**
+     * Declares an unboxed double memory value.
+     *
+     * @param name the name of the value
+     * @return the key of the value
+     */
+    public MemoryKey.OfDouble declareDouble(Object name) {
+        return (MemoryKey.OfDouble) declare(name, Double.class, MemoryKey.DOUBLE);
+    }
+
+    /**
+     * Declares a memory value of the given kind. Declaring the same name twice
+     * returns the existing key if type and kind match. New keys can only be
+     * declared until the memory layout is built.
+     *
+     * @param <T> the type of the value
+     * @param name the name of the value
+     * @param type the type of the value
+     * @param kind the kind of slot
+     * @return the key of the value
+     */
+    @SuppressWarnings("unchecked")
+    private <T> MemoryKey<T> declare(Object name, Class<T> type, int kind) {
+        MemoryKey<?> existing = memoryKeys.get(name);
+        if (existing != null) {
+            if (existing.getKind() != kind || existing.getType() != type) {
+                throw new IllegalStateException("Memory '" + name + "' is already declared as " + existing.getType().getSimpleName() + ".");
+            }
+            return (MemoryKey<T>) existing;
+        }
+        if (memoryLayout != null) {
+            throw new IllegalStateException("Memory '" + name + "' cannot be declared, the memory layout has already been built.");
+        }
+
+        int slot = 0;
+        for (MemoryKey<?> key : memoryKeys.values()) {
+            if (key.getKind() == kind) {
+                slot++;
+            }
+        }
+
+        MemoryKey<?> key;
+        switch (kind) {
+            case MemoryKey.INT:
+                key = new BasicMemoryKey.OfInt(name, slot);
+                break;
+            case MemoryKey.LONG:
+                key = new BasicMemoryKey.OfLong(name, slot);
+                break;
+            case MemoryKey.DOUBLE:
+                key = new BasicMemoryKey.OfDouble(name, slot);
+                break;
+            default:
+                key = new BasicMemoryKey<>(name, type, kind, slot);
+        }
+        memoryKeys.put(name, key);
+        return (MemoryKey<T>) key;
+    }
+
     /**
      * Registers the state with the given identification.
      *
@@ -208,6 +345,192 @@ public class StateGraph {
      * @param action the action to execute
      */
     public void registerTransition(Object sourceIdentification, Object destinationIdentification, Function<Transition<State, State>, Boolean> condition, Action<Transition<State, State>> action) {
+        registerEventTransition(sourceIdentification, destinationIdentification, null, condition, action);
+    }
+
+    /**
+     * Registers the transition with the given source state and the destination
+     * state that is taken when an event of the given type is sent to an
+     * execution waiting in the source state.
+     *
+     * @param sourceIdentification the source state
+     * @param destinationIdentification the destination state
+     * @param event the type of event triggering the transition
+     */
+    public void registerEventTransition(Object sourceIdentification, Object destinationIdentification, Class<?> event) {
+        registerEventTransition(sourceIdentification, destinationIdentification, event, null, null);
+    }
+
+    /**
+     * Registers the transition with the given source state and the destination
+     * state that is taken when an event of the given type is sent to an
+     * execution waiting in the source state and the action to execute while
+     * transfering between the two states.
+     *
+     * @param sourceIdentification the source state
+     * @param destinationIdentification the destination state
+     * @param event the type of event triggering the transition
+     * @param action the action to execute
+     */
+    public void registerEventTransition(Object sourceIdentification, Object destinationIdentification, Class<?> event, Action<Transition<State, State>> action) {
+        registerEventTransition(sourceIdentification, destinationIdentification, event, null, action);
+    }
+
+    /**
+     * Registers the transition with the given source state and the destination
+     * state that is taken when an event of the given type is sent to an
+     * execution waiting in the source state and the condition holds. The
+     * condition and the action can read the event by
+     * {@link ExecutionTransition#getEvent()}. A transition without event is
+     * taken on completion of the source state like any other transition.
+     *
+     * @param sourceIdentification the source state
+     * @param destinationIdentification the destination state
+     * @param event the type of event triggering the transition, may be null
+     * @param condition the condition
+     * @param action the action to execute
+     */
+    public void registerEventTransition(Object sourceIdentification, Object destinationIdentification, Class<?> event, Function<Transition<State, State>, Boolean> condition, Action<Transition<State, State>> action) {
+        addTransition(sourceIdentification, destinationIdentification,
+                (source, destination) -> createTransition(source, destination, event, action, condition));
+    }
+
+    /**
+     * Registers the transition with the given source state and the destination
+     * state that is taken on completion of the source state when the memory
+     * value of the given key equals the given value. Value transitions of a
+     * state on the same key that follow each other are selected by a single
+     * lookup where the first of them would be checked.
+     *
+     * @param sourceIdentification the source state
+     * @param destinationIdentification the destination state
+     * @param key the memory key to switch on
+     * @param value the value the memory value is to equal, may be null
+     * @see ValueTransition
+     */
+    public void registerValueTransition(Object sourceIdentification, Object destinationIdentification, Object key, Object value) {
+        registerValueTransition(sourceIdentification, destinationIdentification, key, value, null);
+    }
+
+    /**
+     * Registers the transition with the given source state and the destination
+     * state that is taken on completion of the source state when the memory
+     * value of the given key equals the given value and the action to execute
+     * while transfering between the two states.
+     *
+     * @param sourceIdentification the source state
+     * @param destinationIdentification the destination state
+     * @param key the memory key to switch on
+     * @param value the value the memory value is to equal, may be null
+     * @param action the action to execute
+     * @see #registerValueTransition(Object, Object, Object, Object)
+     */
+    public void registerValueTransition(Object sourceIdentification, Object destinationIdentification, Object key, Object value, Action<Transition<State, State>> action) {
+        addTransition(sourceIdentification, destinationIdentification,
+                (source, destination) -> new ValueTransition<>(source, destination, key, value, action));
+    }
+
+    /**
+     * Registers the transition with the given source state and the destination
+     * state that is taken when an execution has waited in the source state for
+     * the given time without taking an event transition.
+     *
+     * @param sourceIdentification the source state
+     * @param destinationIdentification the destination state
+     * @param after the time to wait
+     * @see TimedTransition
+     */
+    public void registerTimedTransition(Object sourceIdentification, Object destinationIdentification, Duration after) {
+        registerTimedTransition(sourceIdentification, destinationIdentification, after, null);
+    }
+
+    /**
+     * Registers the transition with the given source state and the destination
+     * state that is taken when an execution has waited in the source state for
+     * the given time without taking an event transition and the action to
+     * execute while transfering between the two states.
+     *
+     * @param sourceIdentification the source state
+     * @param destinationIdentification the destination state
+     * @param after the time to wait
+     * @param action the action to execute
+     * @see TimedTransition
+     */
+    public void registerTimedTransition(Object sourceIdentification, Object destinationIdentification, Duration after, Action<Transition<State, State>> action) {
+        registerTimedTransition(sourceIdentification, destinationIdentification, after, null, action);
+    }
+
+    /**
+     * Registers the transition with the given source state and the destination
+     * state that is taken when an execution has waited in the source state for
+     * the given time without taking an event transition, if the condition
+     * holds then, and the action to execute while transfering between the two
+     * states. Otherwise the execution keeps waiting for the next timed
+     * transition or an event.
+     *
+     * @param sourceIdentification the source state
+     * @param destinationIdentification the destination state
+     * @param after the time to wait
+     * @param condition to check once the time has elapsed
+     * @param action the action to execute
+     * @see TimedTransition
+     */
+    public void registerTimedTransition(Object sourceIdentification, Object destinationIdentification, Duration after,
+            Function<Transition<State, State>, Boolean> condition, Action<Transition<State, State>> action) {
+        if (after == null) {
+            throw new IllegalArgumentException("The time to wait cannot be null.");
+        }
+        addTransition(sourceIdentification, destinationIdentification,
+                (source, destination) -> new TimedTransition<>(source, destination, TimedTransition.after(after), action, condition));
+    }
+
+    /**
+     * Registers the transition with the given source state and the destination
+     * state that is taken when an execution waiting in the source state
+     * reaches the point in time read from the state, unless it has taken an
+     * event transition before.
+     *
+     * @param sourceIdentification the source state
+     * @param destinationIdentification the destination state
+     * @param at the point in time in milliseconds since the epoch, read when
+     * the execution starts waiting
+     * @see TimedTransition
+     */
+    public void registerDeadlineTransition(Object sourceIdentification, Object destinationIdentification, ToLongFunction<State> at) {
+        registerDeadlineTransition(sourceIdentification, destinationIdentification, at, null);
+    }
+
+    /**
+     * Registers the transition with the given source state and the destination
+     * state that is taken when an execution waiting in the source state
+     * reaches the point in time read from the state, unless it has taken an
+     * event transition before, and the action to execute while transfering
+     * between the two states.
+     *
+     * @param sourceIdentification the source state
+     * @param destinationIdentification the destination state
+     * @param at the point in time in milliseconds since the epoch, read when
+     * the execution starts waiting
+     * @param action the action to execute
+     * @see TimedTransition
+     */
+    public void registerDeadlineTransition(Object sourceIdentification, Object destinationIdentification, ToLongFunction<State> at, Action<Transition<State, State>> action) {
+        if (at == null) {
+            throw new IllegalArgumentException("The point in time cannot be null.");
+        }
+        addTransition(sourceIdentification, destinationIdentification,
+                (source, destination) -> new TimedTransition<>(source, destination, TimedTransition.at(at), action, null));
+    }
+
+    /**
+     * Adds the transition created for the given source state and destination
+     * state to the transitions of the source.
+     *
+     * @param sourceIdentification the source state, null for the initial one
+     * @param destinationIdentification the destination state
+     * @param factory creates the transition from the source and destination
+     */
+    private void addTransition(Object sourceIdentification, Object destinationIdentification, BiFunction<State, State, Transition<State, State>> factory) {
         if (sourceIdentification == null) {
             sourceIdentification = Identification.INITIAL;
         }
@@ -231,7 +554,89 @@ public class StateGraph {
             transitions.put(sourceIdentification, transitionList = new ArrayList<>());
         }
 
-        transitionList.add(createTransition(source, destination, action, condition));
+        transitionList.add(factory.apply(source, destination));
+    }
+
+    /**
+     * Registers the error transition of the given state. When an action or
+     * condition of the state or of its transitions fails, by throwing or by
+     * {@link State#fail(Object)}, the execution goes straight to the handler
+     * state instead of failing, without exit or transition action. The
+     * handler reads the failure by {@link StateGraphExecution#getFailure()}.
+     *
+     * @param sourceIdentification the state whose failures are handled
+     * @param handlerIdentification the state handling them
+     */
+    public void registerErrorTransition(Object sourceIdentification, Object handlerIdentification) {
+        if (!states.containsKey(sourceIdentification)) {
+            throw new IllegalStateException("Cannot add error transition from unregistered source '" + sourceIdentification + "'.");
+        }
+        if (!states.containsKey(handlerIdentification)) {
+            throw new IllegalStateException("Cannot add error transition to unregistered handler '" + handlerIdentification + "'.");
+        }
+        errorTransitions.put(sourceIdentification, handlerIdentification);
+    }
+
+    /**
+     * Registers the error transition of all states without one of their own.
+     * Failures of the handler state itself are not handled.
+     *
+     * @param handlerIdentification the state handling the failures, null to
+     * remove the global error transition
+     * @see #registerErrorTransition(Object, Object)
+     */
+    public void registerGlobalErrorTransition(Object handlerIdentification) {
+        if (handlerIdentification != null && !states.containsKey(handlerIdentification)) {
+            throw new IllegalStateException("Cannot add error transition to unregistered handler '" + handlerIdentification + "'.");
+        }
+        globalErrorHandler = handlerIdentification;
+    }
+
+    /**
+     * Gets the error transitions of single states, from the source state to
+     * the handler state.
+     *
+     * @return the error transitions
+     */
+    public Map<Object, Object> getErrorTransitions() {
+        return errorTransitions;
+    }
+
+    /**
+     * Gets the handler state of the global error transition.
+     *
+     * @return the handler state, or null if there is none
+     */
+    public Object getGlobalErrorHandler() {
+        return globalErrorHandler;
+    }
+
+    /**
+     * Sets how executions wait between two rounds of the given state when it
+     * polls by a completion transition back to itself. States without a
+     * strategy turn their rounds with {@link WaitStrategy#BUSY_SPIN}.
+     *
+     * @param stateIdentification the polling state
+     * @param strategy the wait strategy, null to remove it
+     */
+    public void setWaitStrategy(Object stateIdentification, WaitStrategy strategy) {
+        if (!states.containsKey(stateIdentification)) {
+            throw new IllegalStateException("Cannot set wait strategy of unregistered state '" + stateIdentification + "'.");
+        }
+        if (strategy == null) {
+            waitStrategies.remove(stateIdentification);
+        } else {
+            waitStrategies.put(stateIdentification, strategy);
+        }
+    }
+
+    /**
+     * Gets the wait strategies of the polling states.
+     *
+     * @return the wait strategies by state
+     */
+    public Map<Object, WaitStrategy> getWaitStrategies() {
+        return waitStrategies;
     }
 
     /**
@@ -249,6 +654,24 @@ public class StateGraph {
         return new BasicTransition<>(source, destination, action, condition);
     }
 
+    /**
+     * Creates a transition with the given source state and the destination
+     * state that is triggered by the given type of event.
+     *
+     * @param source the source state
+     * @param destination the destination state
+     * @param event the type of event triggering the transition, may be null
+     * @param action the action to execute
+     * @param condition the condition
+     * @return the basic transition
+     */
+    protected BasicTransition<State, State> createTransition(State source, State destination, Class<?> event, Action<Transition<State, State>> action, Function<Transition<State, State>, Boolean> condition) {
+        if (event == null) {
+            return createTransition(source, destination, action, condition);
+        }
+        return new BasicTransition<>(source, destination, event, action, condition);
+    }
+
     /**
      * Removes the transition. Cannot remove transition from unregistered source
      * or destination.
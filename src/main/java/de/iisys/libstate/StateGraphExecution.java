@@ -0,0 +1,1245 @@
+package de.iisys.libstate;
+
+import de.iisys.libstate.StateGraphListener.ActionType;
+import de.iisys.libstate.interfaces.Action;
+import de.iisys.libstate.interfaces.AsyncAction;
+import de.iisys.libstate.interfaces.State;
+import de.iisys.libstate.interfaces.Transition;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Context of a single run of a {@link CompiledStateGraph}. An execution holds
+ * the current state, the transition it arrived by and the memory of the run,
+ * so the compiled graph itself is never changed while running.<br>
+ * Executing a state runs in phases, so an {@link AsyncAction} that has not
+ * completed yet suspends the execution between two phases and the next step
+ * goes on where it stopped.<br>
+ * An execution must only be driven by one thread at a time.
+  */
+public class StateGraphExecution {
+
+    private static final int PHASE_ENTRY = 0;
+    private static final int PHASE_DO = 1;
+    private static final int PHASE_SELECT = 2;
+    private static final int PHASE_EXIT = 3;
+    private static final int PHASE_TRANSIT = 4;
+    private static final int PHASE_MOVE = 5;
+
+    private static final int SPIN_ROUNDS = 100;
+    private static final int YIELD_ROUNDS = 100;
+    private static final long MAX_BACKOFF_NANOS = 1_000_000L;
+
+    /**
+     * Thrown within a step once a failure has been signalled, shared since it
+     * carries neither stack trace nor reason.
+     */
+    private static final Exception SIGNALLED = new Exception("Failure signalled", null, false, false) {
+    };
+
+    /**
+     * Counts the wake ups atomically, as any thread may wake the execution.
+     */
+    private static final AtomicIntegerFieldUpdater<StateGraphExecution> WAKES
+            = AtomicIntegerFieldUpdater.newUpdater(StateGraphExecution.class, "wakes");
+
+    private CompiledStateGraph graph;
+    private StateMemory memory;
+
+    private int state;
+    private int comingFromTransition;
+    private Status status;
+
+    private int phase;
+    private int nextTransition;
+    private CompletableFuture<?> pending;
+
+    private StateGraphListener listener;
+    private StepRecorder recorder;
+    private long stateStart;
+    private ActionType pendingType;
+    private int pendingId;
+    private long pendingStart;
+
+    private final Queue<Object> inbox;
+    private volatile Thread waiter;
+    private volatile Runnable wakeUp;
+    private volatile boolean cancelled;
+    private volatile boolean ended;
+    private volatile boolean halted;
+    private final Object runLock;
+    private Thread driver;
+    private boolean driverInterrupted;
+    private Object event;
+    private Object signalled;
+    private Object failure;
+    private volatile Elapsed armed;
+    private volatile int wakes;
+    private int loopWakes;
+    private int loopRounds;
+    private int budget;
+
+    private final ExecutionState stateView;
+    private final ExecutionState destinationView;
+    private ExecutionTransition transitionView;
+
+    /**
+     * Initializes the execution in the initial state of the given graph with
+     * the given memory.
+     *
+     * @param graph the compiled graph to run on
+     * @param memory the memory to start with
+     */
+    StateGraphExecution(CompiledStateGraph graph, StateMemory memory) {
+        this.graph = graph;
+        this.memory = memory;
+        this.state = graph.getInitialStateId();
+        this.comingFromTransition = CompiledStateGraph.NONE;
+        this.nextTransition = CompiledStateGraph.NONE;
+        this.status = Status.RUNNING;
+        this.inbox = new ConcurrentLinkedQueue<>();
+        this.runLock = new Object();
+
+        stateView = new ExecutionState(this);
+        destinationView = new ExecutionState(this);
+        transitionView = new ExecutionTransition(graph, stateView, destinationView);
+    }
+
+    /**
+     * Returns the compiled graph this execution runs on, which changes when
+     * it migrates to a new version.
+     *
+     * @return the graph
+     */
+    public CompiledStateGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * Returns the memory of this execution by identity.
+     *
+     * @return the memory
+     */
+    public StateMemory getMemory() {
+        return memory;
+    }
+
+    /**
+     * Replaces the memory of this execution. Maps that are no
+     * {@link StateMemory} of the graph are copied into a new one.
+     *
+     * @param memory the memory to set
+     */
+    public void setMemory(Map<Object, Object> memory) {
+        this.memory = graph.toStateMemory(memory);
+    }
+
+    /**
+     * Returns the listener notified about what this execution executes.
+     *
+     * @return the listener, or null if there is none
+     */
+    public StateGraphListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Sets the listener notified about what this execution executes. Must be
+     * set by the thread driving the execution or before it is started.
+     *
+     * @param listener the listener, null to remove it
+     */
+    public void setListener(StateGraphListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the recorder of the last steps of this execution.
+     *
+     * @return the recorder, or null if the steps are not recorded
+     */
+    public StepRecorder getRecorder() {
+        return recorder;
+    }
+
+    /**
+     * Sets the recorder of the last steps of this execution. Must be set by
+     * the thread driving the execution or before it is started.
+     *
+     * @param recorder the recorder, null to stop recording
+     */
+    public void setRecorder(StepRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Returns the ID of the state that is executed next.
+     *
+     * @return the current state ID, or {@link CompiledStateGraph#NONE} if the
+     * execution has terminated
+     */
+    public int getStateId() {
+        return state;
+    }
+
+    /**
+     * Returns the state definition that is executed next.
+     *
+     * @return the current state, or null if the execution has terminated
+     */
+    public State getState() {
+        return state == CompiledStateGraph.NONE ? null : graph.getState(state);
+    }
+
+    /**
+     * Returns the ID of the transition the current state was entered by.
+     *
+     * @return the transition ID, or {@link CompiledStateGraph#NONE} if the
+     * execution is still in its initial state
+     */
+    public int getComingFromTransitionId() {
+        return comingFromTransition;
+    }
+
+    /**
+     * Returns the status of this execution.
+     *
+     * @return the status
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Checks whether the execution has left the graph.
+     *
+     * @return true if there is no state left to execute
+     */
+    public boolean isTerminated() {
+        return status == Status.TERMINATED;
+    }
+
+    /**
+     * Returns the event the transition being taken was triggered by.
+     *
+     * @param <E> the type of the event
+     * @return the event, or null if no event transition is being taken
+     */
+    @SuppressWarnings("unchecked")
+    public <E> E getEvent() {
+        return (E) event;
+    }
+
+    /**
+     * Returns the last failure routed to an error transition: the exception
+     * thrown by an action or condition, or the reason given to
+     * {@link State#fail(Object)}. It stays until the handler state is left.
+     *
+     * @return the failure, or null if there was none
+     */
+    public Object getFailure() {
+        return failure;
+    }
+
+    /**
+     * Signals a failure of the running action or condition, taking the error
+     * transition of the current state once it returns.
+     *
+     * @param reason the reason of the failure
+     * @throws IllegalStateException if the current state has no error
+     * transition
+     */
+    void fail(Object reason) {
+        if (reason == null) {
+            throw new IllegalArgumentException("The reason of a failure cannot be null.");
+        }
+        if (state == CompiledStateGraph.NONE || graph.getErrorHandler(state) == CompiledStateGraph.NONE) {
+            throw new IllegalStateException("Failed without error transition: " + reason);
+        }
+        signalled = reason;
+    }
+
+    /**
+     * Sends an event to this execution. Events are queued and handled in order
+     * as soon as the execution waits in a state with event transitions. An
+     * event none of the transitions of the waiting state is triggered by is
+     * discarded.<br>
+     * May be called by any thread.
+     *
+     * @param event the event to send
+     */
+    public void send(Object event) {
+        inbox.offer(Objects.requireNonNull(event, "Event cannot be null."));
+        wake();
+    }
+
+    /**
+     * Wakes the execution if it polls in a state with
+     * {@link WaitStrategy#BLOCK}, so it turns the next round. A signal given
+     * while a round runs lets the following one go right away.<br>
+     * May be called by any thread.
+     */
+    public void signal() {
+        wake();
+    }
+
+    /**
+     * Sets the callback run whenever an event is sent to this execution or an
+     * asynchronous action it is suspended by completes, so a driver that gave
+     * the execution up can schedule it again.
+     *
+     * @param wakeUp the callback, null to remove it
+     */
+    void setWakeUp(Runnable wakeUp) {
+        this.wakeUp = wakeUp;
+    }
+
+    /**
+     * Cancels the execution for good: it cannot be stepped any more. A run
+     * waiting for an event or an asynchronous action ends right away, a
+     * running one at its next boundary, which
+     * {@link StateGraphRunner#run(StateGraphExecution)} reports by a
+     * {@link CancellationException}. Can be called by any thread.
+     *
+     * @param mayInterrupt true to interrupt the thread running the execution,
+     * so that blocking actions end as well
+     */
+    public void cancel(boolean mayInterrupt) {
+        cancelled = true;
+        disarm();
+        halt(mayInterrupt);
+        boolean idle;
+        synchronized (runLock) {
+            idle = driver == null;
+        }
+        if (idle) {
+            end();
+        }
+    }
+
+    /**
+     * Checks whether the execution has been cancelled.
+     *
+     * @return true if it has been cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Asks the run in progress to end at the next boundary and wakes it if it
+     * waits.
+     *
+     * @param interrupt true to interrupt the thread running the execution
+     */
+    void halt(boolean interrupt) {
+        halted = true;
+        if (interrupt) {
+            synchronized (runLock) {
+                if (driver != null && driver != Thread.currentThread()) {
+                    driver.interrupt();
+                    driverInterrupted = true;
+                }
+            }
+        }
+        wake();
+    }
+
+    /**
+     * Checks whether the run in progress has been asked to end.
+     *
+     * @return true if it is to end at the next boundary
+     */
+    boolean isHalted() {
+        return halted;
+    }
+
+    /**
+     * Registers the calling thread as the one running the execution, so that
+     * it can be halted and interrupted.
+     */
+    void enterRun() {
+        synchronized (runLock) {
+            driver = Thread.currentThread();
+        }
+        halted = cancelled;
+    }
+
+    /**
+     * Unregisters the thread running the execution and clears an interrupt
+     * caused by {@link #cancel(boolean)}. A cancelled execution is disarmed
+     * and reported as terminated here, as the cancelling thread left both
+     * to the run.
+     */
+    void exitRun() {
+        synchronized (runLock) {
+            driver = null;
+            if (driverInterrupted) {
+                driverInterrupted = false;
+                Thread.interrupted();
+            }
+        }
+        if (cancelled) {
+            disarm();
+            end();
+        }
+    }
+
+    /**
+     * Notifies the listener that the execution has terminated and gives back
+     * the off-heap record of its memory, unless done already.
+     */
+    private void end() {
+        synchronized (runLock) {
+            if (ended) {
+                return;
+            }
+            ended = true;
+        }
+        final StateGraphListener listener = this.listener;
+        if (listener != null) {
+            listener.executionTerminated(this);
+        }
+        memory.release();
+    }
+
+    /**
+     * Gives back the off-heap record of the memory of an execution that has
+     * been written to disk and is let go of.
+     */
+    void release() {
+        memory.release();
+    }
+
+    /**
+     * Unparks the thread waiting for this execution and runs the wake up
+     * callback.
+     */
+    private void wake() {
+        WAKES.incrementAndGet(this);
+        Thread thread = waiter;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+        Runnable callback = wakeUp;
+        if (callback != null) {
+            callback.run();
+        }
+    }
+
+    /**
+     * Returns the events queued for this execution, oldest first.
+     *
+     * @return the queue of events
+     */
+    Queue<Object> getQueuedEvents() {
+        return inbox;
+    }
+
+    /**
+     * Checks whether the execution is between two states: about to execute
+     * its current state, waiting for an event or terminated. Only then it can
+     * be captured by its state ID, the transition it arrived by and its
+     * memory.
+     *
+     * @return true if no state is half executed
+     */
+    public boolean isAtBoundary() {
+        return status == Status.RUNNING ? phase == PHASE_ENTRY : status != Status.SUSPENDED;
+    }
+
+    /**
+     * Puts the execution into the given state as captured at a boundary. A
+     * waiting execution does not run the entry and do action again, but the
+     * delays of its timed transitions start anew.
+     *
+     * @param state the current state ID
+     * @param comingFromTransition the ID of the transition the state was
+     * entered by
+     * @param status the status, not {@link Status#SUSPENDED}
+     */
+    void restore(int state, int comingFromTransition, Status status) {
+        if (status == Status.SUSPENDED) {
+            throw new IllegalArgumentException("A suspended execution cannot be restored.");
+        }
+        this.state = status == Status.TERMINATED ? CompiledStateGraph.NONE : state;
+        this.comingFromTransition = comingFromTransition;
+        this.status = status;
+        this.phase = status == Status.WAITING ? PHASE_SELECT : PHASE_ENTRY;
+        this.nextTransition = CompiledStateGraph.NONE;
+        this.pending = null;
+        this.pendingType = null;
+        this.event = null;
+        this.loopRounds = 0;
+        disarm();
+        if (status == Status.WAITING) {
+            arm();
+        }
+    }
+
+    /**
+     * Checks whether there are events queued for this execution.
+     *
+     * @return true if at least one event is queued
+     */
+    public boolean hasEvents() {
+        return !inbox.isEmpty();
+    }
+
+    /**
+     * Checks whether the next step would do anything: a running execution
+     * always can unless it polls with {@link WaitStrategy#BLOCK} and has not
+     * been woken since the last round, a waiting one if an event is queued
+     * and a suspended one if the action it waits for has completed. A
+     * cancelled execution never can.
+     *
+     * @return true if the execution can be stepped
+     */
+    public boolean canStep() {
+        if (cancelled) {
+            return false;
+        }
+        switch (status) {
+            case RUNNING:
+                return loopRounds == 0 || phase != PHASE_ENTRY || graph.getWaitStrategy(state) != WaitStrategy.BLOCK || wakes != loopWakes;
+            case WAITING:
+                return !inbox.isEmpty();
+            case SUSPENDED:
+                return pending.isDone();
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Parks the calling thread without using CPU until the execution can be
+     * stepped again, the run is halted or the thread is interrupted. Within a
+     * {@link ForkJoinPool} the pool is told about the blocking, so it can keep
+     * its parallelism.
+     */
+    void await() {
+        await(false, 0L);
+    }
+
+    /**
+     * Parks the calling thread like {@link #await()}, but no longer than up to
+     * the given deadline.
+     *
+     * @param timed true if there is a deadline
+     * @param deadline the deadline by {@link System#nanoTime()}
+     */
+    void await(boolean timed, long deadline) {
+        waiter = Thread.currentThread();
+        try {
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                @Override
+                public boolean block() {
+                    if (!isReleasable()) {
+                        if (timed) {
+                            LockSupport.parkNanos(StateGraphExecution.this, deadline - System.nanoTime());
+                        } else {
+                            LockSupport.park(StateGraphExecution.this);
+                        }
+                    }
+                    return isReleasable();
+                }
+
+                @Override
+                public boolean isReleasable() {
+                    return canStep() || halted || Thread.currentThread().isInterrupted()
+                            || timed && System.nanoTime() - deadline >= 0;
+                }
+            });
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            waiter = null;
+        }
+    }
+
+    /**
+     * Executes the current state and transits to the next one. A waiting
+     * execution handles the next queued event instead and stays waiting if
+     * there is none. A suspended execution goes on where it stopped once the
+     * action it waits for has completed. With a dispatch generated for the
+     * graph and neither listener nor step recorder, a step runs up to
+     * {@link CompiledDispatch#BUDGET} generated states, less if the run is
+     * halted or a migration is started meanwhile.<br>
+     * Unless an asynchronous action suspends it, the execution is at a
+     * boundary after each step, so the calling thread may turn to other
+     * executions in between.
+     *
+     * @return the status after the step
+     * @throws Exception any exception thrown by an action or condition
+     */
+    public Status step() throws Exception {
+        step(CompiledDispatch.BUDGET);
+        return status;
+    }
+
+    /**
+     * Takes one step, which may run up to the given number of generated
+     * states.
+     *
+     * @param budget the number of transitions a generated dispatch may take
+     * @return the number of steps taken, at least one
+     * @throws Exception any exception thrown by an action or condition
+     */
+    private int step(int budget) throws Exception {
+        int steps = 1;
+        GraphMigration migration = graph.getMigration();
+        if (migration != null) {
+            migrate(migration);
+        }
+        try {
+            switch (status) {
+                case RUNNING:
+                    if (phase == PHASE_ENTRY && graph.getWaitStrategy(state) != WaitStrategy.BUSY_SPIN) {
+                        // a signal from now on lets the next round go
+                        loopWakes = wakes;
+                        if (loopRounds != 0) {
+                            pause();
+                        }
+                    }
+                    if (phase == PHASE_ENTRY && listener == null && recorder == null) {
+                        CompiledDispatch dispatch = graph.getDispatch();
+                        if (dispatch != null && dispatch.isCompiled(state)) {
+                            steps = runCompiled(dispatch, budget);
+                            break;
+                        }
+                    }
+                    executeState();
+                    break;
+                case WAITING:
+                    Object next = inbox.poll();
+                    if (next != null) {
+                        dispatch(next);
+                    }
+                    break;
+                case SUSPENDED:
+                    if (pending.isDone()) {
+                        resume();
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } catch (Exception ex) {
+            Object reason = ex == SIGNALLED ? signalled : ex;
+            if (!takeErrorTransition(reason)) {
+                throw ex == SIGNALLED ? new IllegalStateException("Failed without error transition: " + reason) : ex;
+            }
+        }
+        return steps;
+    }
+
+    /**
+     * Goes straight to the handler state of the error transition of the
+     * current state, if there is one.
+     *
+     * @param reason the exception or signalled reason of the failure
+     * @return true if the failure has been handled
+     */
+    private boolean takeErrorTransition(Object reason) {
+        signalled = null;
+        final int current = state;
+        int handler = current == CompiledStateGraph.NONE ? CompiledStateGraph.NONE : graph.getErrorHandler(current);
+        if (handler == CompiledStateGraph.NONE) {
+            return false;
+        }
+
+        final StateGraphListener listener = this.listener;
+        if (listener != null) {
+            listener.stateExited(this, current, System.nanoTime() - stateStart);
+            listener.errorTransitionTaken(this, current, handler);
+        }
+        disarm();
+        loopRounds = 0;
+        failure = reason;
+        state = handler;
+        comingFromTransition = CompiledStateGraph.NONE;
+        nextTransition = CompiledStateGraph.NONE;
+        event = null;
+        pending = null;
+        pendingType = null;
+        phase = PHASE_ENTRY;
+        status = Status.RUNNING;
+        return true;
+    }
+
+    /**
+     * Steps the execution at most the given number of times. Returns early
+     * when it terminates or cannot be stepped any more, because it waits for
+     * events or an asynchronous action. Every state run by a generated
+     * dispatch counts as a step.
+     *
+     * @param maxSteps the number of steps to take at most
+     * @return the status after the last step
+     * @throws Exception any exception thrown by an action or condition
+     */
+    public Status run(int maxSteps) throws Exception {
+        for (int i = 0; i < maxSteps && canStep();) {
+            i += step(maxSteps - i);
+        }
+        return status;
+    }
+
+    /**
+     * Steps the execution until the given time has passed. Returns early when
+     * it terminates or cannot be stepped any more. The time is checked
+     * between steps, so a single long action is not interrupted.
+     *
+     * @param duration the time to step for
+     * @return the status after the last step
+     * @throws Exception any exception thrown by an action or condition
+     */
+    public Status runFor(Duration duration) throws Exception {
+        long start = System.nanoTime();
+        long nanos = duration.toNanos();
+        while (canStep()) {
+            step();
+            if (System.nanoTime() - start >= nanos) {
+                break;
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Moves this execution to the newest version of its graph if it is at a
+     * boundary and its state has a counterpart there. A waiting execution
+     * whose new state does not wait for events selects its transition again.
+     *
+     * @param migration the started migration of the current graph
+     */
+    private void migrate(GraphMigration migration) {
+        while (migration != null && (status == Status.RUNNING && phase == PHASE_ENTRY || status == Status.WAITING)) {
+            int target = migration.getTargetState(state);
+            if (target == CompiledStateGraph.NONE) {
+                return;
+            }
+            int transition = comingFromTransition == CompiledStateGraph.NONE
+                    ? CompiledStateGraph.NONE : migration.getTargetTransition(comingFromTransition);
+            // a round of a self-loop without counterpart ends on the old version, so the entry action does not run again
+            if (status == Status.RUNNING && transition == CompiledStateGraph.NONE
+                    && comingFromTransition != CompiledStateGraph.NONE && graph.isSelfLoop(comingFromTransition)) {
+                return;
+            }
+            CompiledStateGraph previous = graph;
+            CompiledStateGraph next = migration.getTarget();
+            memory = next.toStateMemory(memory);
+            graph = next;
+            state = target;
+            comingFromTransition = transition;
+            transitionView = new ExecutionTransition(next, stateView, destinationView);
+            disarm();
+            loopRounds = 0;
+            if (status == Status.WAITING && !next.isWaiting(target)) {
+                status = Status.RUNNING;
+                phase = PHASE_SELECT;
+            } else if (status == Status.WAITING) {
+                arm();
+            }
+            if (listener != null) {
+                listener.executionMigrated(this, previous);
+            }
+            migration = next.getMigration();
+        }
+    }
+
+    /**
+     * Runs the current state and the ones following it with the generated
+     * dispatch of the graph. The dispatch moves the execution along by
+     * {@link #advance(int)} after each state, so a failing action leaves it
+     * at the entry of the state it failed in.
+     *
+     * @param dispatch the generated dispatch
+     * @param budget the number of transitions to take at most
+     * @return the number of transitions taken
+     * @throws Exception any exception thrown by an action or condition
+     */
+    private int runCompiled(CompiledDispatch dispatch, int budget) throws Exception {
+        boolean enter = comingFromTransition == CompiledStateGraph.NONE || !graph.isSelfLoop(comingFromTransition);
+        this.budget = budget;
+        dispatch.run(this, stateView, transitionView, state, enter);
+        return budget - this.budget;
+    }
+
+    /**
+     * Moves the execution by the given transition for the generated dispatch
+     * and checks whether it may go on: the budget is left, the run has not
+     * been halted and no migration has been started.
+     *
+     * @param transition the transition taken, or {@link CompiledStateGraph#NONE}
+     * if a state without transitions has been left
+     * @return true if the dispatch may run the next state
+     */
+    boolean advance(int transition) {
+        budget--;
+        state = transition == CompiledStateGraph.NONE ? CompiledStateGraph.NONE : graph.getTransitionDestination(transition);
+        comingFromTransition = transition;
+        loopRounds = 0;
+        if (state == CompiledStateGraph.NONE) {
+            status = Status.TERMINATED;
+            return false;
+        }
+        return budget > 0 && !halted && graph.getMigration() == null;
+    }
+
+    /**
+     * Runs the phases of the current state from where it stopped: the entry
+     * and do action, the choice of the first completion transition that can be
+     * taken and leaving by it. A state with event transitions starts waiting
+     * if there is none, in any other state the last transition is taken when
+     * no condition holds.
+     *
+     * @throws Exception any exception thrown by an action or condition
+     */
+    private void executeState() throws Exception {
+        final CompiledStateGraph graph = this.graph;
+        final StateGraphListener listener = this.listener;
+        final int current = state;
+        ExecutionState view = stateView.bind(current);
+
+        if (phase == PHASE_ENTRY) {
+            phase = PHASE_DO;
+            if (listener != null) {
+                stateStart = System.nanoTime();
+                listener.stateEntered(this, current);
+            }
+            // when we come from a different state (or the start) and do not turn rounds from the same to the same state, execute entry action
+            Action<State> entryAction = graph.getEntryAction(current);
+            if (entryAction != null && (comingFromTransition == CompiledStateGraph.NONE || !graph.isSelfLoop(comingFromTransition))
+                    && runAction(ActionType.ENTRY, current, entryAction, view)) {
+                return;
+            }
+        }
+
+        if (phase == PHASE_DO) {
+            phase = PHASE_SELECT;
+            // always execute main action
+            Action<State> doAction = graph.getDoAction(current);
+            if (doAction != null && runAction(ActionType.DO, current, doAction, view)) {
+                return;
+            }
+        }
+
+        if (phase == PHASE_SELECT) {
+            // get the right transition, the value transitions of the table by a single lookup
+            int transition = CompiledStateGraph.NONE;
+            int end = graph.getEventTransitionStart(current);
+            ValueTable table = graph.getValueTable(current);
+            for (int t = graph.getTransitionStart(current); t < end; t++) {
+                if (table != null && t == table.getPosition()) {
+                    transition = table.lookup(memory.get(table.getKey()));
+                    if (transition != CompiledStateGraph.NONE) {
+                        if (listener != null) {
+                            listener.conditionEvaluated(this, transition, true);
+                        }
+                        break;
+                    }
+                }
+                if (!graph.isTabled(t) && holds(listener, t)) {
+                    transition = t;
+                    break;
+                }
+            }
+
+            if (transition == CompiledStateGraph.NONE) {
+                if (graph.isWaiting(current)) {
+                    status = Status.WAITING;
+                    arm();
+                    return;
+                }
+                // the last one is taken when no condition holds
+                if (end > graph.getTransitionStart(current)) {
+                    transition = end - 1;
+                }
+            }
+
+            nextTransition = transition;
+            phase = PHASE_EXIT;
+        }
+
+        leave();
+    }
+
+    /**
+     * Takes the first event transition of the waiting state that is triggered
+     * by the given event and whose condition holds. The event is discarded if
+     * there is none. The elapsed delay of a timed transition is only taken
+     * while the execution still waits for it.
+     *
+     * @param next the event
+     * @throws Exception any exception thrown by an action or condition
+     */
+    private void dispatch(Object next) throws Exception {
+        final CompiledStateGraph graph = this.graph;
+        final StateGraphListener listener = this.listener;
+        final int current = state;
+        stateView.bind(current);
+
+        event = next;
+        if (next instanceof Elapsed) {
+            Elapsed elapsed = (Elapsed) next;
+            if (elapsed == armed) {
+                armed = null;
+                if (holds(listener, elapsed.transition)) {
+                    status = Status.RUNNING;
+                    nextTransition = elapsed.transition;
+                    phase = PHASE_EXIT;
+                    leave();
+                    return;
+                }
+                arm(elapsed);
+            }
+            event = null;
+            return;
+        }
+        int end = graph.getTransitionEnd(current);
+        for (int t = graph.getEventTransitionStart(current); t < end; t++) {
+            if (graph.getEvent(t).isInstance(next)) {
+                if (holds(listener, t)) {
+                    status = Status.RUNNING;
+                    nextTransition = t;
+                    phase = PHASE_EXIT;
+                    leave();
+                    return;
+                }
+            }
+        }
+        event = null;
+    }
+
+    /**
+     * Goes on with the current state after the asynchronous action it was
+     * suspended by has completed.
+     *
+     * @throws Exception the exception the action completed with
+     */
+    private void resume() throws Exception {
+        CompletableFuture<?> done = pending;
+        pending = null;
+        status = Status.RUNNING;
+        if (pendingType != null) {
+            StateGraphListener current = listener;
+            if (current != null) {
+                current.actionExecuted(this, pendingType, pendingId, System.nanoTime() - pendingStart);
+            }
+            pendingType = null;
+        }
+        if (done.isCompletedExceptionally()) {
+            try {
+                done.join();
+            } catch (CompletionException | CancellationException ex) {
+                throw AsyncAction.unwrap(ex);
+            }
+        }
+
+        if (phase <= PHASE_SELECT) {
+            executeState();
+        } else {
+            stateView.bind(state);
+            leave();
+        }
+    }
+
+    /**
+     * Runs the phases of leaving the current state by the chosen transition
+     * from where it stopped: the exit action of the state, the action of the
+     * transition and the move to the destination.
+     *
+     * @throws Exception any exception thrown by an action
+     */
+    private void leave() throws Exception {
+        final CompiledStateGraph graph = this.graph;
+        final int current = state;
+        final int transition = nextTransition;
+
+        if (phase == PHASE_EXIT) {
+            phase = PHASE_TRANSIT;
+            // when we go to a different state (or the end) and do not turn rounds, execute exit action
+            Action<State> exitAction = graph.getExitAction(current);
+            if (exitAction != null && (transition == CompiledStateGraph.NONE || !graph.isSelfLoop(transition))
+                    && runAction(ActionType.EXIT, current, exitAction, stateView)) {
+                return;
+            }
+        }
+
+        if (phase == PHASE_TRANSIT) {
+            phase = PHASE_MOVE;
+            if (transition != CompiledStateGraph.NONE) {
+                Action<Transition<State, State>> transitionAction = graph.getTransitionAction(transition);
+                if (transitionAction != null && runAction(ActionType.TRANSITION, transition, transitionAction, transitionView.bind(transition))) {
+                    return;
+                }
+            }
+        }
+
+        final StepRecorder recorder = this.recorder;
+        if (recorder != null) {
+            recorder.record(current, transition, System.nanoTime());
+        }
+        final StateGraphListener listener = this.listener;
+        if (listener != null) {
+            listener.stateExited(this, current, System.nanoTime() - stateStart);
+            if (transition != CompiledStateGraph.NONE) {
+                listener.transitionTaken(this, transition);
+            }
+        }
+
+        // now transit, the memory stays with the execution
+        disarm();
+        loopRounds = transition != CompiledStateGraph.NONE && graph.isSelfLoop(transition)
+                && transition < graph.getEventTransitionStart(current) ? loopRounds + 1 : 0;
+        failure = null;
+        state = transition == CompiledStateGraph.NONE ? CompiledStateGraph.NONE : graph.getTransitionDestination(transition);
+        comingFromTransition = transition;
+        nextTransition = CompiledStateGraph.NONE;
+        event = null;
+        phase = PHASE_ENTRY;
+
+        if (state == CompiledStateGraph.NONE) {
+            status = Status.TERMINATED;
+            end();
+        }
+    }
+
+    /**
+     * Waits before the next round of a polling state as its wait strategy
+     * says. Blocking is left to {@link #canStep()}, so every driver parks or
+     * gives its thread back as while waiting for events.
+     */
+    private void pause() {
+        switch (graph.getWaitStrategy(state)) {
+            case YIELD:
+                Thread.yield();
+                break;
+            case BACKOFF:
+                if (loopRounds > SPIN_ROUNDS + YIELD_ROUNDS) {
+                    int doublings = Math.min(loopRounds - SPIN_ROUNDS - YIELD_ROUNDS - 1, 10);
+                    LockSupport.parkNanos(this, Math.min(1_000L << doublings, MAX_BACKOFF_NANOS));
+                } else if (loopRounds > SPIN_ROUNDS) {
+                    Thread.yield();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Schedules the timed transition of the waiting state with the shortest
+     * delay, if it has any.
+     */
+    private void arm() {
+        arm(null);
+    }
+
+    /**
+     * Schedules the timed transition of the waiting state due next after the
+     * given elapsed one, whose condition did not hold. The delays are the ones
+     * computed when the execution started waiting and count from then.
+     *
+     * @param after the elapsed transition, null to start timing
+     */
+    private void arm(Elapsed after) {
+        final CompiledStateGraph graph = this.graph;
+        final int current = state;
+        final int start = graph.getEventTransitionStart(current);
+        final int end = graph.getTransitionEnd(current);
+        long since = after == null ? System.nanoTime() : after.since;
+        long[] delays = after == null ? null : after.delays;
+        int transition = CompiledStateGraph.NONE;
+        long delay = 0L;
+        for (int t = start; t < end; t++) {
+            ToLongFunction<State> function = graph.getDelay(t);
+            if (function == null) {
+                continue;
+            }
+            if (after == null) {
+                if (delays == null) {
+                    delays = new long[end - start];
+                }
+                delays[t - start] = function.applyAsLong(stateView.bind(current));
+            }
+            long nanos = delays[t - start];
+            // due no earlier than the elapsed one, ties in the order of the transitions
+            if (after != null && (nanos < after.delay || nanos == after.delay && t <= after.transition)) {
+                continue;
+            }
+            if (transition == CompiledStateGraph.NONE || nanos < delay) {
+                transition = t;
+                delay = nanos;
+            }
+        }
+        if (transition != CompiledStateGraph.NONE) {
+            Elapsed elapsed = new Elapsed(this, transition, since, delay, delays);
+            elapsed.timeout = StateGraphTimer.getShared().schedule(elapsed, delay - (System.nanoTime() - since), TimeUnit.NANOSECONDS);
+            armed = elapsed;
+            // a cancel from another thread may have missed it
+            if (cancelled) {
+                disarm();
+            }
+        }
+    }
+
+    /**
+     * Cancels the scheduled timed transition, if there is one.
+     */
+    private void disarm() {
+        Elapsed elapsed = armed;
+        if (elapsed != null) {
+            armed = null;
+            elapsed.timeout.cancel();
+        }
+    }
+
+    /**
+     * Checks whether the execution waits for the delay of a timed transition
+     * to elapse.
+     *
+     * @return true if a timed transition is scheduled
+     */
+    boolean isTimed() {
+        return armed != null;
+    }
+
+    /**
+     * Evaluates the condition of the given transition.
+     *
+     * @param listener the listener to notify, may be null
+     * @param transition the transition ID
+     * @return true if the transition has no condition or it holds
+     * @throws Exception if the condition signalled a failure
+     */
+    private boolean holds(StateGraphListener listener, int transition) throws Exception {
+        Function<Transition<State, State>, Boolean> condition = graph.getCondition(transition);
+        if (condition == null) {
+            return true;
+        }
+        boolean holds = condition.apply(transitionView.bind(transition));
+        if (signalled != null) {
+            throw SIGNALLED;
+        }
+        if (listener != null) {
+            listener.conditionEvaluated(this, transition, holds);
+        }
+        return holds;
+    }
+
+    /**
+     * Runs the given action. An {@link AsyncAction} whose future has not
+     * completed yet suspends the execution.
+     *
+     * @param <T> the context of the action
+     * @param type the type of the action, for the listener
+     * @param id the state or transition ID of the action, for the listener
+     * @param action the action
+     * @param context the view to run the action in
+     * @return true if the execution is suspended
+     * @throws Exception any exception thrown by the action
+     */
+    private <T> boolean runAction(ActionType type, int id, Action<T> action, T context) throws Exception {
+        final StateGraphListener listener = this.listener;
+        final long start = listener == null ? 0L : System.nanoTime();
+
+        if (!(action instanceof AsyncAction)) {
+            action.run(context);
+            if (signalled != null) {
+                throw SIGNALLED;
+            }
+        } else {
+            CompletableFuture<?> future = ((AsyncAction<T>) action).runAsync(context);
+            if (signalled != null) {
+                throw SIGNALLED;
+            }
+            if (future != null && !future.isDone()) {
+                pending = future;
+                status = Status.SUSPENDED;
+                if (listener != null) {
+                    pendingType = type;
+                    pendingId = id;
+                    pendingStart = start;
+                }
+                future.whenComplete((result, failure) -> wake());
+                return true;
+            }
+            if (future != null && future.isCompletedExceptionally()) {
+                try {
+                    future.join();
+                } catch (CompletionException | CancellationException ex) {
+                    throw AsyncAction.unwrap(ex);
+                }
+            }
+        }
+
+        if (listener != null) {
+            listener.actionExecuted(this, type, id, System.nanoTime() - start);
+        }
+        return false;
+    }
+
+    /**
+     * Event sent to an execution by the timer when the delay of a timed
+     * transition has elapsed.
+     */
+    static final class Elapsed implements Runnable {
+
+        private final StateGraphExecution execution;
+        private final int transition;
+        private final long since;
+        private final long delay;
+        private final long[] delays;
+        private StateGraphTimer.Timeout timeout;
+
+        private Elapsed(StateGraphExecution execution, int transition, long since, long delay, long[] delays) {
+            this.execution = execution;
+            this.transition = transition;
+            this.since = since;
+            this.delay = delay;
+            this.delays = delays;
+        }
+
+        @Override
+        public void run() {
+            execution.send(this);
+        }
+    }
+
+    /**
+     * The status of an execution.
+     */
+    public enum Status {
+        /**
+         * The current state is executed by the next step.
+         */
+        RUNNING,
+        /**
+         * The current state has been executed and waits for an event.
+         */
+        WAITING,
+        /**
+         * An asynchronous action of the current state or transition has not
+         * completed yet.
+         */
+        SUSPENDED,
+        /**
+         * The execution has left the graph.
+         */
+        TERMINATED
+    }
+
+}
@@ -0,0 +1,222 @@
+package de.iisys.libstate;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Handle of a {@link StateGraphExecution} run by a {@link StateGraphService}.
+ * The instance runs its execution on the executor of the service until it
+ * terminates, waits for events or is suspended by an asynchronous action. A
+ * waiting or suspended instance holds no thread, sending an event or the
+ * completion of the action schedules it again. After its step budget the
+ * instance gives the thread back as well and is scheduled again right away.<br>
+ * An instance of a {@link StateGraphRegistry} passivating idle instances
+ * hands its events to the thread of its shard, which reactivates it first if
+ * necessary, so the handle stays valid while the execution is on disk.
+  */
+public class StateGraphInstance {
+
+    private volatile StateGraphExecution execution;
+    private volatile Consumer<Object> router;
+    private final Executor executor;
+    private final CompletableFuture<StateMemory> completion;
+    private final AtomicBoolean scheduled;
+    private final int stepBudget;
+
+    /**
+     * Initializes the instance for the given execution.
+     *
+     * @param execution the execution to run
+     * @param executor the executor to run on
+     * @param stepBudget the number of steps to take at most per run on the
+     * executor
+     */
+    StateGraphInstance(StateGraphExecution execution, Executor executor, int stepBudget) {
+        this.execution = execution;
+        this.executor = executor;
+        this.stepBudget = stepBudget;
+        this.completion = new CompletableFuture<>();
+        this.scheduled = new AtomicBoolean();
+
+        execution.setWakeUp(this::schedule);
+    }
+
+    /**
+     * Returns the execution of this instance. It must not be stepped by hand
+     * while the instance runs it.
+     *
+     * @return the execution, or null while it is passivated by a registry
+     */
+    public StateGraphExecution getExecution() {
+        return execution;
+    }
+
+    /**
+     * Returns the future completed with the memory of the execution when it
+     * terminates, or completed exceptionally with the exception of a failed
+     * action or condition.
+     *
+     * @return the completion
+     */
+    public CompletableFuture<StateMemory> getCompletion() {
+        return completion;
+    }
+
+    /**
+     * Sends an event to the execution and schedules the instance if it waits.
+     *
+     * @param event the event to send
+     */
+    public void send(Object event) {
+        Consumer<Object> router = this.router;
+        if (router != null) {
+            router.accept(event);
+        } else {
+            execution.send(event);
+        }
+    }
+
+    /**
+     * Cancels the instance: it is not stepped any more and its completion
+     * fails with a {@link java.util.concurrent.CancellationException}. A run
+     * of the instance in progress ends at its next boundary.
+     *
+     * @return true if the instance has been cancelled by this call, false if
+     * it was done already
+     */
+    public boolean cancel() {
+        return cancel(false);
+    }
+
+    /**
+     * Cancels the instance like {@link #cancel()}, optionally interrupting a
+     * blocking action of a run in progress.
+     *
+     * @param mayInterrupt true to interrupt the thread running the instance
+     * @return true if the instance has been cancelled by this call, false if
+     * it was done already
+     */
+    public boolean cancel(boolean mayInterrupt) {
+        boolean cancelled = completion.cancel(false);
+        StateGraphExecution execution = this.execution;
+        if (cancelled && execution != null) {
+            execution.setWakeUp(null);
+            execution.cancel(mayInterrupt);
+        }
+        return cancelled;
+    }
+
+    /**
+     * Checks whether the execution has terminated, failed or been cancelled.
+     *
+     * @return true if the instance is done
+     */
+    public boolean isDone() {
+        return completion.isDone();
+    }
+
+    /**
+     * Hands the events sent to this instance to the given router instead of
+     * the execution.
+     *
+     * @param router the router, null to send to the execution again
+     */
+    void setRouter(Consumer<Object> router) {
+        this.router = router;
+    }
+
+    /**
+     * Lets go of the execution, which has been written to disk. The instance
+     * must not be scheduled.
+     */
+    void passivate() {
+        execution.setWakeUp(null);
+        execution.release();
+        execution = null;
+    }
+
+    /**
+     * Goes on with the given execution read back from disk.
+     *
+     * @param execution the execution to run
+     */
+    void reactivate(StateGraphExecution execution) {
+        this.execution = execution;
+        if (!completion.isDone()) {
+            execution.setWakeUp(this::schedule);
+            schedule();
+        }
+    }
+
+    /**
+     * Schedules the instance on the executor unless it is scheduled already.
+     */
+    void schedule() {
+        if (!completion.isDone() && scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::drive);
+            } catch (RuntimeException ex) {
+                scheduled.set(false);
+                completion.completeExceptionally(ex);
+            }
+        }
+    }
+
+    /**
+     * Steps the execution until it terminates, waits without events to handle,
+     * is suspended or has used up its step budget, then gives the thread back.
+     */
+    private void drive() {
+        StateGraphExecution execution = this.execution;
+        try {
+            if (completion.isDone() || execution == null) {
+                return;
+            }
+            StateGraphExecution.Status status;
+            execution.enterRun();
+            try {
+                status = execution.run(stepBudget);
+            } finally {
+                execution.exitRun();
+            }
+
+            if (execution.isCancelled()) {
+                execution.setWakeUp(null);
+                completion.cancel(false);
+                return;
+            }
+            if (status == StateGraphExecution.Status.TERMINATED) {
+                execution.setWakeUp(null);
+                completion.complete(execution.getMemory());
+                return;
+            }
+        } catch (Exception ex) {
+            execution.setWakeUp(null);
+            if (execution.isCancelled()) {
+                completion.cancel(false);
+            } else {
+                completion.completeExceptionally(ex);
+            }
+            return;
+        } finally {
+            scheduled.set(false);
+        }
+
+        // an event sent or an action completed after the last check could not schedule us while we were running, or the budget is used up
+        if (execution.canStep() && execution == this.execution) {
+            schedule();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StateGraphExecution execution = this.execution;
+        if (execution == null) {
+            return "StateGraphInstance{passivated}";
+        }
+        return "StateGraphInstance{" + "state=" + execution.getStateId() + ", status=" + execution.getStatus() + '}';
+    }
+
+}
@@ -0,0 +1,187 @@
+package de.iisys.libstate;
+
+/**
+ * Listener notified by a {@link StateGraphExecution} about what it executes.
+ * States and transitions are given by their IDs in the compiled graph of the
+ * execution. All methods do nothing by default.<br>
+ * The listener is called by the thread driving the execution, in the middle
+ * of the step, so it needs to be fast. A listener shared by many executions
+ * needs to be thread safe. Executions without a listener do not measure any
+ * time.
+  */
+public interface StateGraphListener {
+
+    /**
+     * Called when the execution starts executing a state, including every
+     * round of a self loop.
+     *
+     * @param execution the execution
+     * @param state the ID of the state
+     */
+    default void stateEntered(StateGraphExecution execution, int state) {
+    }
+
+    /**
+     * Called when the execution leaves a state, after its exit action and the
+     * action of the transition taken.
+     *
+     * @param execution the execution
+     * @param state the ID of the state
+     * @param nanos the time since the state was entered, including waiting
+     * for events and asynchronous actions
+     */
+    default void stateExited(StateGraphExecution execution, int state, long nanos) {
+    }
+
+    /**
+     * Called after an action has run. The time of an asynchronous action
+     * lasts until its future completed and the execution goes on.
+     *
+     * @param execution the execution
+     * @param type the type of the action
+     * @param id the ID of the state, or of the transition for transition
+     * actions
+     * @param nanos the time the action took
+     */
+    default void actionExecuted(StateGraphExecution execution, ActionType type, int id, long nanos) {
+    }
+
+    /**
+     * Called after the condition of a transition has been evaluated.
+     *
+     * @param execution the execution
+     * @param transition the ID of the transition
+     * @param holds the result of the condition
+     */
+    default void conditionEvaluated(StateGraphExecution execution, int transition, boolean holds) {
+    }
+
+    /**
+     * Called when the execution moves along a transition to its destination.
+     *
+     * @param execution the execution
+     * @param transition the ID of the transition
+     */
+    default void transitionTaken(StateGraphExecution execution, int transition) {
+    }
+
+    /**
+     * Called when a failure of the state has been routed to the handler state
+     * of its error transition, instead of a transition being taken.
+     *
+     * @param execution the execution
+     * @param state the failed state ID
+     * @param handler the handler state ID
+     */
+    default void errorTransitionTaken(StateGraphExecution execution, int state, int handler) {
+    }
+
+    /**
+     * Called when the execution has left the graph or has been cancelled,
+     * once. A cancelled execution is reported by the thread cancelling it
+     * if no run is in progress, by the running thread at its end otherwise.
+     *
+     * @param execution the execution
+     */
+    default void executionTerminated(StateGraphExecution execution) {
+    }
+
+    /**
+     * Called when the execution has migrated to a newer version of its graph.
+     * From now on, the IDs given belong to {@link StateGraphExecution#getGraph()},
+     * so listeners bound to the previous version need to stop counting.
+     *
+     * @param execution the execution
+     * @param previous the graph the execution ran on before
+     */
+    default void executionMigrated(StateGraphExecution execution, CompiledStateGraph previous) {
+    }
+
+    /**
+     * Combines two listeners into one calling the first, then the second.
+     *
+     * @param first the first listener, may be null
+     * @param second the second listener, may be null
+     * @return the combined listener, or the other one if one of them is null
+     */
+    static StateGraphListener compose(StateGraphListener first, StateGraphListener second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        return new StateGraphListener() {
+            @Override
+            public void stateEntered(StateGraphExecution execution, int state) {
+                first.stateEntered(execution, state);
+                second.stateEntered(execution, state);
+            }
+
+            @Override
+            public void stateExited(StateGraphExecution execution, int state, long nanos) {
+                first.stateExited(execution, state, nanos);
+                second.stateExited(execution, state, nanos);
+            }
+
+            @Override
+            public void actionExecuted(StateGraphExecution execution, ActionType type, int id, long nanos) {
+                first.actionExecuted(execution, type, id, nanos);
+                second.actionExecuted(execution, type, id, nanos);
+            }
+
+            @Override
+            public void conditionEvaluated(StateGraphExecution execution, int transition, boolean holds) {
+                first.conditionEvaluated(execution, transition, holds);
+                second.conditionEvaluated(execution, transition, holds);
+            }
+
+            @Override
+            public void transitionTaken(StateGraphExecution execution, int transition) {
+                first.transitionTaken(execution, transition);
+                second.transitionTaken(execution, transition);
+            }
+
+            @Override
+            public void errorTransitionTaken(StateGraphExecution execution, int state, int handler) {
+                first.errorTransitionTaken(execution, state, handler);
+                second.errorTransitionTaken(execution, state, handler);
+            }
+
+            @Override
+            public void executionTerminated(StateGraphExecution execution) {
+                first.executionTerminated(execution);
+                second.executionTerminated(execution);
+            }
+
+            @Override
+            public void executionMigrated(StateGraphExecution execution, CompiledStateGraph previous) {
+                first.executionMigrated(execution, previous);
+                second.executionMigrated(execution, previous);
+            }
+        };
+    }
+
+    /**
+     * The type of an executed action.
+     */
+    enum ActionType {
+        /**
+         * The entry action of a state.
+         */
+        ENTRY,
+        /**
+         * The do action of a state.
+         */
+        DO,
+        /**
+         * The exit action of a state.
+         */
+        EXIT,
+        /**
+         * The action of a transition.
+         */
+        TRANSITION
+    }
+
+}
@@ -0,0 +1,205 @@
+package de.iisys.libstate;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * Listener aggregating what the executions of one compiled state graph spend
+ * their time on: per state the entries, the time spent in it and the time of
+ * its entry, do and exit actions, per transition the condition evaluations,
+ * how often it was taken and the time of its action.<br>
+ * All counters are lock-free, so one instance can be shared by all executions
+ * of the graph. Executions migrated to another version of the graph are not
+ * counted any more, as its IDs do not match.
+  */
+public class StateGraphMetrics implements StateGraphListener {
+
+    private final CompiledStateGraph graph;
+
+    private final LongAdder[] entries;
+    private final LatencyHistogram[] stateTimes;
+    private final LatencyHistogram[][] actionTimes;
+
+    private final LongAdder[] evaluations;
+    private final LongAdder[] taken;
+    private final LatencyHistogram[] transitionTimes;
+
+    /**
+     * Initializes empty metrics for the given graph.
+     *
+     * @param graph the compiled graph whose executions are measured
+     */
+    public StateGraphMetrics(CompiledStateGraph graph) {
+        this.graph = graph;
+
+        int states = graph.getStateCount();
+        entries = new LongAdder[states];
+        stateTimes = new LatencyHistogram[states];
+        actionTimes = new LatencyHistogram[3][states];
+        for (int s = 0; s < states; s++) {
+            entries[s] = new LongAdder();
+            stateTimes[s] = new LatencyHistogram();
+            for (LatencyHistogram[] times : actionTimes) {
+                times[s] = new LatencyHistogram();
+            }
+        }
+
+        int transitions = graph.getTransitionCount();
+        evaluations = new LongAdder[transitions];
+        taken = new LongAdder[transitions];
+        transitionTimes = new LatencyHistogram[transitions];
+        for (int t = 0; t < transitions; t++) {
+            evaluations[t] = new LongAdder();
+            taken[t] = new LongAdder();
+            transitionTimes[t] = new LatencyHistogram();
+        }
+    }
+
+    @Override
+    public void stateEntered(StateGraphExecution execution, int state) {
+        if (execution.getGraph() != graph) {
+            return;
+        }
+        entries[state].increment();
+    }
+
+    @Override
+    public void stateExited(StateGraphExecution execution, int state, long nanos) {
+        if (execution.getGraph() != graph) {
+            return;
+        }
+        stateTimes[state].record(nanos);
+    }
+
+    @Override
+    public void actionExecuted(StateGraphExecution execution, ActionType type, int id, long nanos) {
+        if (execution.getGraph() != graph) {
+            return;
+        }
+        if (type == ActionType.TRANSITION) {
+            transitionTimes[id].record(nanos);
+        } else {
+            actionTimes[type.ordinal()][id].record(nanos);
+        }
+    }
+
+    @Override
+    public void conditionEvaluated(StateGraphExecution execution, int transition, boolean holds) {
+        if (execution.getGraph() != graph) {
+            return;
+        }
+        evaluations[transition].increment();
+    }
+
+    @Override
+    public void transitionTaken(StateGraphExecution execution, int transition) {
+        if (execution.getGraph() != graph) {
+            return;
+        }
+        taken[transition].increment();
+    }
+
+    /**
+     * Returns the compiled graph these metrics belong to.
+     *
+     * @return the graph
+     */
+    public CompiledStateGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * Returns how often the given state has been entered.
+     *
+     * @param state the state ID
+     * @return the number of entries
+     */
+    public long getEntries(int state) {
+        return entries[state].sum();
+    }
+
+    /**
+     * Returns the times from entering to leaving the given state.
+     *
+     * @param state the state ID
+     * @return the histogram
+     */
+    public LatencyHistogram getStateTime(int state) {
+        return stateTimes[state];
+    }
+
+    /**
+     * Returns the times of the entry, do or exit action of the given state.
+     *
+     * @param type the type of the action, not
+     * {@link StateGraphListener.ActionType#TRANSITION}
+     * @param state the state ID
+     * @return the histogram
+     */
+    public LatencyHistogram getActionTime(ActionType type, int state) {
+        if (type == ActionType.TRANSITION) {
+            throw new IllegalArgumentException("Transition actions are measured per transition.");
+        }
+        return actionTimes[type.ordinal()][state];
+    }
+
+    /**
+     * Returns how often the condition of the given transition has been
+     * evaluated.
+     *
+     * @param transition the transition ID
+     * @return the number of evaluations
+     */
+    public long getEvaluations(int transition) {
+        return evaluations[transition].sum();
+    }
+
+    /**
+     * Returns how often the given transition has been taken.
+     *
+     * @param transition the transition ID
+     * @return the number of times taken
+     */
+    public long getTaken(int transition) {
+        return taken[transition].sum();
+    }
+
+    /**
+     * Returns the times of the action of the given transition.
+     *
+     * @param transition the transition ID
+     * @return the histogram
+     */
+    public LatencyHistogram getTransitionTime(int transition) {
+        return transitionTimes[transition];
+    }
+
+    /**
+     * Returns the state IDs ordered by the total time spent in the states,
+     * the most expensive first.
+     *
+     * @return the state IDs
+     */
+    public int[] getStatesByTime() {
+        return IntStream.range(0, stateTimes.length)
+                .boxed()
+                .sorted((left, right) -> Long.compare(stateTimes[right].getTotal(), stateTimes[left].getTotal()))
+                .mapToInt(Integer::intValue)
+                .toArray();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("StateGraphMetrics{");
+        for (int state : getStatesByTime()) {
+            LatencyHistogram time = stateTimes[state];
+            builder.append("\n  ").append(graph.getIdentification(state))
+                    .append(": entries=").append(getEntries(state))
+                    .append(", total=").append(time.getTotal())
+                    .append(", p50=").append(time.getPercentile(50))
+                    .append(", p99=").append(time.getPercentile(99));
+        }
+        return builder.append("\n}").toString();
+    }
+
+}
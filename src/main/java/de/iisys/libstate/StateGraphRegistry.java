@@ -0,0 +1,634 @@
+package de.iisys.libstate;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Registry of many instances of one compiled state graph by key, for example
+ * a business ID. The keys are spread over shards, each with a single thread
+ * that runs the instances of the shard and handles all commands for them, in
+ * the order they were given. So the instances of a shard are only ever
+ * touched by one thread and no locks are needed, while the shards scale with
+ * the cores.<br>
+ * Commands are answered by futures completed on the thread of the shard.
+ * Terminated, failed and cancelled instances leave the registry by
+ * themselves. Optionally, idle instances are passivated to disk, so the heap
+ * holds the working set only.
+ *
+ * @param <K> the type of the keys
+  */
+public class StateGraphRegistry<K> implements AutoCloseable {
+
+    private final CompiledStateGraph compiledStateGraph;
+    private final Path directory;
+    private final SnapshotCodec codec;
+    private final int capacity;
+    private final List<Shard> shards;
+
+    /**
+     * Initializes the registry with one shard per available processor.
+     *
+     * @param compiledStateGraph the compiled state graph of the instances
+     */
+    public StateGraphRegistry(CompiledStateGraph compiledStateGraph) {
+        this(compiledStateGraph, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Initializes the registry with the given number of shards.
+     *
+     * @param compiledStateGraph the compiled state graph of the instances
+     * @param shardCount the number of shards
+     */
+    public StateGraphRegistry(CompiledStateGraph compiledStateGraph, int shardCount) {
+        this(compiledStateGraph, shardCount, null, null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Initializes the registry passivating idle instances. Once a shard has
+     * its share of the given number of active instances, the least recently
+     * used instances waiting for events are written to the given directory
+     * and let go of. They are reactivated by the next command for their key
+     * or the next event sent to their handle, which stays valid and hands its
+     * events to the thread of the shard. While an instance is passivated, its
+     * handle has no execution.
+     *
+     * @param compiledStateGraph the compiled state graph of the instances
+     * @param shardCount the number of shards
+     * @param directory the directory to write the passivated instances to
+     * @param codec the codec to write them with
+     * @param maxActive the number of instances to keep on the heap
+     */
+    public StateGraphRegistry(CompiledStateGraph compiledStateGraph, int shardCount, Path directory, SnapshotCodec codec, int maxActive) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("At least one shard is needed.");
+        }
+        if (maxActive < shardCount) {
+            throw new IllegalArgumentException("Each shard needs room for one active instance at least.");
+        }
+        this.compiledStateGraph = compiledStateGraph;
+        this.directory = directory;
+        this.codec = codec;
+        this.capacity = maxActive == Integer.MAX_VALUE ? maxActive : (maxActive + shardCount - 1) / shardCount;
+        this.shards = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(new Shard(i));
+        }
+    }
+
+    /**
+     * Returns the compiled state graph the instances run on.
+     *
+     * @return the compiled state graph
+     */
+    public CompiledStateGraph getCompiledStateGraph() {
+        return compiledStateGraph;
+    }
+
+    /**
+     * Returns the number of shards.
+     *
+     * @return the number of shards
+     */
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Sets the listener set on the executions started from now on.
+     *
+     * @param listener the listener, null to remove it
+     * @see StateGraphService#setListener(StateGraphListener)
+     */
+    public void setListener(StateGraphListener listener) {
+        for (Shard shard : shards) {
+            shard.service.setListener(listener);
+        }
+    }
+
+    /**
+     * Sets the number of steps recorded by the executions started from now
+     * on.
+     *
+     * @param capacity the number of steps to keep, 0 to stop recording
+     * @see StateGraphService#setRecorderCapacity(int)
+     */
+    public void setRecorderCapacity(int capacity) {
+        for (Shard shard : shards) {
+            shard.service.setRecorderCapacity(capacity);
+        }
+    }
+
+    /**
+     * Sets the number of steps an instance takes before the commands and
+     * other instances of its shard get their turn. Defaults to 64.
+     *
+     * @param steps the number of steps
+     * @see StateGraphService#setStepBudget(int)
+     */
+    public void setStepBudget(int steps) {
+        for (Shard shard : shards) {
+            shard.service.setStepBudget(steps);
+        }
+    }
+
+    /**
+     * Returns the number of instances in the registry, active and
+     * passivated. Read while commands are handled, the number may be a little
+     * behind.
+     *
+     * @return the number of instances
+     */
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.size;
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of passivated instances. Read while commands are
+     * handled, the number may be a little behind.
+     *
+     * @return the number of instances on disk
+     */
+    public int getPassivatedCount() {
+        int count = 0;
+        for (Shard shard : shards) {
+            count += shard.passivated;
+        }
+        return count;
+    }
+
+    /**
+     * Starts an instance with the initial memory under the given key.
+     *
+     * @param key the key
+     * @return the future of the started instance, failing with an
+     * {@link IllegalStateException} if there is an instance with the key
+     * already
+     */
+    public CompletableFuture<StateGraphInstance> start(K key) {
+        return start(key, null);
+    }
+
+    /**
+     * Starts an instance with the given memory under the given key.
+     *
+     * @param key the key
+     * @param memory the memory to start with, null for the initial memory
+     * @return the future of the started instance, failing with an
+     * {@link IllegalStateException} if there is an instance with the key
+     * already
+     */
+    public CompletableFuture<StateGraphInstance> start(K key, Map<Object, Object> memory) {
+        return onShard(key, (shard) -> {
+            StateGraphInstance instance = shard.start(key, memory);
+            if (instance == null) {
+                throw new IllegalStateException("There is an instance with the key '" + key + "' already.");
+            }
+            return instance;
+        });
+    }
+
+    /**
+     * Starts an instance for each of the given keys with the memory it is
+     * mapped to.
+     *
+     * @param memories the memories to start with by key, null values for the
+     * initial memory
+     * @return the future of the started instances by key, without the keys
+     * there was an instance for already
+     */
+    public CompletableFuture<Map<K, StateGraphInstance>> startAll(Map<? extends K, ? extends Map<Object, Object>> memories) {
+        Map<K, Map<Object, Object>> copy = new HashMap<>(memories);
+        return onShards(copy.keySet(), (shard, key) -> shard.start(key, copy.get(key)));
+    }
+
+    /**
+     * Looks up the instance with the given key.
+     *
+     * @param key the key
+     * @return the future of the instance, or of null if there is none
+     */
+    public CompletableFuture<StateGraphInstance> get(K key) {
+        return onShard(key, (shard) -> shard.get(key));
+    }
+
+    /**
+     * Looks up the instances with the given keys.
+     *
+     * @param keys the keys
+     * @return the future of the instances by key, without the keys there is
+     * no instance for
+     */
+    public CompletableFuture<Map<K, StateGraphInstance>> getAll(Collection<? extends K> keys) {
+        return onShards(keys, (shard, key) -> shard.get(key));
+    }
+
+    /**
+     * Sends an event to the instance with the given key.
+     *
+     * @param key the key
+     * @param event the event
+     * @return the future of whether there was an instance to send to
+     */
+    public CompletableFuture<Boolean> send(K key, Object event) {
+        return onShard(key, (shard) -> {
+            StateGraphInstance instance = shard.get(key);
+            if (instance == null) {
+                return false;
+            }
+            instance.getExecution().send(event);
+            return true;
+        });
+    }
+
+    /**
+     * Changes the memory of the instance with the given key between two of
+     * its steps.
+     *
+     * @param key the key
+     * @param update the change of the memory
+     * @return the future of whether there was an instance to change
+     */
+    public CompletableFuture<Boolean> update(K key, Consumer<? super StateMemory> update) {
+        return onShard(key, (shard) -> {
+            StateGraphInstance instance = shard.get(key);
+            if (instance == null) {
+                return false;
+            }
+            update.accept(instance.getExecution().getMemory());
+            return true;
+        });
+    }
+
+    /**
+     * Cancels the instance with the given key and removes it.
+     *
+     * @param key the key
+     * @return the future of whether there was an instance to terminate
+     */
+    public CompletableFuture<Boolean> terminate(K key) {
+        return onShard(key, (shard) -> shard.terminate(key) != null);
+    }
+
+    /**
+     * Cancels the instances with the given keys and removes them.
+     *
+     * @param keys the keys
+     * @return the future of the terminated instances by key, without the keys
+     * there was no instance for
+     */
+    public CompletableFuture<Map<K, StateGraphInstance>> terminateAll(Collection<? extends K> keys) {
+        return onShards(keys, Shard::terminate);
+    }
+
+    /**
+     * Stops the threads of the shards. Instances not terminated yet are not
+     * run any more, passivated ones are deleted.
+     */
+    @Override
+    public void close() {
+        for (Shard shard : shards) {
+            try {
+                shard.executor.execute(shard::discard);
+            } catch (RejectedExecutionException ex) {
+                // closed already
+            }
+            shard.executor.shutdown();
+        }
+    }
+
+    /**
+     * Returns the shard of the given key.
+     *
+     * @param key the key
+     * @return the shard
+     */
+    private Shard shard(Object key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return shards.get((hash & 0x7FFFFFFF) % shards.size());
+    }
+
+    /**
+     * Runs the given command on the thread of the shard of the given key.
+     *
+     * @param <R> the type of the result
+     * @param key the key
+     * @param command the command
+     * @return the future of the result
+     */
+    private <R> CompletableFuture<R> onShard(K key, Function<Shard, R> command) {
+        Shard shard = shard(key);
+        return CompletableFuture.supplyAsync(() -> command.apply(shard), shard.executor);
+    }
+
+    /**
+     * Runs the given command for each of the given keys, in one batch per
+     * shard on its thread.
+     *
+     * @param <R> the type of the results
+     * @param keys the keys
+     * @param command the command
+     * @return the future of the results by key, without null results
+     */
+    private <R> CompletableFuture<Map<K, R>> onShards(Collection<? extends K> keys, BiFunction<Shard, K, R> command) {
+        List<List<K>> batches = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            batches.add(new ArrayList<>());
+        }
+        for (K key : keys) {
+            batches.get(shard(key).index).add(key);
+        }
+
+        List<CompletableFuture<Map<K, R>>> parts = new ArrayList<>();
+        for (int i = 0; i < shards.size(); i++) {
+            List<K> batch = batches.get(i);
+            if (!batch.isEmpty()) {
+                Shard shard = shards.get(i);
+                parts.add(CompletableFuture.supplyAsync(() -> {
+                    Map<K, R> results = new HashMap<>();
+                    for (K key : batch) {
+                        R result = command.apply(shard, key);
+                        if (result != null) {
+                            results.put(key, result);
+                        }
+                    }
+                    return results;
+                }, shard.executor));
+            }
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply((done) -> {
+            Map<K, R> results = new HashMap<>();
+            for (CompletableFuture<Map<K, R>> part : parts) {
+                results.putAll(part.join());
+            }
+            return results;
+        });
+    }
+
+    /**
+     * A shard with its thread, the service running its instances and the
+     * entries by key, only accessed by the thread.
+     */
+    private final class Shard {
+
+        private final int index;
+        private final ExecutorService executor;
+        private final StateGraphService service;
+        private final Map<K, Entry> entries;
+        private final LinkedHashMap<K, Entry> active;
+        private long sequence;
+        private volatile int size;
+        private volatile int passivated;
+
+        private Shard(int index) {
+            this.index = index;
+            this.executor = Executors.newSingleThreadExecutor((runnable) -> {
+                Thread thread = new Thread(runnable, "libstate-shard-" + index);
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.service = new StateGraphService(compiledStateGraph, executor);
+            this.service.setStepBudget(64);
+            this.entries = new HashMap<>();
+            this.active = new LinkedHashMap<>(16, 0.75f, true);
+        }
+
+        /**
+         * Starts an instance under the given key.
+         *
+         * @param key the key
+         * @param memory the memory to start with, null for the initial memory
+         * @return the instance, or null if there is one with the key already
+         */
+        private StateGraphInstance start(K key, Map<Object, Object> memory) {
+            if (entries.containsKey(key)) {
+                return null;
+            }
+            // before starting, so a failing passivation leaves no instance behind that no key reaches
+            evict();
+            StateGraphInstance instance = memory == null ? service.start() : service.start(memory);
+            Entry entry = new Entry(instance);
+            if (directory != null) {
+                instance.setRouter((event) -> route(key, entry, event));
+            }
+            entries.put(key, entry);
+            active.put(key, entry);
+            size = entries.size();
+            entry.completion.whenComplete((result, failure) -> {
+                try {
+                    executor.execute(() -> remove(key, entry));
+                } catch (RejectedExecutionException ex) {
+                    // the registry is closed
+                }
+            });
+            return instance;
+        }
+
+        /**
+         * Sends an event given to the handle of an instance on the thread of
+         * the shard, reactivating the instance if it has been passivated.
+         *
+         * @param key the key
+         * @param entry the entry of the instance
+         * @param event the event
+         */
+        private void route(K key, Entry entry, Object event) {
+            try {
+                executor.execute(() -> {
+                    if (entries.get(key) == entry) {
+                        get(key).getExecution().send(event);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                // the registry is closed
+            }
+        }
+
+        /**
+         * Returns the instance with the given key, reactivating it if it has
+         * been passivated.
+         *
+         * @param key the key
+         * @return the instance, or null if there is none
+         */
+        private StateGraphInstance get(K key) {
+            Entry entry = active.get(key);
+            if (entry != null) {
+                return entry.instance;
+            }
+            entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            evict();
+            activate(key, entry);
+            return entry.instance;
+        }
+
+        /**
+         * Cancels the instance with the given key and removes it.
+         *
+         * @param key the key
+         * @return the instance, or null if there is none
+         */
+        private StateGraphInstance terminate(K key) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            entry.instance.cancel();
+            remove(key, entry);
+            return entry.instance;
+        }
+
+        /**
+         * Removes the given entry if it is still registered under the key and
+         * deletes its file if it is passivated.
+         *
+         * @param key the key
+         * @param entry the entry
+         */
+        private void remove(K key, Entry entry) {
+            if (entries.remove(key, entry)) {
+                active.remove(key);
+                size = entries.size();
+                if (entry.file != null) {
+                    try {
+                        Files.deleteIfExists(entry.file);
+                    } catch (IOException ex) {
+                        // left behind in the directory
+                    }
+                    entry.file = null;
+                    passivated--;
+                }
+            }
+        }
+
+        /**
+         * Passivates the least recently used idle instances to make room for
+         * one more active instance. Instances that are running, have events
+         * to handle, wait for a timed transition or run on a graph without
+         * stable fingerprint are skipped.
+         */
+        private void evict() {
+            if (active.size() < capacity) {
+                return;
+            }
+            Iterator<Entry> iterator = active.values().iterator();
+            while (active.size() >= capacity && iterator.hasNext()) {
+                Entry entry = iterator.next();
+                StateGraphExecution execution = entry.instance.getExecution();
+                if (execution.getStatus() == StateGraphExecution.Status.WAITING && !execution.canStep() && !execution.isTimed()
+                        && !entry.completion.isDone() && execution.getGraph().isFingerprinted()) {
+                    passivate(entry);
+                    iterator.remove();
+                }
+            }
+        }
+
+        /**
+         * Writes the execution of the given entry to disk and lets go of it.
+         *
+         * @param entry the entry of an idle instance
+         */
+        private void passivate(Entry entry) {
+            StateGraphExecution execution = entry.instance.getExecution();
+            Path file = directory.resolve(index + "-" + sequence++ + ".snapshot");
+            try {
+                Files.write(file, codec.write(execution));
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            entry.instance.passivate();
+            entry.graph = execution.getGraph();
+            entry.listener = execution.getListener();
+            entry.recorder = execution.getRecorder();
+            entry.file = file;
+            passivated++;
+        }
+
+        /**
+         * Reads the execution of the given entry back from disk and lets its
+         * instance go on with it. It gets the listener and the recorder of the
+         * passivated execution back, so metrics and journals go on recording
+         * it.
+         *
+         * @param key the key
+         * @param entry the entry of a passivated instance
+         */
+        private void activate(K key, Entry entry) {
+            StateGraphExecution execution;
+            try {
+                execution = codec.read(entry.graph, Files.readAllBytes(entry.file));
+                Files.delete(entry.file);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            execution.setListener(entry.listener);
+            execution.setRecorder(entry.recorder);
+            entry.instance.reactivate(execution);
+            entry.graph = null;
+            entry.listener = null;
+            entry.recorder = null;
+            entry.file = null;
+            active.put(key, entry);
+            passivated--;
+        }
+
+        /**
+         * Deletes the files of the passivated instances.
+         */
+        private void discard() {
+            for (Entry entry : entries.values()) {
+                if (entry.file != null) {
+                    try {
+                        Files.deleteIfExists(entry.file);
+                    } catch (IOException ex) {
+                        // left behind in the directory
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * An instance in the registry: active with its execution, or passivated
+     * with the file of its snapshot and the graph it ran on.
+     */
+    private static final class Entry {
+
+        private final CompletableFuture<StateMemory> completion;
+        private final StateGraphInstance instance;
+        private CompiledStateGraph graph;
+        private StateGraphListener listener;
+        private StepRecorder recorder;
+        private Path file;
+
+        private Entry(StateGraphInstance instance) {
+            this.completion = instance.getCompletion();
+            this.instance = instance;
+        }
+    }
+
+}
@@ -1,142 +1,335 @@
 package de.iisys.libstate;
 
-import de.iisys.libstate.interfaces.State;
-import de.iisys.libstate.interfaces.Transition;
+import java.time.Duration;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
- * Class to bake, run and stop the state graph.
+ * Class to bake, run and stop the state graph.<br>
+ * The baked graph is immutable and every run gets its own
+ * {@link StateGraphExecution}, so {@link #run()} may be called by several
+ * threads at the same time.<br>
+ * An execution waiting for events parks the running thread until an event is
+ * sent to it by {@link StateGraphExecution#send(Object)}, a suspended one until
+ * the asynchronous action it waits for completes. A state polling by a
+ * completion transition back to itself turns its rounds as its
+ * {@link WaitStrategy} says, so it need not keep a core busy.<br>
+ * A run ends early when {@link #stop()} is called, when its execution is
+ * {@link StateGraphExecution#cancel(boolean) cancelled} or when its deadline
+ * has passed. All of them are checked at every boundary and wake a waiting
+ * run, so a run ends within one step, as long as no single action blocks.
   */
 public class StateGraphRunner {
 
-    private boolean stop;
-    private State initialState;
-    private Map<Object, Object> initialMemory;
+    private final Set<StateGraphExecution> running = ConcurrentHashMap.newKeySet();
+    private volatile CompiledStateGraph compiledStateGraph;
+    private volatile StateGraphListener listener;
+    private volatile int recorderCapacity;
 
     /**
-     * Initializes {@link #initialState} reference with the given state graph
+     * Initializes {@link #compiledStateGraph} with the given state graph
      * object.<br>
      * Chains the states together.
      *
      * @param stateGraph the state graph
      */
     public StateGraphRunner(StateGraph stateGraph) {
-        initialState = bakeStateGraph(stateGraph);
+        compiledStateGraph = bakeStateGraph(stateGraph);
+    }
+
+    /**
+     * Initializes the runner with an already compiled state graph, for
+     * example an optimized one.
+     *
+     * @param compiledStateGraph the compiled state graph
+     */
+    public StateGraphRunner(CompiledStateGraph compiledStateGraph) {
+        this.compiledStateGraph = compiledStateGraph;
     }
 
     /**
      * Maps the states and the transition and sorts them.<br>
      * Defines the condition to check if this transition may be executed within
-     * the given context of the two states given.<br>
-     * Sets the transitions.
+     * the given context of the two states given.
      *
      * @param stateGraph the state graph
-     * @return the destination of the initial transition
+     * @return the compiled state graph
      */
-    protected State bakeStateGraph(StateGraph stateGraph) {
-        Map<Object, State> states = stateGraph.getStates();
-        Map<Object, List<Transition<State, State>>> transitions = stateGraph.getTransitions();
+    protected CompiledStateGraph bakeStateGraph(StateGraph stateGraph) {
+        return new CompiledStateGraph(stateGraph);
+    }
 
-        for (Map.Entry<Object, State> entry : states.entrySet()) {
-            Object identification = entry.getKey();
-            State state = entry.getValue();
+    /**
+     * Returns the baked state graph new executions run on.
+     *
+     * @return the compiled state graph
+     */
+    public CompiledStateGraph getCompiledStateGraph() {
+        return compiledStateGraph;
+    }
 
-            List<Transition<State, State>> transitionList = transitions.get(identification);
-            if (transitionList != null) {
-                transitionList.sort((left, right) -> left.condition() != null ? -1 : right.condition() != null ? 1 : 0);
-                state.setTransitions(transitionList);
-            }
+    /**
+     * Moves to the new version of the given migration and starts it: new
+     * instances run on the new version from now on, running ones migrate at
+     * their next boundary.
+     * Migrated executions keep their listener, which is told by
+     * {@link StateGraphListener#executionMigrated}. Listeners bound to the
+     * old version, like {@link StateGraphMetrics} and the journal, stop
+     * recording them, so set new ones for the new version.
+     *
+     * @param migration the migration from the current version
+     */
+    public synchronized void upgrade(GraphMigration migration) {
+        if (migration.getSource() != compiledStateGraph) {
+            throw new IllegalArgumentException("The migration does not start at the current version of the state graph.");
         }
+        migration.start();
+        compiledStateGraph = migration.getTarget();
+    }
 
-        List<Transition<State, State>> initialTransitions = transitions.get(StateGraph.Identification.INITIAL);
-        if (initialTransitions != null && initialTransitions.size() == 1) {
-            return initialTransitions.get(0).getDestination();
-        }
+    /**
+     * Returns the listener set on the executions this runner creates.
+     *
+     * @return the listener, or null if there is none
+     */
+    public StateGraphListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Sets the listener set on the executions this runner creates from now
+     * on, for example {@link StateGraphMetrics}.
+     *
+     * @param listener the listener, null to remove it
+     */
+    public void setListener(StateGraphListener listener) {
+        this.listener = listener;
+    }
 
-        throw new UnsupportedOperationException("There are no or multiple INITIAL transitions defined, I don't know where to start. Please define one single INITIAL transition.");
+    /**
+     * Returns the number of steps recorded by the executions this runner
+     * creates.
+     *
+     * @return the capacity of their recorders, 0 if they do not record
+     */
+    public int getRecorderCapacity() {
+        return recorderCapacity;
     }
 
     /**
-     * Runs the state graph.
+     * Lets the executions this runner creates from now on record their last
+     * steps in a {@link StepRecorder}. When such a run fails, the recorded
+     * steps are attached to the thrown exception as suppressed exception.
+     *
+     * @param capacity the number of steps to keep, 0 to stop recording
      */
-    public void run() {
-        if (initialMemory != null) {
-            // rewind initial state if we made a clone earlier
-            initialState.setMemory(initialMemory);
-        }
-        // always make a fresh clone for the next run
-        initialMemory = initialState.cloneMemory();
-
-        State state = initialState;
-        Transition<State, State> transition = null;
-        while (!stop && state != null) {
-            try {
-                transition = executeState(state, transition);
-                state = transition == null ? null : transition.getDestination();
-            } catch (Exception ex) {
-                throw new RuntimeException(ex);
-            }
+    public void setRecorderCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity cannot be negative.");
         }
+        recorderCapacity = capacity;
+    }
 
-        stop = false;
+    /**
+     * Runs the state graph with a fresh copy of the initial memory.
+     */
+    public void run() {
+        run(prepare(compiledStateGraph.newExecution()));
     }
 
     /**
-     * Stops the state graph.
+     * Runs the state graph with the given memory instead of the initial
+     * memory.
+     *
+     * @param memory the memory to start with, changed by the run
+     * @return the memory after the run
      */
-    public void stop() {
-        stop = true;
+    public Map<Object, Object> run(Map<Object, Object> memory) {
+        StateGraphExecution execution = prepare(compiledStateGraph.newExecution(memory));
+        run(execution);
+        return execution.getMemory();
     }
 
     /**
-     * Executes the state.
+     * Runs the state graph once for every given memory in parallel on the
+     * common {@link ForkJoinPool}.
      *
-     * @param state the state
-     * @param comingFromTransition the transition
-     * @return the transition
-     * @throws Exception
+     * @param memories the memories to start with
+     * @return the memories after the runs, in the order of the given memories
+     * @see #runAll(Stream, ForkJoinPool)
      */
-    protected Transition<State, State> executeState(State state, Transition<State, State> comingFromTransition) throws Exception {
-        // when we come from a different state (or the start) and do not turn rounds from the same to the same state, execute entry action
-        if (state.entryAction() != null && (comingFromTransition == null || comingFromTransition.getSource() == null || !comingFromTransition.getSource().equals(state))) {
-            state.entryAction().run(state);
-        }
+    public List<StateMemory> runAll(Stream<? extends Map<Object, Object>> memories) {
+        return runAll(memories, ForkJoinPool.commonPool());
+    }
 
-        // always execute main action
-        if (state.doAction() != null) {
-            state.doAction().run(state);
+    /**
+     * Runs the state graph once for every memory the given spliterator yields
+     * in parallel on the common {@link ForkJoinPool}.
+     *
+     * @param memories the memories to start with
+     * @return the memories after the runs, in the order of the given memories
+     * @see #runAll(Stream, ForkJoinPool)
+     */
+    public List<StateMemory> runAll(Spliterator<? extends Map<Object, Object>> memories) {
+        return runAll(StreamSupport.stream(memories, true), ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Runs the state graph once for every given memory in parallel on the
+     * given {@link ForkJoinPool}. The stream is split by the pool, so a sized
+     * stream or spliterator spreads best across the cores. Every run needs to
+     * terminate on its own, runs waiting for events would block the pool.
+     *
+     * @param memories the memories to start with
+     * @param pool the pool to run on
+     * @return the memories after the runs, in the order of the given memories
+     */
+    public List<StateMemory> runAll(Stream<? extends Map<Object, Object>> memories, ForkJoinPool pool) {
+        try {
+            // a parallel stream started within a pool task runs in that pool
+            CompiledStateGraph compiled = compiledStateGraph;
+            return pool.submit(() -> memories.parallel()
+                    .map((memory) -> {
+                        StateGraphExecution execution = prepare(compiled.newExecution(memory));
+                        run(execution);
+                        return execution.getMemory();
+                    })
+                    .collect(Collectors.toList())).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new RuntimeException(ex.getCause());
         }
+    }
 
-        // get the right transition
-        Transition<State, State> transition = null;
-        List<Transition<State, State>> transitions = state.getTransitions();
-        if (transitions != null) {
-            for (int i = 0; i < transitions.size(); i++) {
-                transition = transitions.get(i);
-                if (transition != null && (transition.condition() != null ? transition.condition().apply(transition) : true)) {
+    /**
+     * Runs the given execution until it terminates or the runner is stopped.
+     * Waiting for events or asynchronous actions ends as well when the running
+     * thread is interrupted, the interrupt stays set.
+     *
+     * @param execution the execution to run
+     * @throws CancellationException if the execution has been cancelled or
+     * the thread has been interrupted while waiting
+     */
+    public void run(StateGraphExecution execution) {
+        run(execution, false, 0L);
+    }
+
+    /**
+     * Runs the given execution like {@link #run(StateGraphExecution)}, but no
+     * longer than the given time. The execution stays at the boundary it has
+     * reached, so it can be run again.
+     *
+     * @param execution the execution to run
+     * @param timeout the time to run for at most
+     * @throws CancellationException if the time has passed before the
+     * execution terminated, it has been cancelled or the thread has been
+     * interrupted while waiting
+     */
+    public void run(StateGraphExecution execution, Duration timeout) {
+        run(execution, true, System.nanoTime() + timeout.toNanos());
+    }
+
+    /**
+     * Runs the given execution until it terminates, the runner is stopped or
+     * the deadline has passed.
+     *
+     * @param execution the execution to run
+     * @param timed true if there is a deadline
+     * @param deadline the deadline by {@link System#nanoTime()}
+     */
+    private void run(StateGraphExecution execution, boolean timed, long deadline) {
+        execution.enterRun();
+        running.add(execution);
+        try {
+            while (!execution.isHalted()) {
+                if (timed && System.nanoTime() - deadline >= 0) {
+                    throw new CancellationException("The run has passed its deadline.");
+                }
+                StateGraphExecution.Status status = executeState(execution);
+                if (status == StateGraphExecution.Status.TERMINATED) {
                     break;
                 }
+                if (!execution.canStep()) {
+                    execution.await(timed, deadline);
+                    if (Thread.currentThread().isInterrupted() && !execution.isHalted()) {
+                        throw new CancellationException("The run has been interrupted.");
+                    }
+                }
+            }
+        } catch (CancellationException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            if (execution.isCancelled()) {
+                CancellationException cancellation = new CancellationException("The run has been cancelled.");
+                cancellation.initCause(ex);
+                throw cancellation;
+            }
+            RuntimeException failure = new RuntimeException(ex);
+            StepRecorder recorder = execution.getRecorder();
+            if (recorder != null) {
+                failure.addSuppressed(new IllegalStateException("Steps before the failure:\n" + recorder.dump(execution.getGraph())));
             }
+            throw failure;
+        } finally {
+            running.remove(execution);
+            execution.exitRun();
         }
 
-        // when we go to a different state (or the end) and do not turn rounds, execute exit action
-        if (state.exitAction() != null && (transition == null || transition.getDestination() == null || !transition.getDestination().equals(state))) {
-            state.exitAction().run(state);
+        if (execution.isCancelled()) {
+            throw new CancellationException("The run has been cancelled.");
         }
+    }
 
-        // now transit
-        if (transition != null) {
-            if (transition.action() != null) {
-                transition.action().run(transition);
-            }
+    /**
+     * Sets the listener and the recorder of this runner on a new execution.
+     *
+     * @param execution the new execution
+     * @return the same execution
+     */
+    private StateGraphExecution prepare(StateGraphExecution execution) {
+        execution.setListener(listener);
+        int capacity = recorderCapacity;
+        if (capacity > 0) {
+            execution.setRecorder(new StepRecorder(capacity));
+        }
+        return execution;
+    }
 
-            // copy changed state memory to new state
-            State destination = transition.getDestination();
-            destination.setMemory(state.getMemory());
+    /**
+     * Stops the runs of this runner in progress: running ones at their next
+     * boundary, waiting ones right away. They return normally and their
+     * executions can be run again. Runs started afterwards are not affected.
+     */
+    public void stop() {
+        for (StateGraphExecution execution : running) {
+            execution.halt(false);
         }
+    }
 
-        return transition;
+    /**
+     * Executes the current state of the given execution and transits to the
+     * next state, or handles the next event of a waiting execution.
+     *
+     * @param execution the execution
+     * @return the status of the execution after the step
+     * @throws Exception
+     */
+    protected StateGraphExecution.Status executeState(StateGraphExecution execution) throws Exception {
+        return execution.step();
     }
 
 }
@@ -0,0 +1,251 @@
+package de.iisys.libstate;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class to run many instances of one compiled state graph at the same time on
+ * an {@link Executor}. Every started instance runs on the executor and gives
+ * its thread back whenever it waits for events, so the number of instances is
+ * not bound to the number of threads.<br>
+ * Without an executor given, one virtual thread per task is used when the
+ * Java runtime supports it, otherwise a cached pool of daemon threads.
+  */
+public class StateGraphService implements AutoCloseable {
+
+    private volatile CompiledStateGraph compiledStateGraph;
+    private final Executor executor;
+    private final ExecutorService ownExecutor;
+    private volatile StateGraphListener listener;
+    private volatile int recorderCapacity;
+    private volatile int stepBudget = Integer.MAX_VALUE;
+
+    /**
+     * Initializes the service with the given state graph and the default
+     * executor.
+     *
+     * @param stateGraph the state graph
+     */
+    public StateGraphService(StateGraph stateGraph) {
+        this(new CompiledStateGraph(stateGraph));
+    }
+
+    /**
+     * Initializes the service with the given compiled state graph and the
+     * default executor, which is shut down by {@link #close()}.
+     *
+     * @param compiledStateGraph the compiled state graph
+     */
+    public StateGraphService(CompiledStateGraph compiledStateGraph) {
+        this.compiledStateGraph = compiledStateGraph;
+        this.ownExecutor = newDefaultExecutor();
+        this.executor = ownExecutor;
+    }
+
+    /**
+     * Initializes the service with the given compiled state graph and
+     * executor. The executor is not shut down by {@link #close()}.
+     *
+     * @param compiledStateGraph the compiled state graph
+     * @param executor the executor to run the instances on
+     */
+    public StateGraphService(CompiledStateGraph compiledStateGraph, Executor executor) {
+        this.compiledStateGraph = compiledStateGraph;
+        this.executor = executor;
+        this.ownExecutor = null;
+    }
+
+    /**
+     * Creates an executor running every task on a new virtual thread, or a
+     * cached thread pool of daemon threads if virtual threads are not
+     * available.
+     *
+     * @return the executor
+     */
+    public static ExecutorService newDefaultExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            AtomicInteger count = new AtomicInteger();
+            ThreadFactory threadFactory = (runnable) -> {
+                Thread thread = new Thread(runnable, "libstate-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            };
+            return Executors.newCachedThreadPool(threadFactory);
+        }
+    }
+
+    /**
+     * Returns the compiled state graph new instances run on.
+     *
+     * @return the compiled state graph
+     */
+    public CompiledStateGraph getCompiledStateGraph() {
+        return compiledStateGraph;
+    }
+
+    /**
+     * Moves to the new version of the given migration and starts it: new
+     * instances run on the new version from now on, running ones migrate at
+     * their next boundary.
+     * Migrated executions keep their listener, which is told by
+     * {@link StateGraphListener#executionMigrated}. Listeners bound to the
+     * old version, like {@link StateGraphMetrics} and the journal, stop
+     * recording them, so set new ones for the new version.
+     *
+     * @param migration the migration from the current version
+     */
+    public synchronized void upgrade(GraphMigration migration) {
+        if (migration.getSource() != compiledStateGraph) {
+            throw new IllegalArgumentException("The migration does not start at the current version of the state graph.");
+        }
+        migration.start();
+        compiledStateGraph = migration.getTarget();
+    }
+
+    /**
+     * Returns the executor the instances run on.
+     *
+     * @return the executor
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Returns the listener set on the executions this service creates.
+     *
+     * @return the listener, or null if there is none
+     */
+    public StateGraphListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Sets the listener set on the executions this service creates from now
+     * on. It is called by the threads of the executor, so it needs to be
+     * thread safe.
+     *
+     * @param listener the listener, null to remove it
+     */
+    public void setListener(StateGraphListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the number of steps recorded by the executions this service
+     * creates.
+     *
+     * @return the capacity of their recorders, 0 if they do not record
+     */
+    public int getRecorderCapacity() {
+        return recorderCapacity;
+    }
+
+    /**
+     * Lets the executions this service creates from now on record their last
+     * steps in a {@link StepRecorder}, which can be read from the execution of
+     * a failed instance.
+     *
+     * @param capacity the number of steps to keep, 0 to stop recording
+     */
+    public void setRecorderCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity cannot be negative.");
+        }
+        recorderCapacity = capacity;
+    }
+
+    /**
+     * Returns the number of steps an instance takes before it gives its thread
+     * back to the executor.
+     *
+     * @return the step budget of the instances
+     */
+    public int getStepBudget() {
+        return stepBudget;
+    }
+
+    /**
+     * Lets the instances started from now on give their thread back after the
+     * given number of steps and queue up again on the executor, so a long
+     * running instance does not starve the others.
+     *
+     * @param steps the number of steps, {@link Integer#MAX_VALUE} to run
+     * until the instance waits
+     */
+    public void setStepBudget(int steps) {
+        if (steps < 1) {
+            throw new IllegalArgumentException("At least one step needs to be taken.");
+        }
+        stepBudget = steps;
+    }
+
+    /**
+     * Starts a new instance with a fresh copy of the initial memory.
+     *
+     * @return the started instance
+     */
+    public StateGraphInstance start() {
+        return start(prepare(compiledStateGraph.newExecution()));
+    }
+
+    /**
+     * Starts a new instance with the given memory instead of the initial
+     * memory.
+     *
+     * @param memory the memory to start with
+     * @return the started instance
+     */
+    public StateGraphInstance start(Map<Object, Object> memory) {
+        return start(prepare(compiledStateGraph.newExecution(memory)));
+    }
+
+    /**
+     * Starts an instance running the given execution, which must belong to the
+     * compiled state graph of this service and must not be run by anyone
+     * else.
+     *
+     * @param execution the execution to run
+     * @return the started instance
+     */
+    public StateGraphInstance start(StateGraphExecution execution) {
+        StateGraphInstance instance = new StateGraphInstance(execution, executor, stepBudget);
+        instance.schedule();
+        return instance;
+    }
+
+    /**
+     * Sets the listener and the recorder of this service on a new execution.
+     *
+     * @param execution the new execution
+     * @return the same execution
+     */
+    private StateGraphExecution prepare(StateGraphExecution execution) {
+        execution.setListener(listener);
+        int capacity = recorderCapacity;
+        if (capacity > 0) {
+            execution.setRecorder(new StepRecorder(capacity));
+        }
+        return execution;
+    }
+
+    /**
+     * Shuts the executor down if it was created by this service. Running
+     * instances are not waited for.
+     */
+    @Override
+    public void close() {
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
+    }
+
+}
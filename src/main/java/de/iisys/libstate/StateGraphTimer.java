@@ -0,0 +1,317 @@
+package de.iisys.libstate;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hierarchical hashed timing wheel running the timed transitions of all
+ * executions. Scheduling and cancelling a timeout costs O(1) regardless of the
+ * number of pending timeouts: a timeout is put into the slot of its deadline
+ * in the finest wheel that spans it, and moved down a wheel whenever the
+ * coarser slot comes round, until it expires in the finest wheel.<br>
+ * A single daemon thread advances the wheels tick by tick and runs the tasks
+ * of expired timeouts, which must be short, like sending an event. New and
+ * cancelled timeouts are handed to the thread by lock-free queues, so callers
+ * never block. The thread parks while there is nothing to time.
+  */
+public final class StateGraphTimer implements AutoCloseable {
+
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 5;
+    private static final long SPAN = 1L << (WHEEL_BITS * LEVELS);
+
+    private static volatile StateGraphTimer shared;
+
+    private final long tickNanos;
+    private final long origin;
+    private final Timeout[][] wheels;
+    private final Queue<Timeout> added;
+    private final Queue<Timeout> cancelled;
+    private final Thread thread;
+    private long currentTick;
+    private int pending;
+    private volatile boolean closed;
+
+    /**
+     * Initializes and starts the timer with the given tick.
+     *
+     * @param tick the resolution of the timer, timeouts expire up to one tick
+     * late
+     * @param unit the unit of the tick
+     */
+    public StateGraphTimer(long tick, TimeUnit unit) {
+        this.tickNanos = unit.toNanos(tick);
+        if (tickNanos <= 0) {
+            throw new IllegalArgumentException("The tick must be positive.");
+        }
+        this.origin = System.nanoTime();
+        this.wheels = new Timeout[LEVELS][WHEEL_SIZE];
+        this.added = new ConcurrentLinkedQueue<>();
+        this.cancelled = new ConcurrentLinkedQueue<>();
+        this.thread = new Thread(this::work, "libstate-timer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Returns the timer shared by all executions, with a tick of one
+     * millisecond, started on first use. It runs as long as the JVM, closing
+     * it does nothing.
+     *
+     * @return the shared timer
+     */
+    public static StateGraphTimer getShared() {
+        StateGraphTimer timer = shared;
+        if (timer == null) {
+            synchronized (StateGraphTimer.class) {
+                timer = shared;
+                if (timer == null) {
+                    shared = timer = new StateGraphTimer(1, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+        return timer;
+    }
+
+    /**
+     * Schedules the given task to run on the thread of the timer after the
+     * given delay.
+     *
+     * @param task the task, short and not blocking
+     * @param delay the delay, zero or less to run on the next tick
+     * @param unit the unit of the delay
+     * @return the timeout, for cancelling it
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (closed) {
+            throw new IllegalStateException("The timer has been closed.");
+        }
+        long nanos = Math.max(0L, unit.toNanos(delay));
+        long deadline = System.nanoTime() - origin + nanos;
+        // round up, so a timeout never expires early
+        Timeout timeout = new Timeout(this, task, deadline < 0 ? Long.MAX_VALUE : (deadline + tickNanos - 1) / tickNanos);
+        added.offer(timeout);
+        LockSupport.unpark(thread);
+        return timeout;
+    }
+
+    /**
+     * Stops the thread of the timer. Pending timeouts do not expire any more.
+     * The shared timer is not stopped, as other executions rely on it.
+     */
+    @Override
+    public void close() {
+        if (this == shared) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Advances the wheels with the time until the timer is closed.
+     */
+    private void work() {
+        while (!closed) {
+            long now = (System.nanoTime() - origin) / tickNanos;
+            if (pending == 0) {
+                // the wheels are empty, so they can jump ahead instead of ticking through idle time
+                currentTick = Math.max(currentTick, now - 1);
+                if (added.isEmpty()) {
+                    LockSupport.park(this);
+                    continue;
+                }
+            }
+            while (currentTick < now && !closed) {
+                advance();
+            }
+            LockSupport.parkNanos(this, tickNanos - (System.nanoTime() - origin) % tickNanos);
+        }
+    }
+
+    /**
+     * Moves on by one tick: takes the new and cancelled timeouts, moves the
+     * timeouts of the coarser slots coming round down and runs the tasks of
+     * the expired ones.
+     */
+    private void advance() {
+        currentTick++;
+        for (int level = LEVELS - 1; level > 0; level--) {
+            if ((currentTick & ((1L << (WHEEL_BITS * level)) - 1)) == 0) {
+                int slot = (int) (currentTick >>> (WHEEL_BITS * level)) & WHEEL_MASK;
+                Timeout timeout = wheels[level][slot];
+                wheels[level][slot] = null;
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    timeout.prev = timeout.next = null;
+                    place(timeout);
+                    timeout = next;
+                }
+            }
+        }
+        drain();
+
+        int slot = (int) currentTick & WHEEL_MASK;
+        Timeout timeout = wheels[0][slot];
+        wheels[0][slot] = null;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.prev = timeout.next = null;
+            timeout.wheel = null;
+            pending--;
+            if (timeout.expire()) {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException ex) {
+                    // a failing task must not stop the timer
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    /**
+     * Places the new timeouts and removes the cancelled ones.
+     */
+    private void drain() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (!timeout.isCancelled()) {
+                pending++;
+                place(timeout);
+            }
+        }
+        while ((timeout = cancelled.poll()) != null) {
+            unlink(timeout);
+        }
+    }
+
+    /**
+     * Puts the given timeout into the slot of its deadline in the finest
+     * wheel spanning it. Overdue timeouts go to the current slot, timeouts
+     * beyond all wheels to the slot of the coarsest wheel as far ahead as it
+     * reaches, to be placed again from there.
+     *
+     * @param timeout the timeout
+     */
+    private void place(Timeout timeout) {
+        long deadline = Math.max(timeout.deadline, currentTick);
+        long delta = deadline - currentTick;
+        if (delta >= SPAN) {
+            deadline = currentTick + SPAN - 1;
+            delta = SPAN - 1;
+        }
+        int level = 0;
+        while (delta >= 1L << (WHEEL_BITS * (level + 1))) {
+            level++;
+        }
+        Timeout[] wheel = wheels[level];
+        int slot = (int) (deadline >>> (WHEEL_BITS * level)) & WHEEL_MASK;
+        Timeout head = wheel[slot];
+        timeout.next = head;
+        if (head != null) {
+            head.prev = timeout;
+        }
+        wheel[slot] = timeout;
+        timeout.wheel = wheel;
+        timeout.slot = slot;
+    }
+
+    /**
+     * Takes the given cancelled timeout out of its slot.
+     *
+     * @param timeout the timeout
+     */
+    private void unlink(Timeout timeout) {
+        Timeout[] wheel = timeout.wheel;
+        if (wheel == null) {
+            return;
+        }
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            wheel[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = timeout.next = null;
+        timeout.wheel = null;
+        pending--;
+    }
+
+    /**
+     * A scheduled task of the timer.
+     */
+    public static final class Timeout {
+
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final StateGraphTimer timer;
+        private final Runnable task;
+        private final long deadline;
+        private volatile int state;
+
+        // only touched by the thread of the timer
+        private Timeout prev;
+        private Timeout next;
+        private Timeout[] wheel;
+        private int slot;
+
+        private Timeout(StateGraphTimer timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the timeout, so its task does not run.
+         *
+         * @return true if cancelled by this call, false if it has expired or
+         * been cancelled already
+         */
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, PENDING, CANCELLED)) {
+                return false;
+            }
+            timer.cancelled.offer(this);
+            return true;
+        }
+
+        /**
+         * Checks whether the timeout has been cancelled.
+         *
+         * @return true if cancelled
+         */
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        /**
+         * Checks whether the timeout has expired and its task has been run.
+         *
+         * @return true if expired
+         */
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        /**
+         * Marks the timeout as expired unless it has been cancelled.
+         *
+         * @return true if its task is to run
+         */
+        private boolean expire() {
+            return STATE.compareAndSet(this, PENDING, EXPIRED);
+        }
+    }
+
+}
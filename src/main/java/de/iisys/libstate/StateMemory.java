@@ -0,0 +1,807 @@
+package de.iisys.libstate;
+
+import de.iisys.libstate.interfaces.MemoryKey;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Memory of a {@link StateGraphExecution}. Values of the {@link MemoryKey}s
+ * declared in the {@link MemoryLayout} are kept in fixed slots of arrays, int,
+ * long and double values unboxed. Every other key is kept in a map.<br>
+ * The memory is a {@link Map} itself, so declared values can also be read and
+ * written by the name of their key, boxing primitive values on the way.<br>
+ * Copies are copy-on-write: a copy shares the map entries it was created from
+ * and only records its own changes on top of them, and the slot arrays are
+ * shared until the first slot is written. Copying a memory, as every run does
+ * with the initial memory, therefore costs the number of changed keys instead
+ * of the number of all keys.<br>
+ * With an off-heap layout, the int, long and double slots live in a record of
+ * the {@link MemorySlab} of the layout instead of arrays. Copies copy the
+ * record right away. The record is given back when the memory is released,
+ * the memory keeps its values on the heap from then on.
+  */
+public final class StateMemory extends AbstractMap<Object, Object> {
+
+    /**
+     * Marks a key of the shared entries that was removed by this memory.
+     */
+    private static final Object REMOVED = new Object();
+
+    /**
+     * Stands for a null value in {@link #changes}, so null from the map always
+     * means not changed.
+     */
+    private static final Object NULL = new Object();
+
+    private final MemoryLayout layout;
+
+    private Map<Object, Object> base;
+    private Map<Object, Object> changes;
+    private int size;
+
+    private Object[] objects;
+    private int[] ints;
+    private long[] longs;
+    private double[] doubles;
+    private boolean slotsShared;
+
+    private ByteBuffer slab;
+    private int record;
+    private int longBase;
+    private int doubleBase;
+    private int intBase;
+
+    private Changes changed;
+
+    /**
+     * Initializes an empty memory for the given layout. Primitive slots start
+     * with zero.
+     *
+     * @param layout the layout of the declared keys
+     */
+    public StateMemory(MemoryLayout layout) {
+        this.layout = layout;
+        this.base = Collections.emptyMap();
+        this.objects = new Object[layout.getObjectSlots()];
+        if (layout.getSlab() == null) {
+            this.ints = new int[layout.getIntSlots()];
+            this.longs = new long[layout.getLongSlots()];
+            this.doubles = new double[layout.getDoubleSlots()];
+        } else {
+            allocateRecord();
+        }
+    }
+
+    /**
+     * Initializes the memory for the given layout with the entries of the
+     * given map. Entries named like a declared key go to the slot of the key,
+     * the other entries become the shared entries of all copies.
+     *
+     * @param layout the layout of the declared keys
+     * @param memory the entries to copy
+     */
+    public StateMemory(MemoryLayout layout, Map<?, ?> memory) {
+        this(layout);
+
+        Map<Object, Object> entries = new HashMap<>();
+        for (Map.Entry<?, ?> entry : memory.entrySet()) {
+            MemoryKey<?> declared = declared(entry.getKey());
+            if (declared != null) {
+                putDeclared(declared, entry.getValue());
+            } else {
+                entries.put(entry.getKey(), entry.getValue());
+            }
+        }
+        base = entries;
+        size = entries.size();
+    }
+
+    /**
+     * Initializes the memory as copy of the given memory, sharing its entries
+     * and slots.
+     *
+     * @param other the memory to copy
+     */
+    private StateMemory(StateMemory other) {
+        this.layout = other.layout;
+        this.base = other.base;
+        this.changes = other.changes == null || other.changes.isEmpty() ? null : new HashMap<>(other.changes);
+        this.size = other.size;
+
+        this.objects = other.objects;
+        this.ints = other.ints;
+        this.longs = other.longs;
+        this.doubles = other.doubles;
+        if (other.slab != null) {
+            allocateRecord();
+            for (int i = 0; i < layout.getSlab().getRecordSize(); i += 8) {
+                slab.putLong(longBase + i, other.slab.getLong(other.longBase + i));
+            }
+        }
+        this.slotsShared = true;
+        if (!other.slotsShared) {
+            other.slotsShared = true;
+        }
+    }
+
+    /**
+     * Returns a copy of this memory so that future changes of the copy do not
+     * change this memory and the other way round. The copy shares everything
+     * with this memory and costs the number of keys changed since this memory
+     * was created from a map.
+     *
+     * @return the copy
+     */
+    public StateMemory copy() {
+        return new StateMemory(this);
+    }
+
+    /**
+     * Marks the slots as shared so that copies can be taken from several
+     * threads at the same time without writing to this memory.
+     *
+     * @return this memory
+     */
+    StateMemory share() {
+        slotsShared = true;
+        return this;
+    }
+
+    /**
+     * Starts recording which keys are written from now on, replacing the
+     * changes recorded so far. Copies do not record.
+     *
+     * @return the recorded changes
+     */
+    Changes trackChanges() {
+        changed = new Changes(layout);
+        return changed;
+    }
+
+    /**
+     * Returns the changes recorded since {@link #trackChanges()}.
+     *
+     * @return the changes, or null if changes are not recorded
+     */
+    Changes getChanges() {
+        return changed;
+    }
+
+    /**
+     * Returns the number of entries of keys that are not declared.
+     *
+     * @return the number of undeclared entries
+     */
+    int getUndeclaredSize() {
+        return size;
+    }
+
+    /**
+     * Returns the layout of the declared keys.
+     *
+     * @return the layout
+     */
+    public MemoryLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * Allocates an own record in the off-heap store of the layout.
+     */
+    private void allocateRecord() {
+        MemorySlab store = layout.getSlab();
+        record = store.allocate(this);
+        slab = store.getChunk(record);
+        longBase = store.getOffset(record);
+        doubleBase = longBase + 8 * layout.getLongSlots();
+        intBase = doubleBase + 8 * layout.getDoubleSlots();
+    }
+
+    /**
+     * Gives back the off-heap record of the memory, moving its primitive
+     * slots to the heap. Called when the execution owning the memory has
+     * terminated or has been evicted, so the record does not wait for the
+     * garbage collector.
+     */
+    void release() {
+        if (slab == null) {
+            return;
+        }
+        ints = new int[layout.getIntSlots()];
+        for (int i = 0; i < ints.length; i++) {
+            ints[i] = slab.getInt(intBase + (i << 2));
+        }
+        longs = new long[layout.getLongSlots()];
+        for (int i = 0; i < longs.length; i++) {
+            longs[i] = slab.getLong(longBase + (i << 3));
+        }
+        doubles = new double[layout.getDoubleSlots()];
+        for (int i = 0; i < doubles.length; i++) {
+            doubles[i] = slab.getDouble(doubleBase + (i << 3));
+        }
+        slab = null;
+        layout.getSlab().release(record);
+    }
+
+    /**
+     * Copies the slot arrays before the first write when they are shared.
+     */
+    private void ownSlots() {
+        if (slotsShared) {
+            objects = objects.clone();
+            if (slab == null) {
+                ints = ints.clone();
+                longs = longs.clone();
+                doubles = doubles.clone();
+            }
+            slotsShared = false;
+        }
+    }
+
+    /**
+     * Returns the value of the declared key, boxing primitive values.
+     *
+     * @param <T> the type of the value
+     * @param key the declared key
+     * @return the value, zero for unset primitive values
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(MemoryKey<T> key) {
+        switch (key.getKind()) {
+            case MemoryKey.INT:
+                return (T) Integer.valueOf(getInt(key.getSlot()));
+            case MemoryKey.LONG:
+                return (T) Long.valueOf(getLong(key.getSlot()));
+            case MemoryKey.DOUBLE:
+                return (T) Double.valueOf(getDouble(key.getSlot()));
+            default:
+                return (T) objects[key.getSlot()];
+        }
+    }
+
+    /**
+     * Saves the value of the declared key, unboxing primitive values. Null
+     * resets primitive values to zero.
+     *
+     * @param <T> the type of the value
+     * @param key the declared key
+     * @param value the value to save
+     * @return the previous value
+     */
+    public <T> T put(MemoryKey<T> key, T value) {
+        T previous = get(key);
+        putSlot(key, value);
+        return previous;
+    }
+
+    /**
+     * Saves the value of the declared key whatever its type, checking it
+     * against the type of the key.
+     *
+     * @param key the declared key
+     * @param value the value to save
+     * @return the previous value
+     */
+    Object putDeclared(MemoryKey<?> key, Object value) {
+        Object previous = get(key);
+        putSlot(key, value);
+        return previous;
+    }
+
+    /**
+     * Saves the value in the slot of the declared key.
+     *
+     * @param key the declared key
+     * @param value the value to save
+     */
+    private void putSlot(MemoryKey<?> key, Object value) {
+        ownSlots();
+        if (changed != null) {
+            changed.slots[key.getKind()].set(key.getSlot());
+        }
+        switch (key.getKind()) {
+            case MemoryKey.INT:
+                putInt(key.getSlot(), value == null ? 0 : ((Number) value).intValue());
+                break;
+            case MemoryKey.LONG:
+                putLong(key.getSlot(), value == null ? 0L : ((Number) value).longValue());
+                break;
+            case MemoryKey.DOUBLE:
+                putDouble(key.getSlot(), value == null ? 0D : ((Number) value).doubleValue());
+                break;
+            default:
+                objects[key.getSlot()] = key.getType().cast(value);
+        }
+    }
+
+    /**
+     * Returns the int value of the declared key.
+     *
+     * @param key the declared key
+     * @return the value
+     */
+    public int getInt(MemoryKey.OfInt key) {
+        return getInt(key.getSlot());
+    }
+
+    /**
+     * Saves the int value of the declared key.
+     *
+     * @param key the declared key
+     * @param value the value to save
+     */
+    public void putInt(MemoryKey.OfInt key, int value) {
+        ownSlots();
+        if (changed != null) {
+            changed.slots[MemoryKey.INT].set(key.getSlot());
+        }
+        putInt(key.getSlot(), value);
+    }
+
+    /**
+     * Returns the long value of the declared key.
+     *
+     * @param key the declared key
+     * @return the value
+     */
+    public long getLong(MemoryKey.OfLong key) {
+        return getLong(key.getSlot());
+    }
+
+    /**
+     * Saves the long value of the declared key.
+     *
+     * @param key the declared key
+     * @param value the value to save
+     */
+    public void putLong(MemoryKey.OfLong key, long value) {
+        ownSlots();
+        if (changed != null) {
+            changed.slots[MemoryKey.LONG].set(key.getSlot());
+        }
+        putLong(key.getSlot(), value);
+    }
+
+    /**
+     * Returns the double value of the declared key.
+     *
+     * @param key the declared key
+     * @return the value
+     */
+    public double getDouble(MemoryKey.OfDouble key) {
+        return getDouble(key.getSlot());
+    }
+
+    /**
+     * Saves the double value of the declared key.
+     *
+     * @param key the declared key
+     * @param value the value to save
+     */
+    public void putDouble(MemoryKey.OfDouble key, double value) {
+        ownSlots();
+        if (changed != null) {
+            changed.slots[MemoryKey.DOUBLE].set(key.getSlot());
+        }
+        putDouble(key.getSlot(), value);
+    }
+
+    /**
+     * Reads an int slot from the array or the record.
+     *
+     * @param slot the slot
+     * @return the value
+     */
+    private int getInt(int slot) {
+        return slab == null ? ints[slot] : slab.getInt(intBase + (slot << 2));
+    }
+
+    /**
+     * Writes an int slot to the array or the record.
+     *
+     * @param slot the slot
+     * @param value the value
+     */
+    private void putInt(int slot, int value) {
+        if (slab == null) {
+            ints[slot] = value;
+        } else {
+            slab.putInt(intBase + (slot << 2), value);
+        }
+    }
+
+    /**
+     * Reads a long slot from the array or the record.
+     *
+     * @param slot the slot
+     * @return the value
+     */
+    private long getLong(int slot) {
+        return slab == null ? longs[slot] : slab.getLong(longBase + (slot << 3));
+    }
+
+    /**
+     * Writes a long slot to the array or the record.
+     *
+     * @param slot the slot
+     * @param value the value
+     */
+    private void putLong(int slot, long value) {
+        if (slab == null) {
+            longs[slot] = value;
+        } else {
+            slab.putLong(longBase + (slot << 3), value);
+        }
+    }
+
+    /**
+     * Reads a double slot from the array or the record.
+     *
+     * @param slot the slot
+     * @return the value
+     */
+    private double getDouble(int slot) {
+        return slab == null ? doubles[slot] : slab.getDouble(doubleBase + (slot << 3));
+    }
+
+    /**
+     * Writes a double slot to the array or the record.
+     *
+     * @param slot the slot
+     * @param value the value
+     */
+    private void putDouble(int slot, double value) {
+        if (slab == null) {
+            doubles[slot] = value;
+        } else {
+            slab.putDouble(doubleBase + (slot << 3), value);
+        }
+    }
+
+    /**
+     * Resolves the given map key to a declared key.
+     *
+     * @param key the map key, either a declared key or its name
+     * @return the declared key, or null if the key is not declared
+     */
+    private MemoryKey<?> declared(Object key) {
+        return key instanceof MemoryKey ? (MemoryKey<?>) key : layout.getKey(key);
+    }
+
+    @Override
+    public Object get(Object key) {
+        MemoryKey<?> declared = declared(key);
+        return declared != null ? get(declared) : getValue(key);
+    }
+
+    @Override
+    public Object put(Object key, Object value) {
+        MemoryKey<?> declared = declared(key);
+        return declared != null ? putDeclared(declared, value) : putValue(key, value);
+    }
+
+    @Override
+    public Object remove(Object key) {
+        MemoryKey<?> declared = declared(key);
+        return declared != null ? putDeclared(declared, null) : removeValue(key, false);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        MemoryKey<?> declared = declared(key);
+        if (declared != null) {
+            return declared.getKind() != MemoryKey.OBJECT || objects[declared.getSlot()] != null;
+        }
+        if (changes != null) {
+            Object changed = changes.get(key);
+            if (changed != null) {
+                return changed != REMOVED;
+            }
+        }
+        return base.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        int slots = size + layout.getIntSlots() + layout.getLongSlots() + layout.getDoubleSlots();
+        for (Object object : objects) {
+            if (object != null) {
+                slots++;
+            }
+        }
+        return slots;
+    }
+
+    @Override
+    public void clear() {
+        if (changed != null) {
+            changed.cleared = true;
+        }
+        base = Collections.emptyMap();
+        changes = null;
+        size = 0;
+
+        ownSlots();
+        Arrays.fill(objects, null);
+        if (slab == null) {
+            Arrays.fill(ints, 0);
+            Arrays.fill(longs, 0L);
+            Arrays.fill(doubles, 0D);
+        } else {
+            for (int i = 0; i < layout.getSlab().getRecordSize(); i += 8) {
+                slab.putLong(longBase + i, 0L);
+            }
+        }
+    }
+
+    /**
+     * Returns the value of an undeclared key, looking at the own changes
+     * before the shared entries.
+     *
+     * @param key the key
+     * @return the value, or null if not found
+     */
+    private Object getValue(Object key) {
+        if (changes != null) {
+            Object changed = changes.get(key);
+            if (changed != null) {
+                return changed == REMOVED || changed == NULL ? null : changed;
+            }
+        }
+        return base.get(key);
+    }
+
+    /**
+     * Saves the value of an undeclared key within the own changes.
+     *
+     * @param key the key
+     * @param value the value
+     * @return the previous value
+     */
+    private Object putValue(Object key, Object value) {
+        if (changed != null) {
+            changed.keys.add(key);
+        }
+        if (changes == null) {
+            changes = new HashMap<>();
+        }
+
+        Object changed = changes.put(key, value == null ? NULL : value);
+        if (changed == null) {
+            Object previous = base.get(key);
+            if (previous == null && !base.containsKey(key)) {
+                size++;
+            }
+            return previous;
+        }
+        if (changed == REMOVED) {
+            size++;
+            return null;
+        }
+        return changed == NULL ? null : changed;
+    }
+
+    /**
+     * Removes an undeclared key. Keys of the shared entries are marked as
+     * removed within the own changes.
+     *
+     * @param key the key
+     * @param keepMark true to mark the key as removed instead of dropping it
+     * from the changes, so the changes are not structurally modified
+     * @return the previous value
+     */
+    private Object removeValue(Object key, boolean keepMark) {
+        if (this.changed != null) {
+            this.changed.keys.add(key);
+        }
+        Object changed = changes == null ? null : changes.get(key);
+        if (changed == REMOVED) {
+            return null;
+        }
+
+        if (changed == null) {
+            if (!base.containsKey(key)) {
+                return null;
+            }
+            if (changes == null) {
+                changes = new HashMap<>();
+            }
+            changes.put(key, REMOVED);
+            size--;
+            return base.get(key);
+        }
+
+        if (keepMark || base.containsKey(key)) {
+            changes.put(key, REMOVED);
+        } else {
+            changes.remove(key);
+        }
+        size--;
+        return changed == NULL ? null : changed;
+    }
+
+    @Override
+    public Set<Entry<Object, Object>> entrySet() {
+        return new AbstractSet<Entry<Object, Object>>() {
+            @Override
+            public Iterator<Entry<Object, Object>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return StateMemory.this.size();
+            }
+        };
+    }
+
+    /**
+     * Iterates the set declared values first, then the own changes and the
+     * shared entries that were not changed last.
+     */
+    private final class EntryIterator implements Iterator<Entry<Object, Object>> {
+
+        private final Iterator<MemoryKey<?>> declared = layout.getKeys().iterator();
+        private final Iterator<Entry<Object, Object>> changed = changes == null ? Collections.emptyIterator() : changes.entrySet().iterator();
+        private final Iterator<Object> shared = base.keySet().iterator();
+        private Object nextKey = NULL;
+        private Object lastKey = NULL;
+        private boolean lastChanged;
+        private boolean nextChanged;
+
+        EntryIterator() {
+            advance();
+        }
+
+        private void advance() {
+            while (declared.hasNext()) {
+                MemoryKey<?> key = declared.next();
+                if (key.getKind() != MemoryKey.OBJECT || objects[key.getSlot()] != null) {
+                    nextKey = key.getName();
+                    nextChanged = false;
+                    return;
+                }
+            }
+            while (changed.hasNext()) {
+                Entry<Object, Object> entry = changed.next();
+                if (entry.getValue() != REMOVED) {
+                    nextKey = entry.getKey();
+                    nextChanged = true;
+                    return;
+                }
+            }
+            while (shared.hasNext()) {
+                Object key = shared.next();
+                if (changes == null || !changes.containsKey(key)) {
+                    nextKey = key;
+                    nextChanged = false;
+                    return;
+                }
+            }
+            nextKey = NULL;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextKey != NULL;
+        }
+
+        @Override
+        public Entry<Object, Object> next() {
+            if (nextKey == NULL) {
+                throw new NoSuchElementException();
+            }
+            lastKey = nextKey;
+            lastChanged = nextChanged;
+            advance();
+            return new KeyEntry(lastKey);
+        }
+
+        @Override
+        public void remove() {
+            if (lastKey == NULL) {
+                throw new IllegalStateException();
+            }
+            if (declared(lastKey) != null) {
+                StateMemory.this.remove(lastKey);
+            } else {
+                // changes being iterated must not be structurally modified
+                removeValue(lastKey, lastChanged);
+            }
+            lastKey = NULL;
+        }
+
+    }
+
+    /**
+     * Entry reading and writing through to this memory.
+     */
+    private final class KeyEntry implements Entry<Object, Object> {
+
+        private final Object key;
+
+        KeyEntry(Object key) {
+            this.key = key;
+        }
+
+        @Override
+        public Object getKey() {
+            return key;
+        }
+
+        @Override
+        public Object getValue() {
+            return get(key);
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            return put(key, value);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Entry)) {
+                return false;
+            }
+            Entry<?, ?> other = (Entry<?, ?>) obj;
+            return Objects.equals(getKey(), other.getKey()) && Objects.equals(getValue(), other.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(getKey()) ^ Objects.hashCode(getValue());
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+
+    }
+
+    /**
+     * The keys written since changes are recorded: the slots of declared keys
+     * by kind and the undeclared keys, put or removed.
+     */
+    static final class Changes {
+
+        final BitSet[] slots;
+        final Set<Object> keys;
+        boolean cleared;
+
+        /**
+         * Initializes empty changes for the given layout.
+         *
+         * @param layout the layout
+         */
+        private Changes(MemoryLayout layout) {
+            slots = new BitSet[]{new BitSet(layout.getObjectSlots()), new BitSet(layout.getIntSlots()),
+                new BitSet(layout.getLongSlots()), new BitSet(layout.getDoubleSlots())};
+            keys = new HashSet<>();
+        }
+
+        /**
+         * Forgets the recorded changes.
+         */
+        void reset() {
+            for (BitSet kind : slots) {
+                kind.clear();
+            }
+            keys.clear();
+            cleared = false;
+        }
+    }
+
+}
@@ -0,0 +1,158 @@
+package de.iisys.libstate;
+
+/**
+ * Fixed-size ring buffer of the last steps of one {@link StateGraphExecution}:
+ * the state left, the transition taken and the time it happened. Recording
+ * never allocates, so it can be left on in production and dumped when a run
+ * fails.<br>
+ * Only the thread driving the execution records, so the recorder must not be
+ * read while the execution is being stepped.
+  */
+public class StepRecorder {
+
+    private final int[] states;
+    private final int[] transitions;
+    private final long[] timestamps;
+    private final int mask;
+    private long count;
+
+    /**
+     * Initializes an empty recorder keeping at least the given number of
+     * steps, rounded up to a power of two.
+     *
+     * @param capacity the number of steps to keep
+     */
+    public StepRecorder(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity needs to be between 1 and 2^30.");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        states = new int[size];
+        transitions = new int[size];
+        timestamps = new long[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Records a step, overwriting the oldest one if the recorder is full.
+     *
+     * @param state the ID of the state left
+     * @param transition the ID of the transition taken, or
+     * {@link CompiledStateGraph#NONE} if the execution terminated
+     * @param timestamp the time of the step by {@link System#nanoTime()}
+     */
+    public void record(int state, int transition, long timestamp) {
+        int index = (int) count & mask;
+        states[index] = state;
+        transitions[index] = transition;
+        timestamps[index] = timestamp;
+        count++;
+    }
+
+    /**
+     * Returns the number of steps this recorder keeps.
+     *
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Returns the number of steps recorded since the start, including those
+     * already overwritten.
+     *
+     * @return the number of steps
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the number of steps kept.
+     *
+     * @return the number of steps that can be read
+     */
+    public int getSize() {
+        return (int) Math.min(count, mask + 1);
+    }
+
+    /**
+     * Returns the state left by the given kept step, the oldest first.
+     *
+     * @param step the index of the step, less than {@link #getSize()}
+     * @return the state ID
+     */
+    public int getState(int step) {
+        return states[index(step)];
+    }
+
+    /**
+     * Returns the transition taken by the given kept step, the oldest first.
+     *
+     * @param step the index of the step, less than {@link #getSize()}
+     * @return the transition ID, or {@link CompiledStateGraph#NONE}
+     */
+    public int getTransition(int step) {
+        return transitions[index(step)];
+    }
+
+    /**
+     * Returns the time of the given kept step, the oldest first.
+     *
+     * @param step the index of the step, less than {@link #getSize()}
+     * @return the time by {@link System#nanoTime()}
+     */
+    public long getTimestamp(int step) {
+        return timestamps[index(step)];
+    }
+
+    /**
+     * Forgets all recorded steps.
+     */
+    public void clear() {
+        count = 0;
+    }
+
+    /**
+     * Maps the index of a kept step to its index in the arrays.
+     *
+     * @param step the index of the step
+     * @return the array index
+     */
+    private int index(int step) {
+        if (step < 0 || step >= getSize()) {
+            throw new IndexOutOfBoundsException("Step " + step + " is not recorded.");
+        }
+        return (int) (count - getSize() + step) & mask;
+    }
+
+    /**
+     * Writes the kept steps one per line, the oldest first, with the
+     * identifications of the states and the time relative to the last step.
+     *
+     * @param graph the compiled graph the steps were recorded on
+     * @return the dump
+     */
+    public String dump(CompiledStateGraph graph) {
+        StringBuilder builder = new StringBuilder();
+        int size = getSize();
+        long last = size == 0 ? 0 : getTimestamp(size - 1);
+        for (int step = 0; step < size; step++) {
+            int transition = getTransition(step);
+            builder.append(count - size + step).append(": ").append(graph.getIdentification(getState(step))).append(" -> ")
+                    .append(transition == CompiledStateGraph.NONE ? "end" : graph.getIdentification(graph.getTransitionDestination(transition)))
+                    .append(" (transition ").append(transition).append(", ").append(getTimestamp(step) - last).append(" ns)\n");
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "StepRecorder{" + "capacity=" + getCapacity() + ", count=" + count + '}';
+    }
+
+}
@@ -0,0 +1,80 @@
+package de.iisys.libstate;
+
+import de.iisys.libstate.interfaces.Action;
+import de.iisys.libstate.interfaces.State;
+import de.iisys.libstate.interfaces.Transition;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Transition taken when an execution has waited in its source state for a
+ * given time, unless an event transition has been taken before. The delay is
+ * computed from the source state whenever the execution starts waiting there,
+ * and timed on the {@link StateGraphTimer#getShared() shared timer}. When it
+ * has elapsed, the execution is sent an internal event, so it goes on like
+ * after any other event, on whatever thread drives it.<br>
+ * If the condition does not hold once the time has elapsed, the execution
+ * keeps waiting for events and the timed transitions of the state due later,
+ * which are timed from when it started waiting.
+  * @param <S>
+ * @param <D>
+ */
+public class TimedTransition<S extends State, D extends State> extends BasicTransition<S, D> {
+
+    private final ToLongFunction<S> delay;
+
+    /**
+     * Initializes the transition taken after the given delay.
+     *
+     * @param source the source of the transition
+     * @param destination the destination of the transition
+     * @param delay the delay in nanoseconds computed from the source state,
+     * zero or less to leave right away
+     * @param action the action to execute
+     * @param condition to check
+     */
+    public TimedTransition(S source, D destination, ToLongFunction<S> delay, Action<Transition<S, D>> action, Function<Transition<S, D>, Boolean> condition) {
+        super(source, destination, StateGraphExecution.Elapsed.class, action, condition);
+        if (delay == null) {
+            throw new IllegalArgumentException("The delay of a timed transition cannot be null.");
+        }
+        this.delay = delay;
+    }
+
+    /**
+     * Returns the delay function of a transition taken after a fixed time.
+     *
+     * @param <S> the type of the source state
+     * @param after the time to wait
+     * @return the delay function
+     */
+    public static <S extends State> ToLongFunction<S> after(Duration after) {
+        long nanos = after.toNanos();
+        return (state) -> nanos;
+    }
+
+    /**
+     * Returns the delay function of a transition taken at a point in time
+     * read from the source state, typically from its memory.
+     *
+     * @param <S> the type of the source state
+     * @param at the point in time in milliseconds since the epoch
+     * @return the delay function
+     */
+    public static <S extends State> ToLongFunction<S> at(ToLongFunction<S> at) {
+        return (state) -> TimeUnit.MILLISECONDS.toNanos(at.applyAsLong(state) - System.currentTimeMillis());
+    }
+
+    /**
+     * Defines the time to wait in the source state before this transition is
+     * taken.
+     *
+     * @return the delay in nanoseconds computed from the source state
+     */
+    public ToLongFunction<S> delay() {
+        return delay;
+    }
+
+}
@@ -0,0 +1,864 @@
+package de.iisys.libstate;
+
+import de.iisys.libstate.interfaces.MemoryKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of the transitions of many executions of one compiled
+ * state graph, so in-flight executions survive a crash.<br>
+ * An attached execution writes a record for every transition it takes: the
+ * state it moves to, the transition and the memory values changed since the
+ * last record. The records are appended to memory-mapped segment files in the
+ * given directory. With {@link Commit#GROUP} a transition waits until its
+ * record is on disk, but one background thread forces the segment for all
+ * records appended meanwhile, so many executions share every fsync. With
+ * {@link Commit#ASYNC} the segment is forced periodically and transitions
+ * never wait.<br>
+ * Opening a journal replays its segments and rebuilds the executions that
+ * have not terminated, see {@link #getRecovered()}. They go on with the state
+ * they moved to last, so its entry and do action run again. Sealed segments
+ * are compacted into one holding a full record per live execution whenever
+ * there are too many of them.<br>
+ * Memory values are written with the given {@link SnapshotCodec}. Executions
+ * migrated to another version of the graph are not recorded any more, they
+ * get an end record, so they are not recovered on the old version.
+  */
+public class TransitionJournal implements AutoCloseable {
+
+    private static final int MAGIC = 0x4C534A31;
+    private static final int HEADER = 16;
+    private static final int RECORD_HEADER = 8;
+
+    private static final byte FULL = 1;
+    private static final byte DELTA = 2;
+    private static final byte END = 3;
+
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".log";
+
+    private final Path directory;
+    private final CompiledStateGraph graph;
+    private final SnapshotCodec codec;
+    private final Commit commit;
+    private final int segmentSize;
+    private final int maxSealedSegments;
+
+    private final MemoryKey<?>[] keys;
+    private final int[][] keyIndices;
+
+    private final TreeMap<Long, Path> sealed;
+    private long sequence;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private long nextInstance;
+    private volatile long appended;
+    private int sealing;
+    private long sealedEnd;
+
+    private final Object flushLock;
+    private final Object compactLock;
+    private long durable;
+    private int waiting;
+    private volatile boolean compactionDue;
+    private volatile boolean closed;
+    private final Thread flusher;
+
+    private final Map<Long, StateGraphExecution> recovered;
+
+    /**
+     * Opens the journal in the given directory with group commit, segments of
+     * 64 MiB and compaction of more than 8 sealed segments.
+     *
+     * @param directory the directory of the segment files
+     * @param graph the compiled graph of the executions
+     * @param codec the codec of the memory values
+     * @throws IOException
+     */
+    public TransitionJournal(Path directory, CompiledStateGraph graph, SnapshotCodec codec) throws IOException {
+        this(directory, graph, codec, Commit.GROUP, 64 << 20, 8);
+    }
+
+    /**
+     * Opens the journal in the given directory and replays the segments found
+     * there.
+     *
+     * @param directory the directory of the segment files
+     * @param graph the compiled graph of the executions
+     * @param codec the codec of the memory values
+     * @param commit when transitions wait for their records to be on disk
+     * @param segmentSize the size of a segment file in bytes
+     * @param maxSealedSegments the number of sealed segments compacted into
+     * one
+     * @throws IOException
+     * @throws UnsupportedOperationException if the graph has no stable
+     * fingerprint
+     */
+    public TransitionJournal(Path directory, CompiledStateGraph graph, SnapshotCodec codec, Commit commit, int segmentSize, int maxSealedSegments) throws IOException {
+        if (segmentSize < 4096) {
+            throw new IllegalArgumentException("Segments need at least 4096 bytes.");
+        }
+        if (maxSealedSegments < 1) {
+            throw new IllegalArgumentException("At least one sealed segment needs to be kept.");
+        }
+        this.directory = directory;
+        this.graph = graph;
+        this.codec = codec;
+        this.commit = commit;
+        this.segmentSize = segmentSize;
+        this.maxSealedSegments = maxSealedSegments;
+
+        MemoryLayout layout = graph.getMemoryLayout();
+        keys = layout.getKeys().toArray(new MemoryKey<?>[0]);
+        keyIndices = new int[][]{new int[layout.getObjectSlots()], new int[layout.getIntSlots()],
+            new int[layout.getLongSlots()], new int[layout.getDoubleSlots()]};
+        for (int i = 0; i < keys.length; i++) {
+            keyIndices[keys[i].getKind()][keys[i].getSlot()] = i;
+        }
+
+        sealed = new TreeMap<>();
+        flushLock = new Object();
+        compactLock = new Object();
+
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                sealed.put(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())), file);
+            }
+        }
+
+        Map<Long, Image> images = new HashMap<>();
+        for (Path file : sealed.values()) {
+            replay(file, images);
+        }
+
+        Map<Long, StateGraphExecution> executions = new LinkedHashMap<>();
+        new TreeMap<>(images).forEach((id, image) -> {
+            StateGraphExecution execution = graph.newExecution(image.memory);
+            execution.restore(image.state, image.comingFrom, image.status);
+            attach(id, execution, false);
+            executions.put(id, execution);
+        });
+        recovered = Collections.unmodifiableMap(executions);
+
+        sequence = sealed.isEmpty() ? 0 : sealed.lastKey();
+        openSegment(segmentSize);
+
+        flusher = new Thread(this::flushLoop, "libstate-journal");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Returns the executions rebuilt from the segments when the journal was
+     * opened, by their instance IDs. They are attached to this journal
+     * already.
+     *
+     * @return the recovered executions
+     */
+    public Map<Long, StateGraphExecution> getRecovered() {
+        return recovered;
+    }
+
+    /**
+     * Attaches the given execution, so its transitions are recorded from now
+     * on, and writes a full record of it. The execution needs to be at a
+     * boundary and must not be stepped meanwhile.
+     *
+     * @param execution the execution
+     * @return the instance ID of the execution within the journal
+     */
+    public long attach(StateGraphExecution execution) {
+        if (execution.getGraph() != graph) {
+            throw new IllegalArgumentException("The execution runs on a different graph.");
+        }
+        if (!execution.isAtBoundary()) {
+            throw new IllegalStateException("The execution is in the middle of a state and cannot be attached.");
+        }
+        long id;
+        synchronized (this) {
+            id = nextInstance++;
+        }
+        attach(id, execution, true);
+        return id;
+    }
+
+    /**
+     * Installs the writer of the given instance as listener of the execution.
+     *
+     * @param id the instance ID
+     * @param execution the execution
+     * @param full true to write a full record right away
+     */
+    private void attach(long id, StateGraphExecution execution, boolean full) {
+        Writer writer = new Writer(id, execution);
+        execution.setListener(StateGraphListener.compose(execution.getListener(), writer));
+        if (full) {
+            writer.full(execution.getStateId(), execution.getComingFromTransitionId(), execution.getStatus());
+        }
+    }
+
+    /**
+     * Waits until every record appended so far is on disk.
+     */
+    public void sync() {
+        awaitDurable(appended);
+    }
+
+    /**
+     * Replays the sealed segments and replaces them by one holding a full
+     * record of every execution that has not terminated. Runs in the
+     * background when there are more sealed segments than configured.
+     *
+     * @throws IOException
+     */
+    public void compact() throws IOException {
+        synchronized (compactLock) {
+            compactionDue = false;
+            List<Map.Entry<Long, Path>> segments;
+            synchronized (this) {
+                segments = new ArrayList<>(sealed.entrySet());
+            }
+            if (segments.isEmpty()) {
+                return;
+            }
+
+            Map<Long, Image> images = new HashMap<>();
+            for (Map.Entry<Long, Path> entry : segments) {
+                replay(entry.getValue(), images);
+            }
+
+            Path target = segments.get(segments.size() - 1).getValue();
+            Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER);
+                header.putInt(MAGIC).putLong(graph.getFingerprint()).putInt(0).flip();
+                out.write(header);
+
+                Buffer payload = new Buffer();
+                DataOutputStream data = new DataOutputStream(payload);
+                CRC32 crc = new CRC32();
+                for (Map.Entry<Long, Image> entry : new TreeMap<>(images).entrySet()) {
+                    Image image = entry.getValue();
+                    payload.reset();
+                    writeFull(data, entry.getKey(), image.state, image.comingFrom, image.status, image.memory);
+                    crc.reset();
+                    crc.update(payload.array(), 0, payload.size());
+
+                    ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + payload.size());
+                    record.putInt(payload.size()).putInt((int) crc.getValue()).put(payload.array(), 0, payload.size()).flip();
+                    while (record.hasRemaining()) {
+                        out.write(record);
+                    }
+                }
+                out.force(true);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            synchronized (this) {
+                for (int i = 0; i < segments.size() - 1; i++) {
+                    sealed.remove(segments.get(i).getKey());
+                }
+            }
+            for (int i = 0; i < segments.size() - 1; i++) {
+                Files.deleteIfExists(segments.get(i).getValue());
+            }
+        }
+    }
+
+    /**
+     * Forces the last records to disk and closes the journal. Attached
+     * executions must not take any more transitions.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (flushLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            flushLock.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            segment.force();
+            channel.close();
+        }
+        synchronized (flushLock) {
+            durable = appended;
+            flushLock.notifyAll();
+        }
+    }
+
+    /**
+     * Appends a record to the current segment, starting a new one if it does
+     * not fit. A full segment is forced after leaving the monitor, so the
+     * other executions go on appending meanwhile.
+     *
+     * @param payload the record
+     * @param length the length of the record
+     * @param crc the checksum of the record
+     * @return the position after the record
+     */
+    private long append(byte[] payload, int length, int crc) {
+        MappedByteBuffer full = null;
+        FileChannel fullChannel = null;
+        boolean due = false;
+        long position;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("The journal is closed.");
+            }
+            if (segment.remaining() < RECORD_HEADER + length) {
+                full = segment;
+                fullChannel = channel;
+                sealed.put(sequence, segmentPath(sequence));
+                due = sealed.size() > maxSealedSegments;
+                sealing++;
+                sealedEnd = appended;
+                try {
+                    openSegment(Math.max(segmentSize, HEADER + RECORD_HEADER + length));
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+            segment.putInt(length).putInt(crc).put(payload, 0, length);
+            position = appended + RECORD_HEADER + length;
+            appended = position;
+        }
+        if (full != null) {
+            seal(full, fullChannel, due);
+        }
+        return position;
+    }
+
+    /**
+     * Forces and closes a sealed segment. Once no other segment is being
+     * sealed, the records up to the end of the last one are on disk.
+     *
+     * @param buffer the mapping of the segment
+     * @param segmentChannel the channel of the segment
+     * @param due true if there are too many sealed segments now
+     */
+    private void seal(MappedByteBuffer buffer, FileChannel segmentChannel, boolean due) {
+        try {
+            buffer.force();
+            segmentChannel.close();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        long end;
+        synchronized (this) {
+            sealing--;
+            end = sealing == 0 ? sealedEnd : 0;
+        }
+        synchronized (flushLock) {
+            durable = Math.max(durable, end);
+            if (due) {
+                compactionDue = true;
+            }
+            flushLock.notifyAll();
+        }
+    }
+
+    /**
+     * Creates and maps the next segment file.
+     *
+     * @param size the size of the segment
+     * @throws IOException
+     */
+    private void openSegment(int size) throws IOException {
+        sequence++;
+        channel = FileChannel.open(segmentPath(sequence), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        segment.putInt(MAGIC).putLong(graph.getFingerprint()).putInt(0);
+    }
+
+    /**
+     * Returns the path of the segment with the given sequence number.
+     *
+     * @param sequence the sequence number
+     * @return the path
+     */
+    private Path segmentPath(long sequence) {
+        return directory.resolve(String.format("%s%020d%s", PREFIX, sequence, SUFFIX));
+    }
+
+    /**
+     * Waits until the records up to the given position are on disk.
+     *
+     * @param position the position after the last record to wait for
+     */
+    private void awaitDurable(long position) {
+        synchronized (flushLock) {
+            if (durable >= position) {
+                return;
+            }
+            waiting++;
+            flushLock.notifyAll();
+            try {
+                while (durable < position && !closed) {
+                    flushLock.wait();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                waiting--;
+            }
+        }
+    }
+
+    /**
+     * Forces the current segment whenever a transition waits for it, at least
+     * every 10 milliseconds, and compacts when due.
+     */
+    private void flushLoop() {
+        while (true) {
+            synchronized (flushLock) {
+                if (!closed && waiting == 0 && !compactionDue) {
+                    try {
+                        flushLock.wait(10);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+            }
+
+            long target;
+            MappedByteBuffer buffer;
+            boolean earlierForced;
+            synchronized (this) {
+                target = appended;
+                buffer = segment;
+                earlierForced = sealing == 0;
+            }
+            // records of earlier segments are forced when they are sealed
+            if (target > durable()) {
+                buffer.force();
+                if (earlierForced) {
+                    synchronized (flushLock) {
+                        durable = Math.max(durable, target);
+                        flushLock.notifyAll();
+                    }
+                }
+            }
+
+            if (compactionDue) {
+                try {
+                    compact();
+                } catch (IOException | RuntimeException ex) {
+                    // the segments stay as they are and are compacted next time
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the position up to which the records are on disk.
+     *
+     * @return the position
+     */
+    private long durable() {
+        synchronized (flushLock) {
+            return durable;
+        }
+    }
+
+    /**
+     * Reads the records of the given segment into the given images. Reading
+     * stops at the first incomplete or damaged record.
+     *
+     * @param file the segment file
+     * @param images the images of the executions by instance ID
+     * @throws IOException
+     */
+    private void replay(Path file, Map<Long, Image> images) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (in.size() < HEADER) {
+                return;
+            }
+            buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+        }
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException(file + " is not a journal segment.");
+        }
+        if (buffer.getLong() != graph.getFingerprint()) {
+            throw new IllegalStateException(file + " was written for a different state graph.");
+        }
+        buffer.getInt();
+
+        CRC32 crc = new CRC32();
+        byte[] payload = new byte[256];
+        while (buffer.remaining() >= RECORD_HEADER) {
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                break;
+            }
+            if (payload.length < length) {
+                payload = new byte[Math.max(length, payload.length * 2)];
+            }
+            buffer.get(payload, 0, length);
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            nextInstance = Math.max(nextInstance, read(new DataInputStream(new ByteArrayInputStream(payload, 0, length)), images) + 1);
+        }
+    }
+
+    /**
+     * Applies a record to the images.
+     *
+     * @param in the record
+     * @param images the images of the executions by instance ID
+     * @return the instance ID of the record
+     * @throws IOException
+     */
+    private long read(DataInput in, Map<Long, Image> images) throws IOException {
+        byte type = in.readByte();
+        long id = SnapshotCodec.readVarLong(in);
+        if (type == END) {
+            images.remove(id);
+            return id;
+        }
+
+        int state = SnapshotCodec.readVarInt(in) - 1;
+        int comingFrom = SnapshotCodec.readVarInt(in) - 1;
+        StateGraphExecution.Status status = StateGraphExecution.Status.values()[in.readUnsignedByte()];
+        if (type == FULL) {
+            images.put(id, new Image(state, comingFrom, status, codec.readMemory(in, graph.getMemoryLayout())));
+            return id;
+        }
+
+        Image image = images.get(id);
+        if (image == null) {
+            throw new IOException("Delta of the unknown instance " + id + ".");
+        }
+        image.state = state;
+        image.comingFrom = comingFrom;
+        image.status = status;
+        StateMemory memory = image.memory;
+
+        int slots = SnapshotCodec.readVarInt(in);
+        for (int i = 0; i < slots; i++) {
+            MemoryKey<?> key = keys[SnapshotCodec.readVarInt(in)];
+            switch (key.getKind()) {
+                case MemoryKey.INT:
+                    memory.putInt((MemoryKey.OfInt) key, (int) SnapshotCodec.unZigZag(SnapshotCodec.readVarLong(in)));
+                    break;
+                case MemoryKey.LONG:
+                    memory.putLong((MemoryKey.OfLong) key, SnapshotCodec.unZigZag(SnapshotCodec.readVarLong(in)));
+                    break;
+                case MemoryKey.DOUBLE:
+                    memory.putDouble((MemoryKey.OfDouble) key, in.readDouble());
+                    break;
+                default:
+                    memory.putDeclared(key, codec.readValue(in));
+            }
+        }
+
+        int entries = SnapshotCodec.readVarInt(in);
+        for (int i = 0; i < entries; i++) {
+            Object key = codec.readValue(in);
+            if (in.readBoolean()) {
+                memory.put(key, codec.readValue(in));
+            } else {
+                memory.remove(key);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Writes a full record.
+     *
+     * @param out the output to write to
+     * @param id the instance ID
+     * @param state the state ID
+     * @param comingFrom the ID of the transition the state was entered by
+     * @param status the status
+     * @param memory the memory
+     * @throws IOException
+     */
+    private void writeFull(DataOutputStream out, long id, int state, int comingFrom, StateGraphExecution.Status status, StateMemory memory) throws IOException {
+        out.writeByte(FULL);
+        SnapshotCodec.writeVarLong(out, id);
+        SnapshotCodec.writeVarInt(out, state + 1);
+        SnapshotCodec.writeVarInt(out, comingFrom + 1);
+        out.writeByte(status.ordinal());
+        codec.writeMemory(out, memory);
+    }
+
+    /**
+     * When a transition waits for its record to be on disk.
+     */
+    public enum Commit {
+        /**
+         * Records are forced periodically, transitions do not wait.
+         */
+        ASYNC,
+        /**
+         * Every transition waits until its record is forced, together with
+         * the records of all other executions appended meanwhile.
+         */
+        GROUP
+    }
+
+    /**
+     * Writes the records of one attached execution. Called by the thread
+     * driving the execution only.
+     */
+    private final class Writer implements StateGraphListener {
+
+        private final long id;
+        private final Buffer payload;
+        private final DataOutputStream out;
+        private final CRC32 crc;
+
+        private StateMemory memory;
+        private StateMemory.Changes changes;
+        private boolean detached;
+
+        /**
+         * Initializes the writer and starts recording the changes of the
+         * memory of the execution.
+         *
+         * @param id the instance ID
+         * @param execution the execution
+         */
+        private Writer(long id, StateGraphExecution execution) {
+            this.id = id;
+            this.payload = new Buffer();
+            this.out = new DataOutputStream(payload);
+            this.crc = new CRC32();
+            track(execution);
+        }
+
+        /**
+         * Starts recording the changes of the current memory of the execution.
+         * The execution may be another one than the writer was attached to,
+         * like one read back from a snapshot of it.
+         *
+         * @param execution the execution
+         */
+        private void track(StateGraphExecution execution) {
+            memory = execution.getMemory();
+            changes = memory.trackChanges();
+        }
+
+        @Override
+        public void transitionTaken(StateGraphExecution execution, int transition) {
+            if (detached || execution.getGraph() != graph) {
+                // migrated to another version, which needs a journal of its own
+                return;
+            }
+            int destination = graph.getTransitionDestination(transition);
+            if (destination == CompiledStateGraph.NONE) {
+                // the end record follows
+                return;
+            }
+            if (execution.getMemory() != memory || changes.cleared) {
+                track(execution);
+                full(destination, transition, StateGraphExecution.Status.RUNNING);
+            } else {
+                delta(destination, transition);
+            }
+        }
+
+        @Override
+        public void errorTransitionTaken(StateGraphExecution execution, int state, int handler) {
+            if (detached || execution.getGraph() != graph) {
+                return;
+            }
+            track(execution);
+            full(handler, CompiledStateGraph.NONE, StateGraphExecution.Status.RUNNING);
+        }
+
+        @Override
+        public void executionTerminated(StateGraphExecution execution) {
+            if (!detached) {
+                end();
+                detached = true;
+            }
+        }
+
+        @Override
+        public void executionMigrated(StateGraphExecution execution, CompiledStateGraph previous) {
+            // the records of this journal cannot describe the new version, so recovery must not bring back the old one
+            if (!detached && previous == graph) {
+                end();
+                detached = true;
+            }
+        }
+
+        /**
+         * Writes the end record of the execution.
+         */
+        private void end() {
+            payload.reset();
+            try {
+                out.writeByte(END);
+                SnapshotCodec.writeVarLong(out, id);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            write();
+        }
+
+        /**
+         * Writes a full record of the execution.
+         *
+         * @param state the state ID
+         * @param comingFrom the ID of the transition the state was entered by
+         * @param status the status
+         */
+        private void full(int state, int comingFrom, StateGraphExecution.Status status) {
+            payload.reset();
+            try {
+                writeFull(out, id, state, comingFrom, status, memory);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            changes.reset();
+            write();
+        }
+
+        /**
+         * Writes a record of the memory values changed since the last record.
+         *
+         * @param state the state ID
+         * @param comingFrom the ID of the transition the state was entered by
+         */
+        private void delta(int state, int comingFrom) {
+            payload.reset();
+            try {
+                out.writeByte(DELTA);
+                SnapshotCodec.writeVarLong(out, id);
+                SnapshotCodec.writeVarInt(out, state + 1);
+                SnapshotCodec.writeVarInt(out, comingFrom + 1);
+                out.writeByte(StateGraphExecution.Status.RUNNING.ordinal());
+
+                int count = 0;
+                for (BitSet kind : changes.slots) {
+                    count += kind.cardinality();
+                }
+                SnapshotCodec.writeVarInt(out, count);
+                for (int kind = 0; kind < changes.slots.length; kind++) {
+                    BitSet slots = changes.slots[kind];
+                    for (int slot = slots.nextSetBit(0); slot >= 0; slot = slots.nextSetBit(slot + 1)) {
+                        int index = keyIndices[kind][slot];
+                        SnapshotCodec.writeVarInt(out, index);
+                        switch (kind) {
+                            case MemoryKey.INT:
+                                SnapshotCodec.writeVarLong(out, SnapshotCodec.zigZag(memory.getInt((MemoryKey.OfInt) keys[index])));
+                                break;
+                            case MemoryKey.LONG:
+                                SnapshotCodec.writeVarLong(out, SnapshotCodec.zigZag(memory.getLong((MemoryKey.OfLong) keys[index])));
+                                break;
+                            case MemoryKey.DOUBLE:
+                                out.writeDouble(memory.getDouble((MemoryKey.OfDouble) keys[index]));
+                                break;
+                            default:
+                                codec.writeValue(out, memory.get(keys[index]));
+                        }
+                    }
+                }
+
+                SnapshotCodec.writeVarInt(out, changes.keys.size());
+                for (Object key : changes.keys) {
+                    codec.writeValue(out, key);
+                    boolean present = memory.containsKey(key);
+                    out.writeBoolean(present);
+                    if (present) {
+                        codec.writeValue(out, memory.get(key));
+                    }
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            changes.reset();
+            write();
+        }
+
+        /**
+         * Appends the written record and waits for it with group commit.
+         */
+        private void write() {
+            crc.reset();
+            crc.update(payload.array(), 0, payload.size());
+            long position = append(payload.array(), payload.size(), (int) crc.getValue());
+            if (commit == Commit.GROUP) {
+                awaitDurable(position);
+            }
+        }
+    }
+
+    /**
+     * The state of an execution rebuilt from the records.
+     */
+    private static final class Image {
+
+        private int state;
+        private int comingFrom;
+        private StateGraphExecution.Status status;
+        private final StateMemory memory;
+
+        private Image(int state, int comingFrom, StateGraphExecution.Status status, StateMemory memory) {
+            this.state = state;
+            this.comingFrom = comingFrom;
+            this.status = status;
+            this.memory = memory;
+        }
+    }
+
+    /**
+     * Byte array output whose array can be read without copying.
+     */
+    private static final class Buffer extends ByteArrayOutputStream {
+
+        private Buffer() {
+            super(256);
+        }
+
+        private byte[] array() {
+            return buf;
+        }
+    }
+
+}
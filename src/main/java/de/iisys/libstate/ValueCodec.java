@@ -0,0 +1,32 @@
+package de.iisys.libstate;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes and reads values of one type in binary form, so memory values can be
+ * part of a snapshot. Registered with a {@link SnapshotCodec}.
+  * @param <T> the type of the values
+ */
+public interface ValueCodec<T> {
+
+    /**
+     * Writes the given value.
+     *
+     * @param out the output to write to
+     * @param value the value, never null
+     * @throws IOException
+     */
+    void write(DataOutput out, T value) throws IOException;
+
+    /**
+     * Reads a value written by {@link #write(DataOutput, Object)}.
+     *
+     * @param in the input to read from
+     * @return the value
+     * @throws IOException
+     */
+    T read(DataInput in) throws IOException;
+
+}
@@ -0,0 +1,106 @@
+package de.iisys.libstate;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Lookup table of the {@link ValueTransition}s of one state switching on the
+ * same memory key, from the value to the transition ID. Dense int values are
+ * looked up in an array, any other values in a hash map.
+  */
+final class ValueTable {
+
+    private final Object key;
+    private final int position;
+    private final int min;
+    private final int[] array;
+    private final Map<Object, Integer> map;
+
+    /**
+     * Bakes the given values into a table.
+     *
+     * @param key the memory key switched on
+     * @param position the ID of the first transition in the table
+     * @param values the transition IDs by value, the first transition of a
+     * value kept
+     */
+    ValueTable(Object key, int position, Map<Object, Integer> values) {
+        this.key = key;
+        this.position = position;
+        long low = Long.MAX_VALUE;
+        long high = Long.MIN_VALUE;
+        boolean ints = true;
+        for (Object value : values.keySet()) {
+            if (!(value instanceof Integer)) {
+                ints = false;
+                break;
+            }
+            low = Math.min(low, (Integer) value);
+            high = Math.max(high, (Integer) value);
+        }
+
+        // an array as long as it is at most four times as long as there are values
+        if (ints && high - low < 4L * values.size() + 4) {
+            this.min = (int) low;
+            this.array = new int[(int) (high - low + 1)];
+            Arrays.fill(array, CompiledStateGraph.NONE);
+            for (Map.Entry<Object, Integer> entry : values.entrySet()) {
+                array[(Integer) entry.getKey() - min] = entry.getValue();
+            }
+            this.map = null;
+        } else {
+            this.min = 0;
+            this.array = null;
+            this.map = new HashMap<>(values);
+        }
+    }
+
+    /**
+     * Returns the memory key switched on.
+     *
+     * @return the key
+     */
+    Object getKey() {
+        return key;
+    }
+
+    /**
+     * Returns the ID of the first transition in the table, where it is looked
+     * up among the conditions of the state.
+     *
+     * @return the transition ID
+     */
+    int getPosition() {
+        return position;
+    }
+
+    /**
+     * Checks whether the values are looked up in an array.
+     *
+     * @return true for an array, false for a hash map
+     */
+    boolean isArray() {
+        return array != null;
+    }
+
+    /**
+     * Looks up the transition taken for the given memory value.
+     *
+     * @param value the memory value
+     * @return the transition ID, or {@link CompiledStateGraph#NONE} if no
+     * value transition matches
+     */
+    int lookup(Object value) {
+        if (array != null) {
+            if (!(value instanceof Integer)) {
+                return CompiledStateGraph.NONE;
+            }
+            int index = (Integer) value - min;
+            return index >= 0 && index < array.length ? array[index] : CompiledStateGraph.NONE;
+        }
+        Integer transition = map.get(value);
+        return transition == null ? CompiledStateGraph.NONE : transition;
+    }
+
+}
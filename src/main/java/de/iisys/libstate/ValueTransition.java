@@ -0,0 +1,60 @@
+package de.iisys.libstate;
+
+import de.iisys.libstate.interfaces.Action;
+import de.iisys.libstate.interfaces.State;
+import de.iisys.libstate.interfaces.Transition;
+import java.util.Objects;
+
+/**
+ * Transition taken on completion of its source state when a memory value
+ * equals a constant. Its condition says so as well, but the
+ * {@link CompiledStateGraph} bakes value transitions of a state on the same
+ * key that follow each other into a lookup table, so selecting one of many
+ * costs a single memory read and lookup instead of checking them one by one.
+  * @param <S>
+ * @param <D>
+ */
+public class ValueTransition<S extends State, D extends State> extends BasicTransition<S, D> {
+
+    private final Object key;
+    private final Object value;
+
+    /**
+     * Initializes the transition taken when the memory value of the given key
+     * equals the given value.
+     *
+     * @param source the source of the transition
+     * @param destination the destination of the transition
+     * @param key the memory key to switch on
+     * @param value the value the memory value is to equal, may be null
+     * @param action the action to execute
+     */
+    public ValueTransition(S source, D destination, Object key, Object value, Action<Transition<S, D>> action) {
+        super(source, destination, action, (transition) -> Objects.equals(transition.getSource().get(key), value));
+        if (key == null) {
+            throw new IllegalArgumentException("The key of a value transition cannot be null.");
+        }
+        this.key = key;
+        this.value = value;
+    }
+
+    /**
+     * Defines the memory key the transition switches on.
+     *
+     * @return the key
+     */
+    public Object key() {
+        return key;
+    }
+
+    /**
+     * Defines the value the memory value is to equal for this transition to
+     * be taken.
+     *
+     * @return the value, may be null
+     */
+    public Object value() {
+        return value;
+    }
+
+}
@@ -0,0 +1,34 @@
+package de.iisys.libstate;
+
+/**
+ * How an execution waits between two rounds of a state polling by a
+ * completion transition back to itself, trading latency for CPU. Set per
+ * state by {@link StateGraph#setWaitStrategy(Object, WaitStrategy)}. The
+ * rounds are counted from the first one after the state was entered from
+ * elsewhere; taking any other transition starts the count anew.
+  */
+public enum WaitStrategy {
+    /**
+     * Turns the next round right away. Lowest latency, but keeps a core busy
+     * as long as the state polls.
+     */
+    BUSY_SPIN,
+    /**
+     * Yields the thread before each round, so other threads on the same core
+     * go first.
+     */
+    YIELD,
+    /**
+     * Turns the first rounds right away, then yields and finally parks for a
+     * time doubling each round up to one millisecond. Idles at next to no CPU
+     * while reacting within a millisecond.
+     */
+    BACKOFF,
+    /**
+     * Turns no round until the execution is woken by
+     * {@link StateGraphExecution#signal()}, an event sent or an asynchronous
+     * action completed. The thread running the execution parks meanwhile, an
+     * instance gives its thread back.
+     */
+    BLOCK
+}
@@ -0,0 +1,78 @@
+package de.iisys.libstate.interfaces;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * An AsyncAction starts a piece of code within a given context T and returns
+ * a future completed when the code is done.<br>
+ * An execution running an AsyncAction is suspended until the future completes
+ * and does not hold a thread meanwhile. Any changes to the memory of the
+ * context need to be made before the future completes. When run as plain
+ * {@link Action} the calling thread waits for the future.
+  * @param <T> the context the action is running in
+ */
+@FunctionalInterface
+public interface AsyncAction<T> extends Action<T> {
+
+    /**
+     * Starts the defined piece of code in the given context.
+     *
+     * @param parent the given context
+     * @return the future completed when the code is done, may be null if
+     * there is nothing to wait for
+     * @throws Exception
+     */
+    CompletableFuture<?> runAsync(T parent) throws Exception;
+
+    /**
+     * Executes the defined piece of code in the given context and waits for
+     * it.
+     *
+     * @param parent the given context
+     * @throws Exception the exception the future completed with
+     */
+    @Override
+    default void run(T parent) throws Exception {
+        CompletableFuture<?> future = runAsync(parent);
+        if (future != null) {
+            try {
+                future.get();
+            } catch (ExecutionException ex) {
+                throw unwrap(ex);
+            }
+        }
+    }
+
+    /**
+     * Returns the given action, so a lambda returning a future can be passed
+     * where an {@link Action} is expected without being taken as synchronous
+     * action.
+     *
+     * @param <T> the context the action is running in
+     * @param action the action
+     * @return the same action
+     */
+    static <T> AsyncAction<T> of(AsyncAction<T> action) {
+        return action;
+    }
+
+    /**
+     * Unwraps the exception a future completed with.
+     *
+     * @param throwable the exception thrown by the future
+     * @return the exception to throw
+     */
+    static Exception unwrap(Throwable throwable) {
+        Throwable cause = throwable;
+        while ((cause instanceof ExecutionException || cause instanceof CompletionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return cause instanceof Exception ? (Exception) cause : new ExecutionException(cause);
+    }
+
+}
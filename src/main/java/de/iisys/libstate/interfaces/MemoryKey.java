@@ -0,0 +1,83 @@
+package de.iisys.libstate.interfaces;
+
+/**
+ * Typed key of a memory value declared on a state graph. A declared key
+ * resolves to a fixed slot of the memory of an execution, so reading and
+ * writing it is array indexing instead of hashing. The primitive keys
+ * {@link OfInt}, {@link OfLong} and {@link OfDouble} keep their values
+ * unboxed.<br>
+ * Keys are handed out by the state graph they are declared on, they are not
+ * meant to be implemented.
+  * @param <T> the type of the value
+ */
+public interface MemoryKey<T> {
+
+    /**
+     * Kind of the slot of an object value.
+     */
+    int OBJECT = 0;
+
+    /**
+     * Kind of the slot of an unboxed int value.
+     */
+    int INT = 1;
+
+    /**
+     * Kind of the slot of an unboxed long value.
+     */
+    int LONG = 2;
+
+    /**
+     * Kind of the slot of an unboxed double value.
+     */
+    int DOUBLE = 3;
+
+    /**
+     * Returns the name of the key. {@link State#get(Object)} with this name
+     * reads the same slot.
+     *
+     * @return the name
+     */
+    Object getName();
+
+    /**
+     * Returns the type of the value.
+     *
+     * @return the type
+     */
+    Class<T> getType();
+
+    /**
+     * Returns the kind of slot.
+     *
+     * @return one of {@link #OBJECT}, {@link #INT}, {@link #LONG} or
+     * {@link #DOUBLE}
+     */
+    int getKind();
+
+    /**
+     * Returns the index of the slot within the slots of its kind.
+     *
+     * @return the slot index
+     */
+    int getSlot();
+
+    /**
+     * Key of an unboxed int value.
+     */
+    interface OfInt extends MemoryKey<Integer> {
+    }
+
+    /**
+     * Key of an unboxed long value.
+     */
+    interface OfLong extends MemoryKey<Long> {
+    }
+
+    /**
+     * Key of an unboxed double value.
+     */
+    interface OfDouble extends MemoryKey<Double> {
+    }
+
+}
@@ -60,6 +60,112 @@ public interface State {
      */
     <T> T remove(Object key);
 
+    /**
+     * Returns the value saved under the given declared key. By default the
+     * value is looked up by the name of the key.
+     *
+     * @param <T> the type of the value
+     * @param key the declared key
+     * @return the value saved under the key
+     */
+    default <T> T get(MemoryKey<T> key) {
+        return get(key.getName());
+    }
+
+    /**
+     * Saves a value under the given declared key and returns it. By default
+     * the value is saved under the name of the key.
+     *
+     * @param <T> the type of the value
+     * @param key the declared key
+     * @param value the value to save
+     * @return the same value given
+     */
+    default <T> T put(MemoryKey<T> key, T value) {
+        return put(key.getName(), value);
+    }
+
+    /**
+     * Returns the int value saved under the given declared key.
+     *
+     * @param key the declared key
+     * @return the value, zero if not set
+     */
+    default int getInt(MemoryKey.OfInt key) {
+        Integer value = get(key.getName());
+        return value == null ? 0 : value;
+    }
+
+    /**
+     * Saves an int value under the given declared key and returns it.
+     *
+     * @param key the declared key
+     * @param value the value to save
+     * @return the same value given
+     */
+    default int putInt(MemoryKey.OfInt key, int value) {
+        put(key.getName(), value);
+        return value;
+    }
+
+    /**
+     * Returns the long value saved under the given declared key.
+     *
+     * @param key the declared key
+     * @return the value, zero if not set
+     */
+    default long getLong(MemoryKey.OfLong key) {
+        Long value = get(key.getName());
+        return value == null ? 0L : value;
+    }
+
+    /**
+     * Saves a long value under the given declared key and returns it.
+     *
+     * @param key the declared key
+     * @param value the value to save
+     * @return the same value given
+     */
+    default long putLong(MemoryKey.OfLong key, long value) {
+        put(key.getName(), value);
+        return value;
+    }
+
+    /**
+     * Returns the double value saved under the given declared key.
+     *
+     * @param key the declared key
+     * @return the value, zero if not set
+     */
+    default double getDouble(MemoryKey.OfDouble key) {
+        Double value = get(key.getName());
+        return value == null ? 0D : value;
+    }
+
+    /**
+     * Saves a double value under the given declared key and returns it.
+     *
+     * @param key the declared key
+     * @param value the value to save
+     * @return the same value given
+     */
+    default double putDouble(MemoryKey.OfDouble key, double value) {
+        put(key.getName(), value);
+        return value;
+    }
+
+    /**
+     * Signals that the running action failed, without building an exception.
+     * The action goes on, but once it returns the execution takes the error
+     * transition of the state. By default, and in states without error
+     * transition, an {@link IllegalStateException} is thrown right away.
+     *
+     * @param reason the reason of the failure, for example a constant
+     */
+    default void fail(Object reason) {
+        throw new IllegalStateException("Failed: " + reason);
+    }
+
     /**
      * The {@link Action} to execute when the state is entered from a different
      * state. Will not be executed when the previous state was the same.
@@ -26,6 +26,17 @@ public interface Transition<S extends State, D extends State> {
      */
     Function<Transition<S, D>, Boolean> condition();
 
+    /**
+     * Defines the type of event that triggers this transition. A transition
+     * with an event is not taken when its source state completes but only
+     * when an event of this type is sent to the waiting execution.
+     *
+     * @return the event type, or null if the transition is taken on completion
+     */
+    default Class<?> event() {
+        return null;
+    }
+
     /**
      * Returns the source {@link State} of this transition.
      *
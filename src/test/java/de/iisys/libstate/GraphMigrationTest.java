@@ -0,0 +1,252 @@
+package de.iisys.libstate;
+
+import de.iisys.libstate.interfaces.MemoryKey;
+import java.nio.file.Path;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Class to test migrating running executions to a new version of a graph.
+ */
+public class GraphMigrationTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Builds a version of the graph: counting to three, waiting for an amount
+     * and computing a total in the given way.
+     *
+     * @param waiting the identification of the waiting state
+     * @param factor the factor of the total
+     * @return the state graph
+     */
+    private static StateGraph buildGraph(String waiting, int factor) {
+        return buildGraph(waiting, factor, 0);
+    }
+
+    /**
+     * Builds a version of the graph like {@link #buildGraph(String, int)},
+     * with unused states registered first, so the IDs of the others move.
+     *
+     * @param waiting the identification of the waiting state
+     * @param factor the factor of the total
+     * @param unused the number of unused states
+     * @return the state graph
+     */
+    private static StateGraph buildGraph(String waiting, int factor, int unused) {
+        StateGraph stateGraph = new StateGraph();
+        for (int i = 0; i < unused; i++) {
+            stateGraph.registerState("unused-" + i);
+        }
+        MemoryKey.OfInt count = stateGraph.declareInt("count");
+        stateGraph.registerState("count", (state) -> state.putInt(count, state.getInt(count) + 1));
+        stateGraph.registerState(waiting);
+        stateGraph.registerState("done", (state) -> state.put("total", factor * (state.getInt(count) + (int) state.get("amount"))));
+
+        stateGraph.registerTransition("count");
+        stateGraph.registerTransition("count", waiting, (transition) -> transition.getSource().getInt(count) >= 3);
+        stateGraph.registerTransition("count", "count", (transition) -> transition.getSource().getInt(count) < 3);
+        stateGraph.registerEventTransition(waiting, "done", Integer.class,
+                (transition) -> transition.getDestination().put("amount", ((ExecutionTransition) transition).getEvent()));
+        return stateGraph;
+    }
+
+    /**
+     * Builds a version of a graph counting to three in rounds of a state that
+     * counts how often it is entered.
+     *
+     * @param loop the self-loop of the counting state: 0 taken on completion,
+     * 1 taken on an event, 2 none
+     * @return the state graph
+     */
+    private static StateGraph buildLoopGraph(int loop) {
+        StateGraph stateGraph = new StateGraph();
+        MemoryKey.OfInt count = stateGraph.declareInt("count");
+        MemoryKey.OfInt entries = stateGraph.declareInt("entries");
+        stateGraph.registerState("count", (state) -> state.putInt(entries, state.getInt(entries) + 1),
+                (state) -> state.putInt(count, state.getInt(count) + 1), null);
+        stateGraph.registerState("wait");
+        stateGraph.registerState("done");
+
+        stateGraph.registerTransition("count");
+        stateGraph.registerTransition("count", "wait", (transition) -> transition.getSource().getInt(count) >= 3);
+        if (loop == 0) {
+            stateGraph.registerTransition("count", "count", (transition) -> transition.getSource().getInt(count) < 3);
+        } else if (loop == 1) {
+            stateGraph.registerEventTransition("count", "count", Integer.class);
+        }
+        stateGraph.registerEventTransition("wait", "done", Integer.class);
+        return stateGraph;
+    }
+
+    /**
+     * TESTING. An execution turning rounds in a self-loop does not enter its
+     * state again on the new version: the self-loop maps to another one, or
+     * the round ends on the old version.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSelfLoopRounds() throws Exception {
+        CompiledStateGraph first = new CompiledStateGraph(buildLoopGraph(0));
+        CompiledStateGraph eventLoop = new CompiledStateGraph(buildLoopGraph(1));
+        StateGraphExecution execution = first.newExecution();
+        execution.step();
+        new GraphMigration(first, eventLoop).start();
+        execution.step();
+        assertSame(eventLoop, execution.getGraph());
+        assertEquals(StateGraphExecution.Status.WAITING, execution.getStatus());
+        assertEquals(1, execution.getMemory().get("entries"));
+        assertEquals(2, execution.getMemory().get("count"));
+
+        first = new CompiledStateGraph(buildLoopGraph(0));
+        CompiledStateGraph noLoop = new CompiledStateGraph(buildLoopGraph(2));
+        execution = first.newExecution();
+        execution.step();
+        new GraphMigration(first, noLoop).start();
+        execution.step();
+        assertSame(first, execution.getGraph());
+        execution.step();
+        execution.step();
+        assertSame(noLoop, execution.getGraph());
+        assertEquals(noLoop.getStateId("wait"), execution.getStateId());
+        assertEquals(1, execution.getMemory().get("entries"));
+        assertEquals(3, execution.getMemory().get("count"));
+    }
+
+    /**
+     * TESTING. Running and waiting executions move to the new version at
+     * their next boundary, new ones start on it.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testMigration() throws Exception {
+        StateGraphRunner runner = new StateGraphRunner(buildGraph("wait", 1));
+        CompiledStateGraph first = runner.getCompiledStateGraph();
+        CompiledStateGraph second = new CompiledStateGraph(buildGraph("await", 10));
+
+        StateGraphExecution waiting = first.newExecution();
+        while (waiting.step() != StateGraphExecution.Status.WAITING) {
+        }
+        StateGraphExecution counting = first.newExecution();
+        counting.step();
+        counting.getMemory().put("label", "kept");
+        assertTrue(counting.isAtBoundary());
+
+        GraphMigration migration = new GraphMigration(first, second).map("wait", "await");
+        assertEquals(second.getStateId("await"), migration.getTargetState(first.getStateId("wait")));
+        runner.upgrade(migration);
+        assertSame(second, runner.getCompiledStateGraph());
+        assertSame(migration, first.getMigration());
+        assertNull(second.getMigration());
+
+        // nothing moves before the next step
+        assertSame(first, waiting.getGraph());
+        waiting.send(4);
+        runner.run(waiting);
+        assertSame(second, waiting.getGraph());
+        assertEquals(70, waiting.getMemory().get("total"));
+
+        counting.step();
+        assertSame(second, counting.getGraph());
+        assertEquals(second.getStateId("count"), counting.getStateId());
+        assertEquals(2, counting.getMemory().get("count"));
+        assertEquals("kept", counting.getMemory().get("label"));
+        counting.send(1);
+        runner.run(counting);
+        assertEquals(40, counting.getMemory().get("total"));
+
+        StateGraphExecution fresh = runner.getCompiledStateGraph().newExecution();
+        fresh.send(0);
+        runner.run(fresh);
+        assertEquals(30, fresh.getMemory().get("total"));
+    }
+
+    /**
+     * TESTING. Executions in a state without counterpart stay on the old
+     * version until they leave it, and migrations cannot be changed or
+     * started twice.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testUnmappedStates() throws Exception {
+        CompiledStateGraph first = new CompiledStateGraph(buildGraph("wait", 1));
+        CompiledStateGraph second = new CompiledStateGraph(buildGraph("wait", 10));
+        CompiledStateGraph third = new CompiledStateGraph(buildGraph("wait", 100));
+
+        StateGraphExecution execution = first.newExecution();
+        execution.step();
+        GraphMigration migration = new GraphMigration(first, second).map("count", null);
+        migration.start();
+        try {
+            migration.map("count", "count");
+            fail();
+        } catch (IllegalStateException ex) {
+        }
+        try {
+            new GraphMigration(first, third).start();
+            fail();
+        } catch (IllegalStateException ex) {
+        }
+        try {
+            new StateGraphRunner(first).upgrade(new GraphMigration(second, third));
+            fail();
+        } catch (IllegalArgumentException ex) {
+        }
+
+        // the self loops of the counting state run on the old version
+        execution.step();
+        execution.step();
+        assertSame(first, execution.getGraph());
+        assertEquals(first.getStateId("wait"), execution.getStateId());
+
+        // versions are passed through one after the other
+        new GraphMigration(second, third).start();
+        execution.step();
+        assertSame(third, execution.getGraph());
+        assertEquals(StateGraphExecution.Status.WAITING, execution.getStatus());
+        execution.send(2);
+        new StateGraphRunner(third).run(execution);
+        assertEquals(500, execution.getMemory().get("total"));
+    }
+
+    /**
+     * TESTING. Listeners bound to the old version stop recording a migrated
+     * execution: the metrics do not count it any more, the journal ends it.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testListenersAfterMigration() throws Exception {
+        CompiledStateGraph first = new CompiledStateGraph(buildGraph("wait", 1));
+        CompiledStateGraph second = new CompiledStateGraph(buildGraph("wait", 10, 5));
+        StateGraphMetrics metrics = new StateGraphMetrics(first);
+        SnapshotCodec codec = new SnapshotCodec();
+        Path directory = folder.getRoot().toPath();
+
+        try (TransitionJournal journal = new TransitionJournal(directory, first, codec)) {
+            StateGraphExecution execution = first.newExecution();
+            execution.setListener(metrics);
+            journal.attach(execution);
+            while (execution.step() != StateGraphExecution.Status.WAITING) {
+            }
+            assertEquals(3, metrics.getEntries(first.getStateId("count")));
+
+            new GraphMigration(first, second).start();
+            execution.send(2);
+            new StateGraphRunner(buildGraph("wait", 10, 5)).run(execution);
+            assertSame(second, execution.getGraph());
+            assertEquals(50, execution.getMemory().get("total"));
+            assertEquals(0, metrics.getEntries(first.getStateId("done")));
+        }
+
+        try (TransitionJournal journal = new TransitionJournal(directory, first, codec)) {
+            assertTrue(journal.getRecovered().isEmpty());
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package de.iisys.libstate;
+
+import de.iisys.libstate.interfaces.AsyncAction;
+import de.iisys.libstate.interfaces.MemoryKey;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Class to test snapshots of executions and resuming them.
+ */
+public class SnapshotCodecTest {
+
+    /**
+     * A value needing a codec of its own.
+     */
+    private static final class Point {
+
+        private final int x;
+        private final int y;
+
+        private Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    private static final ValueCodec<Point> POINT_CODEC = new ValueCodec<Point>() {
+        @Override
+        public void write(DataOutput out, Point value) throws IOException {
+            out.writeInt(value.x);
+            out.writeInt(value.y);
+        }
+
+        @Override
+        public Point read(DataInput in) throws IOException {
+            return new Point(in.readInt(), in.readInt());
+        }
+    };
+
+    /**
+     * Builds the same graph every time, as another JVM would.
+     *
+     * @return the state graph
+     */
+    private static StateGraph buildGraph() {
+        StateGraph stateGraph = new StateGraph();
+        MemoryKey.OfInt count = stateGraph.declareInt("count");
+        MemoryKey.OfDouble sum = stateGraph.declareDouble("sum");
+        MemoryKey<String> name = stateGraph.declareMemory("name", String.class);
+        stateGraph.registerState("count", (state) -> {
+            state.putInt(count, state.getInt(count) + 1);
+            state.putDouble(sum, state.getDouble(sum) + 0.5);
+            state.put(name, "counted");
+        });
+        stateGraph.registerState("wait", (state) -> state.put("point", new Point(state.getInt(count), -1)));
+        stateGraph.registerState("done", (state) -> state.put("total", state.getInt(count) + (int) state.get("amount")));
+
+        stateGraph.registerTransition("count");
+        stateGraph.registerTransition("count", "wait", (transition) -> transition.getSource().getInt(count) == 5);
+        stateGraph.registerTransition("count", "count");
+        stateGraph.registerEventTransition("wait", "done", Integer.class,
+                (transition) -> transition.getDestination().put("amount", ((ExecutionTransition) transition).getEvent()));
+        return stateGraph;
+    }
+
+    /**
+     * TESTING. Takes snapshots at every boundary and resumes them on a graph
+     * built the same way, with a queued event and a custom value codec.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSnapshotAndResume() throws Exception {
+        SnapshotCodec codec = new SnapshotCodec().register(SnapshotCodec.FIRST_CUSTOM_TAG, Point.class, POINT_CODEC);
+
+        StateGraphExecution execution = new CompiledStateGraph(buildGraph()).newExecution();
+        execution.getMemory().put("label", "first");
+        execution.getMemory().put(7L, new byte[]{1, 2});
+        for (int i = 0; i < 3; i++) {
+            execution.step();
+        }
+        byte[] snapshot = codec.write(execution);
+
+        CompiledStateGraph other = new CompiledStateGraph(buildGraph());
+        StateGraphExecution resumed = codec.read(other, snapshot);
+        assertEquals(execution.getStateId(), resumed.getStateId());
+        assertEquals(execution.getComingFromTransitionId(), resumed.getComingFromTransitionId());
+        assertEquals(3, resumed.getMemory().get("count"));
+        assertEquals(1.5, resumed.getMemory().get("sum"));
+        assertEquals("counted", resumed.getMemory().get("name"));
+        assertEquals("first", resumed.getMemory().get("label"));
+        assertArrayEquals(new byte[]{1, 2}, (byte[]) resumed.getMemory().get(7L));
+
+        // resume into the waiting state and snapshot it with an event queued
+        while (resumed.step() != StateGraphExecution.Status.WAITING) {
+        }
+        resumed.send(10);
+        snapshot = codec.write(resumed);
+
+        StateGraphExecution waiting = codec.read(new CompiledStateGraph(buildGraph()), snapshot);
+        assertEquals(StateGraphExecution.Status.WAITING, waiting.getStatus());
+        assertTrue(waiting.hasEvents());
+        assertEquals(5, ((Point) waiting.getMemory().get("point")).x);
+
+        new StateGraphRunner(buildGraph()).run(waiting);
+        assertTrue(waiting.isTerminated());
+        assertEquals(15, waiting.getMemory().get("total"));
+        assertEquals(StateGraphExecution.Status.TERMINATED, codec.read(waiting.getGraph(), codec.write(waiting)).getStatus());
+    }
+
+    /**
+     * TESTING. Snapshots are refused in the middle of a state, for values
+     * without codec, on a different graph and on graphs without stable
+     * fingerprint.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testRefusedSnapshots() throws Exception {
+        SnapshotCodec codec = new SnapshotCodec();
+
+        CompletableFuture<Void> call = new CompletableFuture<>();
+        StateGraph stateGraph = buildGraph();
+        stateGraph.overrideState("wait", AsyncAction.of((state) -> call));
+        StateGraphExecution execution = new CompiledStateGraph(stateGraph).newExecution();
+        execution.getMemory().put("count", 4);
+        execution.getMemory().put("other", new Object());
+        assertFails(() -> codec.write(execution), IllegalArgumentException.class);
+        execution.getMemory().remove("other");
+
+        while (execution.step() != StateGraphExecution.Status.SUSPENDED) {
+        }
+        assertFalse(execution.isAtBoundary());
+        assertFails(() -> codec.write(execution), IllegalStateException.class);
+
+        byte[] snapshot = codec.write(new CompiledStateGraph(buildGraph()).newExecution());
+        StateGraph changed = buildGraph();
+        changed.registerState("other");
+        assertFails(() -> codec.read(new CompiledStateGraph(changed), snapshot), IllegalStateException.class);
+
+        StateGraph unstable = buildGraph();
+        unstable.registerState(new Object());
+        assertFails(() -> codec.write(new CompiledStateGraph(unstable).newExecution()), UnsupportedOperationException.class);
+    }
+
+    /**
+     * Asserts that the given call throws the given exception.
+     *
+     * @param call the call
+     * @param expected the type of the exception
+     */
+    private static void assertFails(Supplier<?> call, Class<? extends Exception> expected) {
+        try {
+            call.get();
+            fail();
+        } catch (RuntimeException ex) {
+            assertTrue(ex.toString(), expected.isInstance(ex));
+        }
+    }
+}
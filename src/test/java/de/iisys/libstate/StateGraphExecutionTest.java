@@ -0,0 +1,533 @@
+package de.iisys.libstate;
+
+import de.iisys.libstate.interfaces.AsyncAction;
+import de.iisys.libstate.interfaces.MemoryKey;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Class to test the execution of compiled state graphs.
+ */
+public class StateGraphExecutionTest {
+
+    private StateGraph stateGraph;
+
+    /**
+     * Sets up a new state graph.
+     */
+    @Before
+    public void setUp() {
+        stateGraph = new StateGraph();
+    }
+
+    /**
+     * TESTING. Waits for events in a state, the runner thread needs to park
+     * while nothing is sent.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testEventTransitions() throws Exception {
+        List<String> visits = new ArrayList<>();
+        stateGraph.registerState("idle", (state) -> visits.add("idle"));
+        stateGraph.registerState("working", (state) -> visits.add("working"));
+
+        stateGraph.registerTransition("idle");
+        stateGraph.registerEventTransition("idle", "working", Integer.class,
+                (transition) -> (int) ((ExecutionTransition) transition).getEvent() > 0,
+                (transition) -> transition.getDestination().put("amount", ((ExecutionTransition) transition).getEvent()));
+        stateGraph.registerEventTransition("idle", "idle", String.class);
+
+        StateGraphRunner stateGraphRunner = new StateGraphRunner(stateGraph);
+        StateGraphExecution execution = stateGraphRunner.getCompiledStateGraph().newExecution();
+
+        Thread runner = new Thread(() -> stateGraphRunner.run(execution));
+        runner.start();
+
+        waitForPark(runner);
+        assertEquals(StateGraphExecution.Status.WAITING, execution.getStatus());
+
+        // discarded, the condition does not hold
+        execution.send(0);
+        // self loop, executes the do action once more
+        execution.send("again");
+        execution.send(5);
+
+        runner.join(5000);
+        assertFalse(runner.isAlive());
+        assertTrue(execution.isTerminated());
+        assertEquals(5, execution.getMemory().get("amount"));
+        assertEquals(3, visits.size());
+        assertEquals("working", visits.get(2));
+    }
+
+    /**
+     * TESTING. A waiting state still takes its completion transitions first,
+     * stepping by hand handles one queued event per step.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testEventsStepByStep() throws Exception {
+        stateGraph.registerState("first");
+        stateGraph.registerState("second");
+        stateGraph.registerState("third");
+
+        stateGraph.registerTransition("first");
+        stateGraph.registerTransition("first", "second", (transition) -> transition.getSource().get("skip") != null);
+        stateGraph.registerEventTransition("first", "second", Object.class);
+        stateGraph.registerEventTransition("second", "third", Object.class);
+
+        StateGraphExecution execution = new CompiledStateGraph(stateGraph).newExecution();
+        assertEquals(StateGraphExecution.Status.WAITING, execution.step());
+        assertEquals(StateGraphExecution.Status.WAITING, execution.step());
+
+        execution.send("go");
+        assertEquals(StateGraphExecution.Status.RUNNING, execution.step());
+        assertEquals(StateGraphExecution.Status.WAITING, execution.step());
+        assertEquals(1, execution.getStateId());
+
+        execution = new CompiledStateGraph(stateGraph).newExecution();
+        execution.getMemory().put("skip", true);
+        assertEquals(StateGraphExecution.Status.RUNNING, execution.step());
+        assertEquals(1, execution.getStateId());
+    }
+
+    /**
+     * TESTING. The runner parks while an asynchronous action is pending and a
+     * failed action ends the run with its exception.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testAsyncActionWithRunner() throws Exception {
+        CompletableFuture<String> response = new CompletableFuture<>();
+        stateGraph.registerState("remote", AsyncAction.of((state) -> response.thenAccept((value) -> state.put("response", value))));
+        stateGraph.registerTransition("remote");
+
+        StateGraphRunner stateGraphRunner = new StateGraphRunner(stateGraph);
+        StateGraphExecution execution = stateGraphRunner.getCompiledStateGraph().newExecution();
+        Thread runner = new Thread(() -> stateGraphRunner.run(execution));
+        runner.start();
+
+        waitForPark(runner);
+        assertEquals(StateGraphExecution.Status.SUSPENDED, execution.getStatus());
+        response.complete("ok");
+        runner.join(5000);
+        assertEquals("ok", execution.getMemory().get("response"));
+
+        CompletableFuture<String> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalStateException("failed"));
+        stateGraph.overrideState("remote", AsyncAction.of((state) -> failed));
+        try {
+            new StateGraphRunner(stateGraph).run();
+            fail();
+        } catch (RuntimeException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    /**
+     * TESTING. Records the last steps in a ring buffer and attaches them to
+     * the exception of a failed run.
+     */
+    @Test
+    public void testStepRecorder() {
+        MemoryKey.OfInt count = stateGraph.declareInt("count");
+        stateGraph.registerState("count", (state) -> state.putInt(count, state.getInt(count) + 1));
+        stateGraph.registerState("done");
+
+        stateGraph.registerTransition("count");
+        stateGraph.registerTransition("count", "done", (transition) -> transition.getSource().getInt(count) == 10);
+        stateGraph.registerTransition("count", "count");
+
+        StateGraphExecution execution = new CompiledStateGraph(stateGraph).newExecution();
+        execution.setRecorder(new StepRecorder(3));
+        new StateGraphRunner(stateGraph).run(execution);
+
+        StepRecorder recorder = execution.getRecorder();
+        assertEquals(4, recorder.getCapacity());
+        assertEquals(11, recorder.getCount());
+        assertEquals(4, recorder.getSize());
+        assertEquals(0, recorder.getState(2));
+        assertEquals(0, execution.getGraph().getTransitionSource(recorder.getTransition(2)));
+        assertEquals(1, recorder.getState(3));
+        assertEquals(CompiledStateGraph.NONE, recorder.getTransition(3));
+        assertTrue(recorder.getTimestamp(0) <= recorder.getTimestamp(3));
+
+        stateGraph.overrideState("done", (state) -> {
+            throw new IllegalStateException("failed");
+        });
+        StateGraphRunner stateGraphRunner = new StateGraphRunner(stateGraph);
+        stateGraphRunner.setRecorderCapacity(16);
+        try {
+            stateGraphRunner.run();
+            fail();
+        } catch (RuntimeException ex) {
+            assertEquals(1, ex.getSuppressed().length);
+            assertTrue(ex.getSuppressed()[0].getMessage().contains("9: count -> done"));
+        }
+    }
+
+    /**
+     * TESTING. Multiplexes executions of different lengths on one thread by
+     * step budgets, the short ones finish first.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testStepBudgets() throws Exception {
+        MemoryKey.OfInt count = stateGraph.declareInt("count");
+        MemoryKey.OfInt limit = stateGraph.declareInt("limit");
+        stateGraph.registerState("count", (state) -> state.putInt(count, state.getInt(count) + 1));
+        stateGraph.registerState("done");
+
+        stateGraph.registerTransition("count");
+        stateGraph.registerTransition("count", "done", (transition) -> transition.getSource().getInt(count) >= transition.getSource().getInt(limit));
+        stateGraph.registerTransition("count", "count");
+        CompiledStateGraph compiled = new CompiledStateGraph(stateGraph);
+
+        Deque<StateGraphExecution> scheduled = new ArrayDeque<>();
+        for (int length : new int[]{1000, 10, 100}) {
+            Map<Object, Object> memory = new HashMap<>();
+            memory.put("limit", length);
+            scheduled.add(compiled.newExecution(memory));
+        }
+        List<Object> finished = new ArrayList<>();
+        int rounds = 0;
+        while (!scheduled.isEmpty()) {
+            StateGraphExecution execution = scheduled.poll();
+            if (execution.run(5) == StateGraphExecution.Status.TERMINATED) {
+                finished.add(execution.getMemory().get("limit"));
+            } else {
+                assertTrue(execution.isAtBoundary());
+                scheduled.add(execution);
+            }
+            rounds++;
+        }
+        assertEquals(Arrays.asList(10, 100, 1000), finished);
+        assertEquals(201 + 21 + 3, rounds);
+
+        Map<Object, Object> memory = new HashMap<>();
+        memory.put("limit", Integer.MAX_VALUE);
+        StateGraphExecution endless = compiled.newExecution(memory);
+        assertEquals(StateGraphExecution.Status.RUNNING, endless.runFor(Duration.ofMillis(20)));
+        assertTrue(endless.isAtBoundary());
+        int counted = endless.getMemory().getInt(count);
+        assertTrue(counted > 0);
+        endless.run(1);
+        assertEquals(counted + 1, endless.getMemory().getInt(count));
+    }
+
+    /**
+     * Waits until the given thread is parked.
+     *
+     * @param thread the thread
+     * @throws InterruptedException
+     */
+    private static void waitForPark(Thread thread) throws InterruptedException {
+        for (int i = 0; i < 500 && thread.getState() != Thread.State.WAITING; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(Thread.State.WAITING, thread.getState());
+    }
+
+    /**
+     * TESTING. Failures thrown or signalled go to the handler state of the
+     * error transition of the state, or of the global one.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testErrorTransitions() throws Exception {
+        stateGraph.registerState("charge", (state) -> {
+            int amount = state.get("amount");
+            if (amount < 0) {
+                state.fail("rejected");
+            } else if (amount == 0) {
+                throw new IllegalArgumentException("nothing to charge");
+            } else {
+                state.put("charged", amount);
+            }
+        });
+        stateGraph.registerState("ship", (state) -> {
+            if (state.get("fragile") != null) {
+                throw new IllegalStateException("broken");
+            }
+        });
+        stateGraph.registerState("done");
+        stateGraph.registerState("declined", (state) -> state.put("reason", ((ExecutionState) state).getFailure()));
+        stateGraph.registerState("broken", (state) -> {
+            state.put("reason", ((ExecutionState) state).getFailure());
+            if (state.get("cascade") != null) {
+                state.fail("again");
+            }
+        });
+
+        stateGraph.registerTransition("charge");
+        stateGraph.registerTransition("charge", "ship");
+        stateGraph.registerTransition("ship", "done");
+        stateGraph.registerErrorTransition("charge", "declined");
+        stateGraph.registerGlobalErrorTransition("broken");
+
+        StateGraphRunner runner = new StateGraphRunner(stateGraph);
+        CompiledStateGraph compiled = runner.getCompiledStateGraph();
+        assertEquals(compiled.getStateId("declined"), compiled.getErrorHandler(compiled.getStateId("charge")));
+        assertEquals(compiled.getStateId("broken"), compiled.getErrorHandler(compiled.getStateId("ship")));
+        assertEquals(CompiledStateGraph.NONE, compiled.getErrorHandler(compiled.getStateId("broken")));
+        assertTrue(compiled.isReachable(compiled.getStateId("declined")));
+
+        Map<Object, Object> memory = new HashMap<>();
+        memory.put("amount", 5);
+        StateGraphExecution execution = compiled.newExecution(memory);
+        runner.run(execution);
+        assertTrue(execution.isTerminated());
+        assertFalse(execution.getMemory().containsKey("reason"));
+        assertEquals(5, execution.getMemory().get("charged"));
+
+        memory.put("amount", -1);
+        execution = compiled.newExecution(memory);
+        runner.run(execution);
+        assertTrue(execution.isTerminated());
+        assertEquals("rejected", execution.getMemory().get("reason"));
+        assertFalse(execution.getMemory().containsKey("charged"));
+        assertNull(execution.getFailure());
+
+        memory.put("amount", 0);
+        execution = compiled.newExecution(memory);
+        runner.run(execution);
+        assertTrue(execution.getMemory().get("reason") instanceof IllegalArgumentException);
+
+        memory.put("amount", 1);
+        memory.put("fragile", true);
+        execution = compiled.newExecution(memory);
+        runner.run(execution);
+        assertTrue(execution.getMemory().get("reason") instanceof IllegalStateException);
+        assertEquals(1, execution.getMemory().get("charged"));
+
+        // failures of the handler itself are not handled
+        memory.put("cascade", true);
+        try {
+            runner.run(compiled.newExecution(memory));
+            fail();
+        } catch (RuntimeException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    /**
+     * TESTING. Runs end when the runner is stopped by another thread, at
+     * their deadline or when cancelled, even within a blocking action.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testStopAndCancel() throws Exception {
+        stateGraph.registerState("loop");
+        stateGraph.registerState("wait");
+        stateGraph.registerState("block", (state) -> Thread.sleep(60000));
+        stateGraph.registerTransition("loop");
+        stateGraph.registerTransition("loop", "loop");
+        stateGraph.registerEventTransition("wait", "loop", String.class);
+        StateGraphRunner runner = new StateGraphRunner(stateGraph);
+        CompiledStateGraph compiled = runner.getCompiledStateGraph();
+
+        // stopped by another thread, the execution can go on afterwards
+        StateGraphExecution endless = compiled.newExecution();
+        Thread thread = new Thread(() -> runner.run(endless));
+        thread.start();
+        Thread.sleep(50);
+        runner.stop();
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertTrue(endless.step() == StateGraphExecution.Status.RUNNING);
+
+        try {
+            runner.run(endless, Duration.ofMillis(20));
+            fail();
+        } catch (CancellationException ex) {
+        }
+
+        StateGraphExecution waiting = compiled.newExecution();
+        waiting.restore(compiled.getStateId("wait"), CompiledStateGraph.NONE, StateGraphExecution.Status.WAITING);
+        long start = System.nanoTime();
+        try {
+            runner.run(waiting, Duration.ofMillis(20));
+            fail();
+        } catch (CancellationException ex) {
+        }
+        assertTrue(System.nanoTime() - start < 5_000_000_000L);
+
+        // cancelling interrupts the blocking action
+        StateGraphExecution blocking = compiled.newExecution();
+        blocking.restore(compiled.getStateId("block"), CompiledStateGraph.NONE, StateGraphExecution.Status.RUNNING);
+        AtomicReference<Exception> outcome = new AtomicReference<>();
+        thread = new Thread(() -> {
+            try {
+                runner.run(blocking);
+            } catch (Exception ex) {
+                outcome.set(ex);
+            }
+            assertFalse(Thread.currentThread().isInterrupted());
+        });
+        thread.start();
+        Thread.sleep(50);
+        blocking.cancel(true);
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertTrue(outcome.get() instanceof CancellationException);
+        assertFalse(blocking.canStep());
+
+        // interrupting the waiting thread ends the run with the flag kept
+        StateGraphExecution interrupted = compiled.newExecution();
+        interrupted.restore(compiled.getStateId("wait"), CompiledStateGraph.NONE, StateGraphExecution.Status.WAITING);
+        AtomicReference<Boolean> flag = new AtomicReference<>();
+        outcome.set(null);
+        thread = new Thread(() -> {
+            try {
+                runner.run(interrupted);
+            } catch (Exception ex) {
+                outcome.set(ex);
+            }
+            flag.set(Thread.currentThread().isInterrupted());
+        });
+        thread.start();
+        Thread.sleep(50);
+        thread.interrupt();
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertTrue(outcome.get() instanceof CancellationException);
+        assertTrue(flag.get());
+        assertEquals(StateGraphExecution.Status.WAITING, interrupted.getStatus());
+    }
+
+    /**
+     * TESTING. A waiting state is left by its timed transition when nothing
+     * comes in time, an event taken before cancels it.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testTimedTransitions() throws Exception {
+        stateGraph.registerState("pending");
+        stateGraph.registerState("scheduled");
+        stateGraph.registerState("done");
+        stateGraph.registerState("expired");
+        stateGraph.registerTransition("pending");
+        stateGraph.registerEventTransition("pending", "done", String.class);
+        stateGraph.registerEventTransition("pending", "scheduled", Long.class,
+                (transition) -> transition.getDestination().put("at", ((ExecutionTransition) transition).getEvent()));
+        stateGraph.registerTimedTransition("pending", "expired", Duration.ofMillis(30),
+                (transition) -> transition.getDestination().put("expired", true));
+        stateGraph.registerDeadlineTransition("scheduled", "expired", (state) -> (long) state.get("at"));
+        stateGraph.registerEventTransition("scheduled", "done", String.class);
+        StateGraphRunner runner = new StateGraphRunner(stateGraph);
+        CompiledStateGraph compiled = runner.getCompiledStateGraph();
+
+        // nothing comes, the runner is resumed by the timer
+        StateGraphExecution execution = compiled.newExecution();
+        long start = System.nanoTime();
+        runner.run(execution);
+        assertTrue(System.nanoTime() - start >= 30_000_000L);
+        assertEquals(true, execution.getMemory().get("expired"));
+
+        // the event comes first, the timer does not fire any more
+        execution = compiled.newExecution();
+        assertEquals(StateGraphExecution.Status.WAITING, execution.run(10));
+        assertTrue(execution.isTimed());
+        execution.send("ok");
+        assertEquals(StateGraphExecution.Status.TERMINATED, execution.run(10));
+        assertFalse(execution.isTimed());
+        Thread.sleep(60);
+        assertFalse(execution.hasEvents());
+        assertNull(execution.getMemory().get("expired"));
+
+        // the point in time is read from the memory when the state is entered
+        execution = compiled.newExecution();
+        execution.send(System.currentTimeMillis() + 60);
+        start = System.nanoTime();
+        runner.run(execution);
+        assertTrue(System.nanoTime() - start >= 50_000_000L);
+        assertNull(execution.getMemory().get("expired"));
+
+        // a timed transition whose condition does not hold leaves the later ones armed
+        StateGraph patient = new StateGraph();
+        patient.registerState("patient");
+        patient.registerState("early");
+        patient.registerState("late");
+        patient.registerTransition("patient");
+        patient.registerTimedTransition("patient", "early", Duration.ofMillis(30),
+                (transition) -> transition.getSource().get("early") != null, null);
+        patient.registerTimedTransition("patient", "late", Duration.ofMillis(60));
+        execution = new CompiledStateGraph(patient).newExecution();
+        start = System.nanoTime();
+        assertEquals(StateGraphExecution.Status.WAITING, execution.run(10));
+        Thread.sleep(45);
+        assertEquals(StateGraphExecution.Status.WAITING, execution.run(10));
+        assertTrue(execution.isTimed());
+        new StateGraphRunner(patient).run(execution, Duration.ofSeconds(5));
+        assertTrue(System.nanoTime() - start >= 60_000_000L);
+        assertEquals(StateGraphExecution.Status.TERMINATED, execution.getStatus());
+        assertNull(execution.getMemory().get("early"));
+    }
+
+    /**
+     * TESTING. A blocking polling state turns a round per signal, a backing
+     * off one parks instead of spinning.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testWaitStrategies() throws Exception {
+        AtomicBoolean ready = new AtomicBoolean();
+        stateGraph.registerState("block", (state) -> state.put("rounds", (int) state.get("rounds") + 1));
+        stateGraph.registerState("backoff", (state) -> state.put("rounds", (int) state.get("rounds") + 1));
+        stateGraph.registerState("done");
+        stateGraph.registerTransition("block");
+        stateGraph.registerTransition("block", "block", (transition) -> (int) transition.getSource().get("rounds") < 3);
+        stateGraph.registerTransition("block", "backoff", (transition) -> (int) transition.getSource().get("rounds") >= 3);
+        stateGraph.registerTransition("backoff", "backoff", (transition) -> !ready.get());
+        stateGraph.registerTransition("backoff", "done", (transition) -> {
+            return ready.get();
+        });
+        stateGraph.setWaitStrategy("block", WaitStrategy.BLOCK);
+        stateGraph.setWaitStrategy("backoff", WaitStrategy.BACKOFF);
+        StateGraphRunner runner = new StateGraphRunner(stateGraph);
+        StateGraphExecution execution = runner.getCompiledStateGraph().newExecution(Collections.singletonMap("rounds", 0));
+
+        Thread thread = new Thread(() -> runner.run(execution));
+        thread.start();
+        for (int round = 1; round < 3; round++) {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!execution.getMemory().get("rounds").equals(round) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            waitForPark(thread);
+            assertEquals(round, execution.getMemory().get("rounds"));
+            assertFalse(execution.canStep());
+            execution.signal();
+        }
+
+        Thread.sleep(100);
+        ready.set(true);
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertTrue(execution.isTerminated());
+        // a busy spin turns millions of rounds in that time
+        assertTrue((int) execution.getMemory().get("rounds") < 5000);
+    }
+}
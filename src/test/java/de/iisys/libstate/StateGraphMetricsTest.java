@@ -0,0 +1,123 @@
+package de.iisys.libstate;
+
+import de.iisys.libstate.StateGraphListener.ActionType;
+import de.iisys.libstate.interfaces.MemoryKey;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Class to test the listener SPI, the metrics collected by it and the flight
+ * recorder events.
+ */
+public class StateGraphMetricsTest {
+
+    private StateGraph stateGraph;
+
+    /**
+     * Sets up a new state graph.
+     */
+    @Before
+    public void setUp() {
+        stateGraph = new StateGraph();
+    }
+
+    /**
+     * TESTING. Counts entries, evaluations and taken transitions of a self
+     * loop and finds the slowest state.
+     */
+    @Test
+    public void testMetrics() {
+        MemoryKey.OfInt count = stateGraph.declareInt("count");
+        stateGraph.registerState("count", (state) -> state.putInt(count, state.getInt(count) + 1));
+        stateGraph.registerState("slow", (state) -> Thread.sleep(20));
+
+        stateGraph.registerTransition("count");
+        stateGraph.registerTransition("count", "slow", (transition) -> transition.getSource().getInt(count) == 10);
+        stateGraph.registerTransition("count", "count");
+
+        StateGraphRunner stateGraphRunner = new StateGraphRunner(stateGraph);
+        CompiledStateGraph graph = stateGraphRunner.getCompiledStateGraph();
+        StateGraphMetrics metrics = new StateGraphMetrics(graph);
+        stateGraphRunner.setListener(metrics);
+        stateGraphRunner.run();
+        stateGraphRunner.run();
+
+        int countId = graph.getStateId("count");
+        int slowId = graph.getStateId("slow");
+        int toSlow = graph.getTransitionStart(countId);
+        int loop = toSlow + 1;
+        assertEquals(20, metrics.getEntries(countId));
+        assertEquals(2, metrics.getEntries(slowId));
+        assertEquals(20, metrics.getEvaluations(toSlow));
+        assertEquals(0, metrics.getEvaluations(loop));
+        assertEquals(2, metrics.getTaken(toSlow));
+        assertEquals(18, metrics.getTaken(loop));
+        assertEquals(20, metrics.getActionTime(ActionType.DO, countId).getCount());
+
+        assertEquals(slowId, metrics.getStatesByTime()[0]);
+        assertTrue(metrics.getActionTime(ActionType.DO, slowId).getPercentile(50) >= 20_000_000L);
+    }
+
+    /**
+     * TESTING. Percentiles of the histogram are exact up to a factor of two.
+     */
+    @Test
+    public void testLatencyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(99));
+
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1000L);
+        }
+        histogram.record(-1);
+
+        assertEquals(101, histogram.getCount());
+        assertEquals(100_000L, histogram.getMax());
+        long median = histogram.getPercentile(50);
+        assertTrue(median >= 50_000L && median < 100_000L);
+        assertEquals(100_000L, histogram.getPercentile(100));
+    }
+
+    /**
+     * TESTING. Emits flight recorder events for states, actions and
+     * transitions.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testFlightRecorderEvents() throws Exception {
+        stateGraph.registerState("first", (state) -> state.put("visited", true));
+        stateGraph.registerState("second");
+        stateGraph.registerTransition("first");
+        stateGraph.registerTransition("first", "second");
+
+        StateGraphRunner stateGraphRunner = new StateGraphRunner(stateGraph);
+        stateGraphRunner.setListener(new FlightRecorderListener());
+
+        Path file = Files.createTempFile("libstate", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("de.iisys.libstate.State");
+            recording.enable("de.iisys.libstate.Action");
+            recording.enable("de.iisys.libstate.Transition");
+            recording.start();
+            stateGraphRunner.run();
+            recording.stop();
+            recording.dump(file);
+
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            assertEquals(2, events.stream().filter((event) -> event.getEventType().getName().equals("de.iisys.libstate.State")).count());
+            assertEquals(1, events.stream().filter((event) -> event.getEventType().getName().equals("de.iisys.libstate.Action")).count());
+            assertTrue(events.stream().anyMatch((event) -> event.getEventType().getName().equals("de.iisys.libstate.Transition")
+                    && "second".equals(event.getString("destination"))));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package de.iisys.libstate;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Class to test the sharded registry of instances by key.
+ */
+public class StateGraphRegistryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Builds a graph collecting string events into a log until an integer
+     * event closes it.
+     *
+     * @return the compiled state graph
+     */
+    private static CompiledStateGraph buildGraph() {
+        StateGraph stateGraph = new StateGraph();
+        stateGraph.registerState("open");
+        stateGraph.registerState("closed");
+
+        stateGraph.registerTransition("open");
+        stateGraph.registerEventTransition("open", "open", String.class,
+                (transition) -> transition.getDestination().put("log",
+                        "" + transition.getSource().get("log") + ((ExecutionTransition) transition).getEvent()));
+        stateGraph.registerEventTransition("open", "closed", Integer.class);
+        return new CompiledStateGraph(stateGraph);
+    }
+
+    /**
+     * TESTING. Commands for one key are handled in the order they were given,
+     * instances of many keys are started and looked up in bulk.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testKeyedCommands() throws Exception {
+        try (StateGraphRegistry<String> registry = new StateGraphRegistry<>(buildGraph(), 4)) {
+            Map<String, Map<Object, Object>> memories = new HashMap<>();
+            for (int i = 0; i < 100; i++) {
+                memories.put("order-" + i, Collections.singletonMap("log", i + ":"));
+            }
+            Map<String, StateGraphInstance> started = registry.startAll(memories).get(5, TimeUnit.SECONDS);
+            assertEquals(100, started.size());
+            assertEquals(100, registry.size());
+
+            List<String> keys = new ArrayList<>(memories.keySet());
+            keys.add("unknown");
+            assertEquals(started, registry.getAll(keys).get(5, TimeUnit.SECONDS));
+            assertNull(registry.get("unknown").get(5, TimeUnit.SECONDS));
+            assertFalse(registry.send("unknown", "a").get(5, TimeUnit.SECONDS));
+
+            for (int i = 0; i < 100; i++) {
+                String key = "order-" + i;
+                registry.send(key, "a");
+                registry.send(key, "b");
+                registry.update(key, (memory) -> memory.put("updated", true));
+                registry.send(key, "c");
+                registry.send(key, 0);
+            }
+            for (int i = 0; i < 100; i++) {
+                StateMemory memory = started.get("order-" + i).getCompletion().get(5, TimeUnit.SECONDS);
+                assertEquals(i + ":abc", memory.get("log"));
+                assertEquals(true, memory.get("updated"));
+            }
+
+            // terminated instances leave the registry by themselves
+            long deadline = System.currentTimeMillis() + 5000;
+            while (registry.size() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(100, registry.startAll(memories).get(5, TimeUnit.SECONDS).size());
+        }
+    }
+
+    /**
+     * TESTING. Instances are terminated one by one or in bulk, keys cannot be
+     * started twice.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testTerminate() throws Exception {
+        try (StateGraphRegistry<Integer> registry = new StateGraphRegistry<>(buildGraph(), 3)) {
+            List<Integer> keys = new ArrayList<>();
+            for (int i = 0; i < 30; i++) {
+                registry.start(i).get(5, TimeUnit.SECONDS);
+                keys.add(i);
+            }
+            try {
+                registry.start(7).get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof IllegalStateException);
+            }
+
+            StateGraphInstance instance = registry.get(7).get(5, TimeUnit.SECONDS);
+            assertTrue(registry.terminate(7).get(5, TimeUnit.SECONDS));
+            assertTrue(instance.getCompletion().isCancelled());
+            assertFalse(registry.terminate(7).get(5, TimeUnit.SECONDS));
+            assertEquals(29, registry.size());
+
+            Map<Integer, StateGraphInstance> terminated = registry.terminateAll(keys).get(5, TimeUnit.SECONDS);
+            assertEquals(29, terminated.size());
+            assertFalse(terminated.containsKey(7));
+            assertEquals(0, registry.size());
+
+            registry.start(7).get(5, TimeUnit.SECONDS);
+            assertEquals(1, registry.size());
+        }
+    }
+
+    /**
+     * TESTING. Idle instances beyond the capacity are passivated to disk and
+     * go on where they were when their key is used again, still counted by
+     * the listener.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testPassivation() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        CompiledStateGraph graph = buildGraph();
+        StateGraphMetrics metrics = new StateGraphMetrics(graph);
+        try (StateGraphRegistry<Integer> registry = new StateGraphRegistry<>(graph, 2, directory, new SnapshotCodec(), 4)) {
+            registry.setListener(metrics);
+            List<StateGraphInstance> instances = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                instances.add(registry.start(i, Collections.singletonMap("log", i + ":")).get(5, TimeUnit.SECONDS));
+                registry.send(i, "a");
+            }
+            assertEquals(20, registry.size());
+            assertTrue(registry.getPassivatedCount() >= 14);
+            assertEquals(registry.getPassivatedCount(), countFiles(directory));
+
+            for (int i = 0; i < 20; i++) {
+                registry.send(i, "b");
+                registry.send(i, 0);
+            }
+            for (int i = 0; i < 20; i++) {
+                assertEquals(i + ":ab", instances.get(i).getCompletion().get(5, TimeUnit.SECONDS).get("log"));
+            }
+            assertEquals(0, registry.getPassivatedCount());
+            assertEquals(0, countFiles(directory));
+            assertEquals(20, metrics.getEntries(graph.getStateId("closed")));
+
+        }
+    }
+
+    /**
+     * TESTING. The handles of passivated instances stay valid: events sent to
+     * them reactivate the instance, cancelling them deletes its file.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testPassivatedHandles() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (StateGraphRegistry<Integer> registry = new StateGraphRegistry<>(buildGraph(), 1, directory, new SnapshotCodec(), 2)) {
+            List<StateGraphInstance> instances = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                instances.add(registry.start(i, Collections.singletonMap("log", i + ":")).get(5, TimeUnit.SECONDS));
+                instances.get(i).send("a");
+            }
+            // commands of a shard are handled in order, so this one comes after the events
+            registry.get(-1).get(5, TimeUnit.SECONDS);
+            assertTrue(registry.getPassivatedCount() >= 7);
+
+            for (int i = 0; i < 10; i++) {
+                StateGraphInstance instance = instances.get(i);
+                if (i % 2 == 0) {
+                    assertTrue(instance.cancel());
+                } else {
+                    instance.send("b");
+                    instance.send(0);
+                }
+            }
+            for (int i = 1; i < 10; i += 2) {
+                assertEquals(i + ":ab", instances.get(i).getCompletion().get(5, TimeUnit.SECONDS).get("log"));
+            }
+            registry.get(-1).get(5, TimeUnit.SECONDS);
+            assertEquals(0, registry.size());
+            assertEquals(0, registry.getPassivatedCount());
+            assertEquals(0, countFiles(directory));
+        }
+    }
+
+    /**
+     * Counts the files in the given directory.
+     *
+     * @param directory the directory
+     * @return the number of files
+     * @throws Exception
+     */
+    private static long countFiles(Path directory) throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package de.iisys.libstate;
+
+import de.iisys.libstate.interfaces.AsyncAction;
+import de.iisys.libstate.interfaces.MemoryKey;
+import de.iisys.libstate.interfaces.State;
+import de.iisys.libstate.interfaces.Transition;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Class to test running many instances with the state graph service.
+ */
+public class StateGraphServiceTest {
+
+    private StateGraph stateGraph;
+
+    /**
+     * Sets up a new state graph.
+     */
+    @Before
+    public void setUp() {
+        stateGraph = new StateGraph();
+    }
+
+    /**
+     * TESTING. Runs more waiting instances than there are threads, waiting
+     * instances must give their thread back.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testWaitingInstances() throws Exception {
+        MemoryKey.OfInt paid = stateGraph.declareInt("paid");
+        stateGraph.registerState("ordered");
+        stateGraph.registerState("paid", (state) -> state.putInt(paid, state.getInt(paid) + 1));
+
+        stateGraph.registerTransition("ordered");
+        stateGraph.registerEventTransition("ordered", "paid", Integer.class);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (StateGraphService service = new StateGraphService(new CompiledStateGraph(stateGraph), executor)) {
+            List<StateGraphInstance> instances = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                instances.add(service.start());
+            }
+
+            for (StateGraphInstance instance : instances) {
+                instance.send(1);
+            }
+
+            for (StateGraphInstance instance : instances) {
+                assertEquals(1, instance.getCompletion().get(5, TimeUnit.SECONDS).getInt(paid));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * TESTING. A failing action completes the instance exceptionally.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testFailingInstance() throws Exception {
+        stateGraph.registerState("failing", (state) -> {
+            throw new IllegalStateException("failed");
+        });
+        stateGraph.registerTransition("failing");
+
+        try (StateGraphService service = new StateGraphService(stateGraph)) {
+            StateGraphInstance instance = service.start();
+            try {
+                instance.getCompletion().get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof IllegalStateException);
+            }
+            assertTrue(instance.isDone());
+        }
+    }
+
+    /**
+     * TESTING. With a step budget a long running instance gives its only
+     * thread back, so a short one started later finishes first.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testStepBudget() throws Exception {
+        MemoryKey.OfInt count = stateGraph.declareInt("count");
+        MemoryKey.OfInt limit = stateGraph.declareInt("limit");
+        stateGraph.registerState("count", (state) -> state.putInt(count, state.getInt(count) + 1));
+        stateGraph.registerState("done");
+        stateGraph.registerTransition("count");
+        stateGraph.registerTransition("count", "done", (transition) -> transition.getSource().getInt(count) >= transition.getSource().getInt(limit));
+        stateGraph.registerTransition("count", "count");
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (StateGraphService service = new StateGraphService(new CompiledStateGraph(stateGraph), executor)) {
+            service.setStepBudget(10);
+            List<String> finished = Collections.synchronizedList(new ArrayList<>());
+            StateGraphInstance[] instances = new StateGraphInstance[2];
+            int index = 0;
+            for (int length : new int[]{1000000, 10}) {
+                Map<Object, Object> memory = new HashMap<>();
+                memory.put("limit", length);
+                instances[index] = service.start(memory);
+                instances[index++].getCompletion().thenRun(() -> finished.add(length == 10 ? "short" : "long"));
+            }
+            assertEquals(1000000, instances[0].getCompletion().get(10, TimeUnit.SECONDS).get("count"));
+            assertEquals(Arrays.asList("short", "long"), finished);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * TESTING. Suspends instances on asynchronous entry, do, exit and
+     * transition actions, all of them holding a single thread.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testAsyncActions() throws Exception {
+        List<CompletableFuture<Void>> calls = new ArrayList<>();
+        AsyncAction<State> call = (state) -> {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            synchronized (calls) {
+                calls.add(future);
+            }
+            return future.thenRun(() -> state.put("calls", (int) state.get("calls") + 1));
+        };
+        AsyncAction<Transition<State, State>> transitionCall = (transition) -> call.runAsync(transition.getSource());
+
+        stateGraph.registerState("remote", call, call, call);
+        stateGraph.registerState("done");
+        stateGraph.registerTransition("remote");
+        stateGraph.registerTransition("remote", "done", transitionCall);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (StateGraphService service = new StateGraphService(new CompiledStateGraph(stateGraph), executor)) {
+            List<StateGraphInstance> instances = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                StateGraphInstance instance = service.start();
+                instance.getExecution().getMemory().put("calls", 0);
+                instances.add(instance);
+            }
+
+            // complete the pending calls one round at a time, every round suspends all instances again
+            for (int round = 0; round < 4; round++) {
+                List<CompletableFuture<Void>> pending = new ArrayList<>();
+                for (int i = 0; i < 500 && pending.size() < instances.size(); i++) {
+                    Thread.sleep(10);
+                    synchronized (calls) {
+                        pending.addAll(calls);
+                        calls.clear();
+                    }
+                }
+                assertEquals(instances.size(), pending.size());
+                pending.forEach((future) -> future.complete(null));
+            }
+
+            for (StateGraphInstance instance : instances) {
+                assertEquals(4, instance.getCompletion().get(5, TimeUnit.SECONDS).get("calls"));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -1,7 +1,19 @@
 package de.iisys.libstate;
 
+import de.iisys.libstate.interfaces.Action;
+import de.iisys.libstate.interfaces.MemoryKey;
+import de.iisys.libstate.interfaces.State;
+import de.iisys.libstate.interfaces.Transition;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -82,4 +94,317 @@ public class StateGraphTest {
         assertEquals(5, stateRunList.size());
         assertEquals(3, testList.size());
     }
+
+    /**
+     * TESTING. Runs one baked state graph from several threads at once, every
+     * run needs to count on its own memory.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentRuns() throws Exception {
+        stateGraph.registerState("count", (state) -> state.put("count", (int) state.get("count") + 1));
+        stateGraph.registerState("done");
+
+        stateGraph.registerTransition("count");
+        stateGraph.registerTransition("count", "done", (transition) -> (int) transition.getSource().get("count") == 1000);
+        stateGraph.registerTransition("count", "count");
+
+        StateGraphRunner stateGraphRunner = new StateGraphRunner(stateGraph);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Map<Object, Object>>> results = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                results.add(executor.submit(() -> {
+                    Map<Object, Object> memory = new HashMap<>();
+                    memory.put("count", 0);
+                    return stateGraphRunner.run(memory);
+                }));
+            }
+
+            for (Future<Map<Object, Object>> result : results) {
+                assertEquals(1000, (int) result.get().get("count"));
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // the definitions of the graph are never touched by a run
+        assertTrue(stateGraph.getStates().get("count").getMemory().isEmpty());
+    }
+
+    /**
+     * TESTING. Evaluates one graph over many memories in parallel, the
+     * results need to keep the order of the memories.
+     */
+    @Test
+    public void testRunAll() {
+        MemoryKey.OfInt count = stateGraph.declareInt("count");
+        MemoryKey.OfInt limit = stateGraph.declareInt("limit");
+        stateGraph.registerState("count", (state) -> state.putInt(count, state.getInt(count) + 1));
+        stateGraph.registerState("done");
+
+        stateGraph.registerTransition("count");
+        stateGraph.registerTransition("count", "done", (transition) -> transition.getSource().getInt(count) >= transition.getSource().getInt(limit));
+        stateGraph.registerTransition("count", "count");
+
+        StateGraphRunner stateGraphRunner = new StateGraphRunner(stateGraph);
+        List<StateMemory> results = stateGraphRunner.runAll(IntStream.range(1, 200).mapToObj((i) -> {
+            Map<Object, Object> memory = new HashMap<>();
+            memory.put("limit", i);
+            return memory;
+        }));
+
+        assertEquals(199, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(i + 1, results.get(i).getInt(count));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            List<Map<Object, Object>> memories = new ArrayList<>();
+            for (int i = 1; i <= 50; i++) {
+                Map<Object, Object> memory = new HashMap<>();
+                memory.put("limit", i * 10);
+                memories.add(memory);
+            }
+            results = stateGraphRunner.runAll(memories.stream(), pool);
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals((i + 1) * 10, results.get(i).getInt(count));
+            }
+            assertEquals(memories.size(), stateGraphRunner.runAll(memories.spliterator()).size());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * TESTING. Compiles a state graph and checks the state IDs and the
+     * transition tables.
+     */
+    @Test
+    public void testCompiledStateGraph() {
+        stateGraph.registerState("first");
+        stateGraph.registerState("second");
+
+        stateGraph.registerTransition("first");
+        stateGraph.registerTransition("first", "first");
+        stateGraph.registerTransition("first", "second", (transition) -> true);
+
+        CompiledStateGraph compiled = new CompiledStateGraph(stateGraph);
+        assertEquals(2, compiled.getStateCount());
+        assertEquals(0, compiled.getStateId("first"));
+        assertEquals(1, compiled.getStateId("second"));
+        assertEquals(CompiledStateGraph.NONE, compiled.getStateId("third"));
+        assertEquals(0, compiled.getInitialStateId());
+
+        // conditional transitions are sorted in front
+        int start = compiled.getTransitionStart(0);
+        assertEquals(2, compiled.getTransitionEnd(0) - start);
+        assertEquals(1, compiled.getTransitionDestination(start));
+        assertFalse(compiled.isSelfLoop(start));
+        assertTrue(compiled.isSelfLoop(start + 1));
+        assertEquals(compiled.getTransitionEnd(0), compiled.getTransitionStart(1));
+        assertEquals(compiled.getTransitionStart(1), compiled.getTransitionEnd(1));
+
+        StateGraphExecution execution = compiled.newExecution();
+        new StateGraphRunner(stateGraph).run(execution);
+        assertTrue(execution.isTerminated());
+        assertEquals(CompiledStateGraph.NONE, execution.getStateId());
+    }
+
+    /**
+     * TESTING. Optimizes a state graph: dead transitions are pruned,
+     * pass-through states are skipped and unreachable states are flagged,
+     * while the graph still computes the same.
+     */
+    @Test
+    public void testOptimizedStateGraph() {
+        MemoryKey.OfInt visits = stateGraph.declareInt("visits");
+        stateGraph.registerState("start", (state) -> state.putInt(visits, state.getInt(visits) + 1));
+        stateGraph.registerState("glue1");
+        stateGraph.registerState("glue2");
+        stateGraph.registerState("work", (state) -> state.put("worked", state.getInt(visits)));
+        stateGraph.registerState("end");
+        stateGraph.registerState("orphan");
+        stateGraph.registerState("island");
+
+        stateGraph.registerTransition("start");
+        stateGraph.registerTransition("start", "glue1");
+        stateGraph.registerTransition("start", "orphan");
+        stateGraph.registerTransition("glue1", "glue2");
+        stateGraph.registerTransition("glue2", "work");
+        stateGraph.registerTransition("work", "start", (transition) -> transition.getSource().getInt(visits) < 3);
+        stateGraph.registerTransition("work", "end");
+        stateGraph.registerTransition("island", "start");
+
+        CompiledStateGraph plain = new CompiledStateGraph(stateGraph);
+        CompiledStateGraph optimized = new CompiledStateGraph(stateGraph, true);
+        int start = optimized.getStateId("start");
+        int work = optimized.getStateId("work");
+
+        assertEquals(2, plain.getTransitionEnd(start) - plain.getTransitionStart(start));
+        assertEquals(1, optimized.getTransitionEnd(start) - optimized.getTransitionStart(start));
+        assertEquals(work, optimized.getTransitionDestination(optimized.getTransitionStart(start)));
+        assertTrue(optimized.isFolded(optimized.getStateId("glue1")));
+        assertTrue(optimized.isFolded(optimized.getStateId("glue2")));
+        assertFalse(optimized.isFolded(work));
+        assertFalse(plain.isFolded(plain.getStateId("glue1")));
+        assertTrue(optimized.isReachable(optimized.getStateId("glue1")));
+        assertEquals(Arrays.asList("orphan", "island"), optimized.getUnreachableStates());
+        assertEquals(Arrays.asList("island"), plain.getUnreachableStates());
+
+        int[] entered = new int[2];
+        for (CompiledStateGraph compiled : new CompiledStateGraph[]{plain, optimized}) {
+            StateGraphExecution execution = compiled.newExecution();
+            int index = compiled == plain ? 0 : 1;
+            execution.setListener(new StateGraphListener() {
+                @Override
+                public void stateEntered(StateGraphExecution execution, int state) {
+                    entered[index]++;
+                }
+            });
+            new StateGraphRunner(compiled).run(execution);
+            assertTrue(execution.isTerminated());
+            assertEquals(3, execution.getMemory().get("worked"));
+        }
+        assertEquals(13, entered[0]);
+        assertEquals(7, entered[1]);
+    }
+
+    /**
+     * TESTING. Runs a graph with generated dispatch and compares it with the
+     * same graph run from the tables.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testGeneratedDispatch() throws Exception {
+        MemoryKey.OfInt count = stateGraph.declareInt("count");
+        MemoryKey.OfInt entries = stateGraph.declareInt("entries");
+        MemoryKey.OfInt exits = stateGraph.declareInt("exits");
+        MemoryKey.OfInt tens = stateGraph.declareInt("tens");
+        stateGraph.registerState("count", (state) -> state.putInt(entries, state.getInt(entries) + 1),
+                (state) -> state.putInt(count, state.getInt(count) + 1), (state) -> state.putInt(exits, state.getInt(exits) + 1));
+        stateGraph.registerState("tens");
+        stateGraph.registerState("wait");
+        stateGraph.registerState("done", (state) -> state.put("total", state.getInt(count) + (int) state.get("amount")));
+
+        stateGraph.registerTransition("count");
+        stateGraph.registerTransition("count", "count", (transition) -> transition.getSource().getInt(count) % 10 != 0);
+        stateGraph.registerTransition("count", "tens", (Action<Transition<State, State>>) (transition)
+                -> transition.getSource().putInt(tens, transition.getSource().getInt(tens) + 1));
+        stateGraph.registerTransition("tens", "wait", (transition) -> transition.getSource().getInt(count) >= 100);
+        stateGraph.registerTransition("tens", "count");
+        stateGraph.registerEventTransition("wait", "done", Integer.class,
+                (transition) -> transition.getDestination().put("amount", ((ExecutionTransition) transition).getEvent()));
+
+        CompiledStateGraph plain = new CompiledStateGraph(stateGraph);
+        CompiledStateGraph generated = new CompiledStateGraph(stateGraph);
+        assertTrue(generated.generateDispatch());
+        assertTrue(generated.generateDispatch());
+
+        for (CompiledStateGraph compiled : new CompiledStateGraph[]{plain, generated}) {
+            StateGraphExecution execution = compiled.newExecution();
+            execution.send(5);
+            new StateGraphRunner(compiled).run(execution);
+            assertTrue(execution.isTerminated());
+            assertEquals(100, execution.getMemory().get("count"));
+            assertEquals(10, execution.getMemory().get("entries"));
+            assertEquals(10, execution.getMemory().get("exits"));
+            assertEquals(10, execution.getMemory().get("tens"));
+            assertEquals(105, execution.getMemory().get("total"));
+        }
+
+        // one step runs the generated states up to the waiting one
+        StateGraphExecution execution = generated.newExecution();
+        execution.step();
+        assertEquals(generated.getStateId("wait"), execution.getStateId());
+        assertEquals(100, execution.getMemory().get("count"));
+        assertEquals(StateGraphExecution.Status.WAITING, execution.step());
+
+        // each generated state counts as a step, a halted run stops at once
+        execution = generated.newExecution();
+        execution.run(5);
+        assertEquals(generated.getStateId("count"), execution.getStateId());
+        assertEquals(5, execution.getMemory().get("count"));
+        execution.halt(false);
+        execution.step();
+        assertEquals(6, execution.getMemory().get("count"));
+
+        // but not with a listener
+        execution = generated.newExecution();
+        execution.setListener(new StateGraphListener() {
+        });
+        execution.step();
+        assertEquals(generated.getStateId("count"), execution.getStateId());
+        assertEquals(1, execution.getMemory().get("count"));
+    }
+
+    /**
+     * TESTING. A 60-way branch on a memory value is selected by an array
+     * lookup, values without a transition fall back to the conditions.
+     */
+    @Test
+    public void testValueTransitions() {
+        stateGraph.registerState("dispatch");
+        stateGraph.registerState("unknown", (state) -> state.put("handled", "unknown"));
+        stateGraph.registerTransition("dispatch");
+        for (int i = 0; i < 60; i++) {
+            int type = i;
+            stateGraph.registerState("handler-" + i, (state) -> state.put("handled", type));
+            stateGraph.registerValueTransition("dispatch", "handler-" + i, "type", i);
+        }
+        // on another key, checked as a condition
+        stateGraph.registerValueTransition("dispatch", "unknown", "channel", "test");
+        stateGraph.registerTransition("dispatch", "unknown", (transition) -> {
+            Object type = transition.getSource().get("type");
+            return !(type instanceof Integer) || (int) type < 0 || (int) type >= 60;
+        });
+
+        StateGraphRunner runner = new StateGraphRunner(stateGraph);
+        CompiledStateGraph compiled = runner.getCompiledStateGraph();
+        int dispatch = compiled.getStateId("dispatch");
+        assertTrue(compiled.getValueTable(dispatch).isArray());
+        assertEquals(60, IntStream.range(compiled.getTransitionStart(dispatch), compiled.getTransitionEnd(dispatch))
+                .filter(compiled::isTabled).count());
+
+        for (Object type : Arrays.asList(0, 42, 59)) {
+            Map<Object, Object> memory = new HashMap<>();
+            memory.put("type", type);
+            assertEquals(type, runner.run(memory).get("handled"));
+        }
+
+        // the table is looked up where its first transition would be checked
+        int channel = IntStream.range(compiled.getTransitionStart(dispatch), compiled.getTransitionEnd(dispatch))
+                .filter((t) -> compiled.getTransition(t) instanceof ValueTransition
+                && compiled.getTransitionDestination(t) == compiled.getStateId("unknown")).findFirst().getAsInt();
+        Map<Object, Object> both = new HashMap<>();
+        both.put("type", 42);
+        both.put("channel", "test");
+        assertEquals(channel < compiled.getValueTable(dispatch).getPosition() ? "unknown" : 42, runner.run(both).get("handled"));
+        for (Object type : Arrays.asList(-1, 60, "42")) {
+            Map<Object, Object> memory = new HashMap<>();
+            memory.put("type", type);
+            assertEquals("unknown", runner.run(memory).get("handled"));
+        }
+
+        // sparse or other values are hashed
+        Map<Object, Integer> values = new HashMap<>();
+        values.put("start", 3);
+        values.put("stop", 7);
+        values.put(null, 9);
+        ValueTable table = new ValueTable("command", 0, values);
+        assertFalse(table.isArray());
+        assertEquals(7, table.lookup("stop"));
+        assertEquals(9, table.lookup(null));
+        assertEquals(CompiledStateGraph.NONE, table.lookup("pause"));
+        values.clear();
+        values.put(0, 1);
+        values.put(1_000_000, 2);
+        table = new ValueTable("type", 0, values);
+        assertFalse(table.isArray());
+        assertEquals(2, table.lookup(1_000_000));
+        assertEquals(CompiledStateGraph.NONE, table.lookup(1L));
+    }
 }
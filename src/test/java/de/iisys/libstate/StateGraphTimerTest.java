@@ -0,0 +1,69 @@
+package de.iisys.libstate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Class to test the hierarchical timing wheel.
+ */
+public class StateGraphTimerTest {
+
+    /**
+     * TESTING. Timeouts expire no earlier than their delay, also when they
+     * are moved down from coarser wheels, cancelled ones never do.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testTimeouts() throws Exception {
+        try (StateGraphTimer timer = new StateGraphTimer(1, TimeUnit.MILLISECONDS)) {
+            int count = 10000;
+            CountDownLatch expired = new CountDownLatch(count / 2);
+            AtomicInteger early = new AtomicInteger();
+            AtomicInteger ran = new AtomicInteger();
+            List<StateGraphTimer.Timeout> timeouts = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                // beyond the 64 slots of the finest wheel, long enough to cancel in time
+                long delay = 100 + i % 150;
+                timeouts.add(timer.schedule(() -> {
+                    if (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(delay)) {
+                        early.incrementAndGet();
+                    }
+                    ran.incrementAndGet();
+                    expired.countDown();
+                }, delay, TimeUnit.MILLISECONDS));
+            }
+            for (int i = 1; i < count; i += 2) {
+                assertTrue(timeouts.get(i).cancel());
+                assertFalse(timeouts.get(i).cancel());
+            }
+
+            assertTrue(expired.await(5, TimeUnit.SECONDS));
+            Thread.sleep(200);
+            assertEquals(count / 2, ran.get());
+            assertEquals(0, early.get());
+            assertTrue(timeouts.get(0).isExpired());
+            assertFalse(timeouts.get(0).cancel());
+            assertTrue(timeouts.get(1).isCancelled());
+        }
+    }
+
+    /**
+     * TESTING. Closing the shared timer does not stop it.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSharedTimer() throws Exception {
+        StateGraphTimer.getShared().close();
+        CountDownLatch expired = new CountDownLatch(1);
+        StateGraphTimer.getShared().schedule(expired::countDown, 1, TimeUnit.MILLISECONDS);
+        assertTrue(expired.await(5, TimeUnit.SECONDS));
+    }
+}
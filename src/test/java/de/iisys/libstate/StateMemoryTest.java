@@ -0,0 +1,263 @@
+package de.iisys.libstate;
+
+import de.iisys.libstate.interfaces.MemoryKey;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Class to test the slot based state memory.
+ */
+public class StateMemoryTest {
+
+    private StateGraph stateGraph;
+
+    /**
+     * Sets up a new state graph.
+     */
+    @Before
+    public void setUp() {
+        stateGraph = new StateGraph();
+    }
+
+    /**
+     * TESTING. Declared keys go to their slots and can be read by name as
+     * well, undeclared keys stay in the map.
+     */
+    @Test
+    public void testSlots() {
+        MemoryKey.OfInt count = stateGraph.declareInt("count");
+        MemoryKey.OfLong total = stateGraph.declareLong("total");
+        MemoryKey.OfDouble ratio = stateGraph.declareDouble("ratio");
+        MemoryKey<String> name = stateGraph.declareMemory("name", String.class);
+        assertSame(count, stateGraph.declareInt("count"));
+
+        StateMemory memory = new StateMemory(stateGraph.getMemoryLayout());
+        assertSame(memory.getLayout(), stateGraph.getMemoryLayout());
+        assertSame(count, stateGraph.declareInt("count"));
+        try {
+            stateGraph.declareInt("late");
+            fail();
+        } catch (IllegalStateException ex) {
+        }
+        assertEquals(0, memory.getInt(count));
+        assertNull(memory.get(name));
+        assertEquals(3, memory.size());
+
+        memory.putInt(count, 5);
+        memory.putLong(total, 7L);
+        memory.putDouble(ratio, 0.5);
+        memory.put(name, "graph");
+        memory.put("other", 1);
+
+        assertEquals(5, memory.get("count"));
+        assertEquals(7L, memory.get("total"));
+        assertEquals(0.5, (double) memory.get("ratio"), 0);
+        assertEquals("graph", memory.get("name"));
+        assertEquals(5, memory.size());
+
+        memory.put("count", 6);
+        assertEquals(6, memory.getInt(count));
+
+        Map<Object, Object> expected = new HashMap<>();
+        expected.put("count", 6);
+        expected.put("total", 7L);
+        expected.put("ratio", 0.5);
+        expected.put("name", "graph");
+        expected.put("other", 1);
+        assertEquals(expected, memory);
+
+        StateMemory copy = memory.copy();
+        copy.putInt(count, 1);
+        copy.remove("other");
+        assertEquals(6, memory.getInt(count));
+        assertEquals(1, memory.get("other"));
+        assertFalse(copy.containsKey("other"));
+
+        memory.remove("name");
+        assertFalse(memory.containsKey("name"));
+    }
+
+    /**
+     * TESTING. Counts within a running graph with an unboxed key and takes the
+     * initial value from the initial state.
+     */
+    @Test
+    public void testTypedMemoryRun() {
+        MemoryKey.OfInt count = stateGraph.declareInt("count");
+        stateGraph.registerState("count", (state) -> state.putInt(count, state.getInt(count) + 1));
+        stateGraph.registerState("done");
+
+        stateGraph.registerTransition("count");
+        stateGraph.registerTransition("count", "done", (transition) -> transition.getSource().getInt(count) == 100);
+        stateGraph.registerTransition("count", "count");
+
+        stateGraph.getStates().get("count").put("count", 10);
+
+        StateGraphRunner stateGraphRunner = new StateGraphRunner(stateGraph);
+        Map<Object, Object> memory = stateGraphRunner.run(new HashMap<>(stateGraphRunner.getCompiledStateGraph().getInitialMemory()));
+        assertEquals(100, memory.get("count"));
+
+        StateGraphExecution execution = stateGraphRunner.getCompiledStateGraph().newExecution();
+        assertEquals(10, execution.getMemory().getInt(count));
+        stateGraphRunner.run(execution);
+        assertEquals(100, execution.getMemory().getInt(count));
+    }
+
+    /**
+     * TESTING. Copies share the entries they were created from, changes on
+     * either side must not be seen by the other one.
+     */
+    @Test
+    public void testCopyOnWrite() {
+        MemoryKey.OfInt count = stateGraph.declareInt("count");
+
+        Map<Object, Object> entries = new HashMap<>();
+        entries.put("table", "lookup");
+        entries.put("nothing", null);
+        entries.put("count", 1);
+        StateMemory memory = new StateMemory(stateGraph.getMemoryLayout(), entries);
+        assertEquals(entries, memory);
+
+        StateMemory copy = memory.copy();
+        copy.put("table", "changed");
+        copy.remove("nothing");
+        copy.put("added", 2);
+        copy.putInt(count, 5);
+
+        assertEquals(entries, memory);
+        assertEquals(1, memory.getInt(count));
+        assertEquals("changed", copy.get("table"));
+        assertFalse(copy.containsKey("nothing"));
+        assertEquals(3, copy.size());
+
+        // a copy of a copy keeps its changes
+        StateMemory second = copy.copy();
+        second.remove("added");
+        second.put("nothing", null);
+        assertTrue(second.containsKey("nothing"));
+        assertEquals(2, copy.get("added"));
+        assertFalse(copy.containsKey("nothing"));
+
+        // removing while iterating goes through the changes and the shared entries
+        second.entrySet().removeIf((entry) -> !"count".equals(entry.getKey()));
+        assertEquals(1, second.size());
+        assertEquals(3, copy.size());
+        assertEquals(entries, memory);
+    }
+
+    /**
+     * TESTING. Off-heap primitive slots behave like the arrays, for copies,
+     * runs and snapshots, and records of collected memories are reused.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testOffHeapMemory() throws Exception {
+        MemoryKey.OfInt count = stateGraph.declareInt("count");
+        MemoryKey.OfLong total = stateGraph.declareLong("total");
+        MemoryKey.OfDouble ratio = stateGraph.declareDouble("ratio");
+        stateGraph.setOffHeapMemory(true);
+        stateGraph.registerState("count", (state) -> {
+            state.putInt(count, state.getInt(count) + 1);
+            state.putLong(total, state.getLong(total) + state.getInt(count));
+        });
+        stateGraph.registerState("done", (state) -> state.putDouble(ratio, state.getLong(total) / (double) state.getInt(count)));
+
+        stateGraph.registerTransition("count");
+        stateGraph.registerTransition("count", "done", (transition) -> transition.getSource().getInt(count) == 10);
+        stateGraph.registerTransition("count", "count", (transition) -> transition.getSource().getInt(count) != 10);
+        stateGraph.getStates().get("count").put("total", 100L);
+
+        CompiledStateGraph compiledStateGraph = new CompiledStateGraph(stateGraph);
+        MemoryLayout layout = compiledStateGraph.getMemoryLayout();
+        assertTrue(layout.isOffHeap());
+        assertEquals(24, layout.getSlab().getRecordSize());
+
+        StateGraphExecution execution = compiledStateGraph.newExecution();
+        StateGraphExecution other = compiledStateGraph.newExecution();
+        int live = layout.getSlab().getRecordCount();
+        new StateGraphRunner(compiledStateGraph).run(execution);
+        // the terminated execution gives its record back right away
+        assertEquals(live - 1, layout.getSlab().getRecordCount());
+        StateMemory memory = execution.getMemory();
+        assertEquals(10, memory.getInt(count));
+        assertEquals(155L, memory.get("total"));
+        assertEquals(15.5, memory.getDouble(ratio), 0);
+        assertEquals(0, other.getMemory().getInt(count));
+        assertEquals(100L, other.getMemory().getLong(total));
+        assertEquals(3, memory.size());
+
+        StateMemory copy = memory.copy();
+        copy.putInt(count, 1);
+        assertEquals(10, memory.getInt(count));
+        assertEquals(155L, copy.getLong(total));
+
+        SnapshotCodec codec = new SnapshotCodec();
+        StateGraphExecution restored = codec.read(compiledStateGraph, codec.write(execution));
+        assertEquals(memory, restored.getMemory());
+
+        copy.clear();
+        assertEquals(0L, copy.getLong(total));
+        assertEquals(155L, memory.getLong(total));
+
+        // the records of unreachable memories are given back
+        int records = layout.getSlab().getRecordCount();
+        for (int i = 0; i < 1000; i++) {
+            new StateMemory(layout);
+        }
+        for (int i = 0; i < 50 && layout.getSlab().getRecordCount() > records + 1; i++) {
+            System.gc();
+            Thread.sleep(10);
+            new StateMemory(layout);
+        }
+        assertTrue(layout.getSlab().getRecordCount() <= records + 1);
+    }
+
+    /**
+     * TESTING. Records are allocated and released from several threads at
+     * once without two live memories sharing a record.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentRecords() throws Exception {
+        MemoryKey.OfLong owner = stateGraph.declareLong("owner");
+        stateGraph.setOffHeapMemory(true);
+        MemoryLayout layout = stateGraph.getMemoryLayout();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Future<?>[] futures = new Future<?>[4];
+            for (int i = 0; i < futures.length; i++) {
+                long thread = i;
+                futures[i] = executor.submit(() -> {
+                    StateMemory[] memories = new StateMemory[16];
+                    for (int j = 0; j < 20000; j++) {
+                        int slot = j % memories.length;
+                        if (memories[slot] != null) {
+                            assertEquals(thread << 32 | (j - memories.length), memories[slot].getLong(owner));
+                            memories[slot].release();
+                        }
+                        memories[slot] = new StateMemory(layout);
+                        memories[slot].putLong(owner, thread << 32 | j);
+                    }
+                    for (StateMemory memory : memories) {
+                        memory.release();
+                    }
+                });
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(0, layout.getSlab().getRecordCount());
+    }
+}
@@ -0,0 +1,195 @@
+package de.iisys.libstate;
+
+import de.iisys.libstate.interfaces.MemoryKey;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.stream.Stream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Class to test the transition journal and recovering executions from it.
+ */
+public class TransitionJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Builds the same graph every time, as the restarted process would.
+     *
+     * @return the state graph
+     */
+    private static StateGraph buildGraph() {
+        StateGraph stateGraph = new StateGraph();
+        MemoryKey.OfInt count = stateGraph.declareInt("count");
+        stateGraph.registerState("count", (state) -> state.putInt(count, state.getInt(count) + 1));
+        stateGraph.registerState("wait", (state) -> state.put("waited", state.getInt(count)));
+        stateGraph.registerState("done", (state) -> state.put("total", state.getInt(count) + (int) state.get("amount")));
+
+        stateGraph.registerTransition("count");
+        stateGraph.registerTransition("count", "wait", (transition) -> transition.getSource().getInt(count) == 5);
+        stateGraph.registerTransition("count", "count", (transition) -> transition.getSource().getInt(count) != 5);
+        stateGraph.registerEventTransition("wait", "done", Integer.class,
+                (transition) -> transition.getDestination().put("amount", ((ExecutionTransition) transition).getEvent()));
+        return stateGraph;
+    }
+
+    /**
+     * TESTING. Rebuilds the executions that have not terminated from the
+     * journal and lets them go on.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testRecovery() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        SnapshotCodec codec = new SnapshotCodec();
+
+        long waitingId;
+        long countingId;
+        CompiledStateGraph graph = new CompiledStateGraph(buildGraph());
+        try (TransitionJournal journal = new TransitionJournal(directory, graph, codec)) {
+            assertTrue(journal.getRecovered().isEmpty());
+
+            StateGraphExecution waiting = graph.newExecution();
+            waiting.getMemory().put("label", "first");
+            waitingId = journal.attach(waiting);
+            while (waiting.step() != StateGraphExecution.Status.WAITING) {
+            }
+
+            StateGraphExecution terminated = graph.newExecution();
+            journal.attach(terminated);
+            terminated.send(1);
+            new StateGraphRunner(buildGraph()).run(terminated);
+            assertTrue(terminated.isTerminated());
+
+            StateGraphExecution counting = graph.newExecution();
+            countingId = journal.attach(counting);
+            while (!counting.isAtBoundary() || (int) counting.getMemory().get("count") < 3) {
+                counting.step();
+            }
+            counting.getMemory().put("unrecorded", true);
+        }
+
+        CompiledStateGraph restarted = new CompiledStateGraph(buildGraph());
+        try (TransitionJournal journal = new TransitionJournal(directory, restarted, codec)) {
+            Map<Long, StateGraphExecution> recovered = journal.getRecovered();
+            assertEquals(2, recovered.size());
+
+            StateGraphExecution waiting = recovered.get(waitingId);
+            assertEquals(restarted.getStateId("wait"), waiting.getStateId());
+            assertEquals(5, waiting.getMemory().get("count"));
+            assertEquals("first", waiting.getMemory().get("label"));
+
+            StateGraphExecution counting = recovered.get(countingId);
+            assertEquals(restarted.getStateId("count"), counting.getStateId());
+            assertEquals(3, counting.getMemory().get("count"));
+            assertFalse(counting.getMemory().containsKey("unrecorded"));
+
+            // the waiting state runs again and waits for the event
+            waiting.send(10);
+            new StateGraphRunner(buildGraph()).run(waiting);
+            assertTrue(waiting.isTerminated());
+            assertEquals(15, waiting.getMemory().get("total"));
+        }
+
+        CompiledStateGraph reopened = new CompiledStateGraph(buildGraph());
+        try (TransitionJournal journal = new TransitionJournal(directory, reopened, codec)) {
+            assertEquals(1, journal.getRecovered().size());
+            assertTrue(journal.getRecovered().containsKey(countingId));
+            assertTrue(journal.attach(reopened.newExecution()) > countingId);
+        }
+    }
+
+    /**
+     * TESTING. Compaction replaces the sealed segments by one with the live
+     * executions only.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testCompaction() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        SnapshotCodec codec = new SnapshotCodec();
+        CompiledStateGraph graph = new CompiledStateGraph(buildGraph());
+
+        long liveId;
+        try (TransitionJournal journal = new TransitionJournal(directory, graph, codec, TransitionJournal.Commit.ASYNC, 4096, 1000)) {
+            StateGraphExecution live = graph.newExecution();
+            liveId = journal.attach(live);
+            while (live.step() != StateGraphExecution.Status.WAITING) {
+            }
+            for (int i = 0; i < 500; i++) {
+                StateGraphExecution execution = graph.newExecution();
+                journal.attach(execution);
+                execution.send(i);
+                new StateGraphRunner(buildGraph()).run(execution);
+            }
+            journal.sync();
+            assertTrue(countSegments(directory) > 3);
+
+            journal.compact();
+            assertEquals(2, countSegments(directory));
+        }
+
+        try (TransitionJournal journal = new TransitionJournal(directory, new CompiledStateGraph(buildGraph()), codec)) {
+            assertEquals(1, journal.getRecovered().size());
+            assertEquals(5, journal.getRecovered().get(liveId).getMemory().get("count"));
+        }
+    }
+
+    /**
+     * TESTING. Cancelled executions are ended in the journal and are not
+     * recovered after reopening it.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testCancel() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        SnapshotCodec codec = new SnapshotCodec();
+        CompiledStateGraph graph = new CompiledStateGraph(buildGraph());
+
+        long liveId;
+        try (TransitionJournal journal = new TransitionJournal(directory, graph, codec)) {
+            StateGraphExecution waiting = graph.newExecution();
+            journal.attach(waiting);
+            while (waiting.step() != StateGraphExecution.Status.WAITING) {
+            }
+            waiting.cancel(false);
+
+            StateGraphExecution counting = graph.newExecution();
+            journal.attach(counting);
+            counting.step();
+            counting.cancel(false);
+            counting.step();
+
+            StateGraphExecution live = graph.newExecution();
+            liveId = journal.attach(live);
+            live.step();
+        }
+
+        try (TransitionJournal journal = new TransitionJournal(directory, new CompiledStateGraph(buildGraph()), codec)) {
+            assertEquals(1, journal.getRecovered().size());
+            assertTrue(journal.getRecovered().containsKey(liveId));
+        }
+    }
+
+    /**
+     * Counts the segment files in the given directory.
+     *
+     * @param directory the directory
+     * @return the number of segments
+     * @throws IOException
+     */
+    private static long countSegments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter((file) -> file.toString().endsWith(".log")).count();
+        }
+    }
+}